@@ -1,2 +1,2 @@
 
-chainCache.caches.add(new com.threecrickets.prudence.cache.OrientDbCache())
+chainCache.caches.add(new com.threecrickets.prudence.cache.OrientDbCache('local:' + sincerity.container.getCacheFile('prudence', 'orientdb')))
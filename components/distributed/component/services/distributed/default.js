@@ -18,6 +18,7 @@ else
 		importClass(
 			com.hazelcast.config.Config,
 			com.hazelcast.config.MapConfig,
+			com.hazelcast.config.NearCacheConfig,
 			com.hazelcast.config.MultiMapConfig,
 			com.hazelcast.config.QueueConfig,
 			com.hazelcast.config.TopicConfig,
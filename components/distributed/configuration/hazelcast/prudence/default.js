@@ -6,6 +6,11 @@ map.name = 'com.threecrickets.prudence.cache'
 map.backupCount = 1
 map.evictionPolicy = 'LFU'
 map.evictionPercentage = 25
+map.nearCacheConfig = new NearCacheConfig()
+map.nearCacheConfig.maxSize = 1000
+map.nearCacheConfig.maxIdleSeconds = 60
+map.nearCacheConfig.evictionPolicy = 'LRU'
+map.nearCacheConfig.invalidateOnChange = true
 config.addMapConfig(map)
 
 map = new MapConfig()
@@ -17,6 +17,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import org.restlet.Application;
 import org.restlet.Context;
@@ -83,8 +84,10 @@ import com.threecrickets.scripturian.exception.ParsingException;
  * <code>conversation.characterSet</code>, and
  * <code>conversation.language</code>.
  * <p>
- * There is experimental support for deferred response (asynchronous mode) via
- * <code>conversation.defer</code>.
+ * Documents can defer their response via <code>conversation.defer</code>. In
+ * asynchronous mode, deferred documents are rendered on a dedicated bounded
+ * executor, releasing the connector thread, and the response is committed when
+ * rendering is done.
  * <p>
  * Summary of settings configured via the application's {@link Context}:
  * <ul>
@@ -94,6 +97,15 @@ import com.threecrickets.scripturian.exception.ParsingException;
  * <code>com.threecrickets.prudence.GeneratedTextResource.applicationServiceName</code>
  * : Defaults to "application".</li>
  * <li>
+ * <code>com.threecrickets.prudence.GeneratedTextResource.asynchronous:</code>
+ * {@link Boolean}, defaults to false.</li>
+ * <li>
+ * <code>com.threecrickets.prudence.GeneratedTextResource.cacheSingleFlight:</code>
+ * {@link Boolean}, defaults to true.</li>
+ * <li>
+ * <code>com.threecrickets.prudence.GeneratedTextResource.cacheSingleFlightTimeout:</code>
+ * {@link Long}, defaults to 10000.</li>
+ * <li>
  * <code>com.threecrickets.prudence.GeneratedTextResource.clientCachingMode:</code>
  * {@link Integer}, defaults to {@link #CLIENT_CACHING_MODE_CONDITIONAL}.</li>
  * <li>
@@ -118,6 +130,18 @@ import com.threecrickets.scripturian.exception.ParsingException;
  * <code>com.threecrickets.prudence.GeneratedTextResource.defaultName:</code>
  * {@link String}, defaults to "default".</li>
  * <li>
+ * <code>com.threecrickets.prudence.GeneratedTextResource.deferredExecutor:</code>
+ * {@link ExecutorService}. Defaults to a bounded executor.</li>
+ * <li>
+ * <code>com.threecrickets.prudence.GeneratedTextResource.deferredQueueSize:</code>
+ * {@link Integer}, defaults to 100.</li>
+ * <li>
+ * <code>com.threecrickets.prudence.GeneratedTextResource.deferredThreads:</code>
+ * {@link Integer}, defaults to twice the number of processors.</li>
+ * <li>
+ * <code>com.threecrickets.prudence.GeneratedTextResource.deferredTimeout:</code>
+ * {@link Long}, defaults to 30000.</li>
+ * <li>
  * <code>com.threecrickets.prudence.GeneratedTextResource.documentFormatter:</code>
  * {@link DocumentFormatter}. Defaults to a {@link JygmentsDocumentFormatter}.</li>
  * <li>
@@ -418,11 +442,6 @@ public class GeneratedTextResource extends ServerResource
 	 */
 	private final GeneratedTextResourceAttributes attributes = new GeneratedTextResourceAttributes( this );
 
-	/**
-	 * Flag for asynchronous support (experimental).
-	 */
-	private final boolean asynchronousSupport = false;
-
 	/**
 	 * Generates and possibly caches a textual representation. The returned
 	 * representation is either a {@link StringRepresentation} or a
@@ -532,16 +551,17 @@ public class GeneratedTextResource extends ServerResource
 					}
 				}
 
-				if( asynchronousSupport )
+				if( ( representation instanceof GeneratedTextDeferredRepresentation ) && this.attributes.isAsynchronous() )
 				{
-					// Experimental
-
-					if( representation instanceof GeneratedTextDeferredRepresentation )
-					{
-						setAutoCommitting( false );
-						getApplication().getTaskService().submit( (GeneratedTextDeferredRepresentation) representation );
+					// Release the connector thread; the response will be
+					// committed when rendering is done
+					setAutoCommitting( false );
+					if( ( (GeneratedTextDeferredRepresentation) representation ).submit( this.attributes.getDeferredExecutor(), this.attributes.getDeferredTimeout() ) )
 						return null;
-					}
+
+					// The executor is saturated, so we will render on this
+					// thread instead
+					setAutoCommitting( true );
 				}
 
 				return representation;
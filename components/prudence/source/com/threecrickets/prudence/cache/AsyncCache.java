@@ -0,0 +1,60 @@
+/**
+ * Copyright 2009-2012 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.cache;
+
+import java.util.concurrent.Future;
+
+/**
+ * A {@link Cache} that can also perform its operations without blocking the
+ * calling thread.
+ * <p>
+ * The semantics are those of the equivalent synchronous operations. Callers
+ * that are not interested in the result may simply discard the returned
+ * future.
+ * 
+ * @author Tal Liron
+ * @see AsyncCacheBase
+ */
+public interface AsyncCache extends Cache
+{
+	/**
+	 * Stores an entry in the cache without blocking.
+	 * 
+	 * @param key
+	 *        A key unique to the cache
+	 * @param entry
+	 *        The entry
+	 * @return A future that completes when the entry is stored
+	 * @see #store(String, CacheEntry)
+	 */
+	public Future<?> storeAsync( String key, CacheEntry entry );
+
+	/**
+	 * Fetches an entry from the cache without blocking.
+	 * 
+	 * @param key
+	 *        A key unique to the cache
+	 * @return A future for the entry or null
+	 * @see #fetch(String)
+	 */
+	public Future<CacheEntry> fetchAsync( String key );
+
+	/**
+	 * Makes sure that all tagged entries are un-fetchable, without blocking.
+	 * 
+	 * @param tag
+	 *        The tag
+	 * @return A future that completes when the tag is invalidated
+	 * @see #invalidate(String)
+	 */
+	public Future<?> invalidateAsync( String tag );
+}
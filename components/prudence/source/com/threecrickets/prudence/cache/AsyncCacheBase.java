@@ -0,0 +1,140 @@
+/**
+ * Copyright 2009-2012 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.cache;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Base class for {@link AsyncCache} implementations. Operations that the
+ * backend cannot perform asynchronously are run on an executor.
+ * <p>
+ * Unless otherwise set, the executor is created on first use with a small
+ * number of daemon threads and a bounded queue. When the queue is full, the
+ * operation runs on the calling thread, so that a slow backend applies back
+ * pressure rather than accumulating work.
+ * 
+ * @author Tal Liron
+ */
+public abstract class AsyncCacheBase implements AsyncCache
+{
+	//
+	// Attributes
+	//
+
+	/**
+	 * The executor used for asynchronous operations.
+	 * 
+	 * @return The executor
+	 * @see #setExecutor(ExecutorService)
+	 */
+	public ExecutorService getExecutor()
+	{
+		if( executor == null )
+		{
+			synchronized( this )
+			{
+				if( executor == null )
+				{
+					final String name = getClass().getSimpleName();
+					executor = new ThreadPoolExecutor( DEFAULT_THREADS, DEFAULT_THREADS, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>( DEFAULT_QUEUE_SIZE ), new ThreadFactory()
+					{
+						public Thread newThread( Runnable runnable )
+						{
+							Thread thread = new Thread( runnable, name + "-" + threadCounter.incrementAndGet() );
+							thread.setDaemon( true );
+							return thread;
+						}
+					}, new ThreadPoolExecutor.CallerRunsPolicy() );
+				}
+			}
+		}
+
+		return executor;
+	}
+
+	/**
+	 * @param executor
+	 *        The executor
+	 * @see #getExecutor()
+	 */
+	public void setExecutor( ExecutorService executor )
+	{
+		this.executor = executor;
+	}
+
+	//
+	// AsyncCache
+	//
+
+	public Future<?> storeAsync( final String key, final CacheEntry entry )
+	{
+		return getExecutor().submit( new Runnable()
+		{
+			public void run()
+			{
+				store( key, entry );
+			}
+		} );
+	}
+
+	public Future<CacheEntry> fetchAsync( final String key )
+	{
+		return getExecutor().submit( new Callable<CacheEntry>()
+		{
+			public CacheEntry call()
+			{
+				return fetch( key );
+			}
+		} );
+	}
+
+	public Future<?> invalidateAsync( final String tag )
+	{
+		return getExecutor().submit( new Runnable()
+		{
+			public void run()
+			{
+				invalidate( tag );
+			}
+		} );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * Number of threads in the default executor.
+	 */
+	private static final int DEFAULT_THREADS = 4;
+
+	/**
+	 * Queue size of the default executor.
+	 */
+	private static final int DEFAULT_QUEUE_SIZE = 1000;
+
+	/**
+	 * The executor used for asynchronous operations.
+	 */
+	private volatile ExecutorService executor;
+
+	/**
+	 * Used to name the threads of the default executor.
+	 */
+	private final AtomicInteger threadCounter = new AtomicInteger();
+}
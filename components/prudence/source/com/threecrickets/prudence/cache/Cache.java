@@ -29,8 +29,9 @@ public interface Cache
 {
 	/**
 	 * Stores an entry in the cache. The entry is guaranteed to be un-fetchable
-	 * after {@link CacheEntry#getExpirationDate()}, although it may very well
-	 * be un-fetchable sooner.
+	 * after {@link CacheEntry#getGraceExpirationDate()}, although it may very
+	 * well be un-fetchable sooner. Between {@link CacheEntry#getExpirationDate()}
+	 * and the grace expiration date the entry may be fetched as a stale entry.
 	 * <p>
 	 * Keys are unique to the cache. Storing for a key that already exists will
 	 * replace the entry if it exists.
@@ -43,11 +44,13 @@ public interface Cache
 	public void store( String key, CacheEntry entry );
 
 	/**
-	 * Fetches an entry from the cache if it's there and has not yet expired.
+	 * Fetches an entry from the cache if it's there and has not yet expired,
+	 * or is still within its grace duration.
 	 * 
 	 * @param key
 	 *        A key unique to the cache
 	 * @return An entry or null
+	 * @see CacheEntry#isStale()
 	 */
 	public CacheEntry fetch( String key );
 
@@ -13,12 +13,17 @@ package com.threecrickets.prudence.cache;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Date;
 
 import org.restlet.data.CharacterSet;
@@ -30,15 +35,15 @@ import org.restlet.data.Metadata;
 import org.restlet.data.Parameter;
 import org.restlet.representation.Representation;
 import org.restlet.representation.RepresentationInfo;
-import org.restlet.representation.StringRepresentation;
 
 import com.threecrickets.prudence.util.ByteArrayRepresentation;
 import com.threecrickets.prudence.util.IoUtil;
 
 /**
  * A serializable, cacheable set of parameters from which
- * {@link StringRepresentation} or {@link ByteArrayRepresentation} instances can
- * be created.
+ * {@link ByteArrayRepresentation} instances can be created. Text is stored
+ * either compressed or encoded in its character set, so that it can be served
+ * as is.
  * <p>
  * Instances are not thread safe.
  * 
@@ -70,7 +75,24 @@ public class CacheEntry implements Externalizable
 	 */
 	public CacheEntry( CacheEntry cacheEntry, Encoding encoding ) throws IOException
 	{
-		this( cacheEntry.string, cacheEntry.mediaType, cacheEntry.language, cacheEntry.characterSet, encoding, cacheEntry.headers, cacheEntry.modificationDate, cacheEntry.expirationDate );
+		this( cacheEntry, encoding, IoUtil.DEFAULT_COMPRESSION_LEVEL );
+	}
+
+	/**
+	 * Construction with re-encoding.
+	 * 
+	 * @param cacheEntry
+	 *        The cache entry to clone (must be un-encoded)
+	 * @param encoding
+	 *        The new encoding to use
+	 * @param compressionLevel
+	 *        The compression level (0-9, or -1 for the default)
+	 * @throws IOException
+	 */
+	public CacheEntry( CacheEntry cacheEntry, Encoding encoding, int compressionLevel ) throws IOException
+	{
+		this( cacheEntry.getString(), cacheEntry.mediaType, cacheEntry.language, cacheEntry.characterSet, encoding, compressionLevel, cacheEntry.headers, cacheEntry.modificationDate, cacheEntry.expirationDate );
+		graceDuration = cacheEntry.graceDuration;
 	}
 
 	/**
@@ -85,6 +107,7 @@ public class CacheEntry implements Externalizable
 	public CacheEntry( CacheEntry cacheEntry, String string ) throws IOException
 	{
 		this( string, cacheEntry.mediaType, cacheEntry.language, cacheEntry.characterSet, cacheEntry.encoding, cacheEntry.headers, cacheEntry.modificationDate, cacheEntry.expirationDate );
+		graceDuration = cacheEntry.graceDuration;
 	}
 
 	/**
@@ -109,6 +132,36 @@ public class CacheEntry implements Externalizable
 	 * @throws IOException
 	 */
 	public CacheEntry( String string, MediaType mediaType, Language language, CharacterSet characterSet, Encoding encoding, Form headers, Date documentModificationDate, Date expirationDate ) throws IOException
+	{
+		this( string, mediaType, language, characterSet, encoding, IoUtil.DEFAULT_COMPRESSION_LEVEL, headers, documentModificationDate, expirationDate );
+	}
+
+	/**
+	 * Constructor. Compresses string if encoding is provided, otherwise
+	 * encodes it in the character set (or the default character set), so that
+	 * it can be served as is.
+	 * 
+	 * @param string
+	 *        The string
+	 * @param mediaType
+	 *        The media type
+	 * @param language
+	 *        The language
+	 * @param characterSet
+	 *        The character set
+	 * @param encoding
+	 *        The encoding
+	 * @param compressionLevel
+	 *        The compression level (0-9, or -1 for the default)
+	 * @param headers
+	 *        The headers
+	 * @param documentModificationDate
+	 *        The document modification date
+	 * @param expirationDate
+	 *        The expiration date
+	 * @throws IOException
+	 */
+	public CacheEntry( String string, MediaType mediaType, Language language, CharacterSet characterSet, Encoding encoding, int compressionLevel, Form headers, Date documentModificationDate, Date expirationDate ) throws IOException
 	{
 		this.mediaType = mediaType;
 		this.language = language;
@@ -119,9 +172,9 @@ public class CacheEntry implements Externalizable
 		this.expirationDate = expirationDate;
 
 		if( IoUtil.SUPPORTED_COMPRESSION_ENCODINGS.contains( encoding ) )
-			bytes = IoUtil.compress( string, encoding, "text" );
+			bytes = IoUtil.compress( string, getCharset(), encoding, compressionLevel, "text" );
 		else
-			this.string = string;
+			bytes = encodeText( string );
 	}
 
 	/**
@@ -218,23 +271,29 @@ public class CacheEntry implements Externalizable
 	 */
 	public CacheEntry( byte[] bytes ) throws IOException, ClassNotFoundException
 	{
-		ByteArrayInputStream byteStream = new ByteArrayInputStream( bytes );
-		try
+		if( ( bytes.length > 1 ) && ( bytes[0] == (byte) 0xAC ) && ( bytes[1] == (byte) 0xED ) )
 		{
-			ObjectInputStream stream = new ObjectInputStream( byteStream );
+			// Serialized via an object stream before we had our own format
+			ByteArrayInputStream byteStream = new ByteArrayInputStream( bytes );
 			try
 			{
-				readExternal( stream );
+				ObjectInputStream stream = new ObjectInputStream( byteStream );
+				try
+				{
+					readExternal( stream );
+				}
+				finally
+				{
+					stream.close();
+				}
 			}
 			finally
 			{
-				stream.close();
+				byteStream.close();
 			}
 		}
-		finally
-		{
-			byteStream.close();
-		}
+		else
+			decode( bytes );
 	}
 
 	//
@@ -252,14 +311,22 @@ public class CacheEntry implements Externalizable
 	}
 
 	/**
-	 * @return The string
+	 * The string, decoded from the bytes if they are not compressed.
+	 * 
+	 * @return The string or null if compressed
 	 */
 	public String getString()
 	{
-		return string;
+		if( ( bytes != null ) && ( encoding == null ) )
+			return getCharset().decode( ByteBuffer.wrap( bytes ) ).toString();
+
+		return null;
 	}
 
 	/**
+	 * The bytes: compressed if there is an encoding, otherwise the string
+	 * encoded in the character set.
+	 * 
 	 * @return The bytes
 	 */
 	public byte[] getBytes()
@@ -268,14 +335,11 @@ public class CacheEntry implements Externalizable
 	}
 
 	/**
-	 * @return The length in bytes of either the string or the bytes
+	 * @return The length in bytes
 	 */
 	public int getSize()
 	{
-		if( bytes != null )
-			return bytes.length;
-		else
-			return string.getBytes().length;
+		return bytes != null ? bytes.length : 0;
 	}
 
 	/**
@@ -342,6 +406,57 @@ public class CacheEntry implements Externalizable
 		return expirationDate;
 	}
 
+	/**
+	 * The duration after the expiration date during which the entry may still
+	 * be fetched from the cache as a stale entry. Stale entries can be served
+	 * while a fresh entry is being generated, or if generation fails.
+	 * 
+	 * @return The grace duration in milliseconds
+	 * @see #setGraceDuration(long)
+	 * @see #isStale()
+	 */
+	public long getGraceDuration()
+	{
+		return graceDuration;
+	}
+
+	/**
+	 * @param graceDuration
+	 *        The grace duration in milliseconds
+	 * @see #getGraceDuration()
+	 */
+	public void setGraceDuration( long graceDuration )
+	{
+		this.graceDuration = graceDuration;
+	}
+
+	/**
+	 * The date after which the entry may not be fetched from the cache, even
+	 * as a stale entry. This is the expiration date plus the grace duration.
+	 * 
+	 * @return The grace expiration date
+	 * @see #getGraceDuration()
+	 */
+	public Date getGraceExpirationDate()
+	{
+		if( graceDuration <= 0 )
+			return expirationDate;
+		else
+			return new Date( expirationDate.getTime() + graceDuration );
+	}
+
+	/**
+	 * Whether the entry is past its expiration date, but still within its
+	 * grace duration.
+	 * 
+	 * @return True if stale
+	 * @see #getGraceDuration()
+	 */
+	public boolean isStale()
+	{
+		return System.currentTimeMillis() > expirationDate.getTime();
+	}
+
 	//
 	// Operations
 	//
@@ -349,8 +464,10 @@ public class CacheEntry implements Externalizable
 	/**
 	 * Serialize into a byte array.
 	 * <p>
-	 * Note that unlike {@link IoUtil#serialize(Object)}, this will not include
-	 * the type header.
+	 * Uses a compact, versioned binary format with length-prefixed fields.
+	 * Common media types, languages, character sets and encodings are written
+	 * as single-byte dictionary codes. Note that unlike
+	 * {@link IoUtil#serialize(Object)}, this will not include the type header.
 	 * 
 	 * @return An array of bytes
 	 * @throws IOException
@@ -358,48 +475,102 @@ public class CacheEntry implements Externalizable
 	 */
 	public byte[] toBytes() throws IOException
 	{
-		ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-		try
+		// Encode strings first, so that we know exactly how much to allocate
+
+		// Version, tag count, content flag, metadata codes, header count,
+		// dates and grace duration
+		int size = 1 + 4 + 1 + 4 + 4 + 8 * 4;
+
+		byte[][] encodedTags = null;
+		if( tags != null )
 		{
-			ObjectOutputStream stream = new ObjectOutputStream( byteStream );
-			try
+			encodedTags = new byte[tags.length][];
+			for( int i = 0; i < tags.length; i++ )
 			{
-				writeExternal( stream );
+				encodedTags[i] = encodeString( tags[i] );
+				size += 4 + encodedTags[i].length;
 			}
-			finally
+		}
+
+		size += 4 + ( bytes != null ? bytes.length : 0 );
+
+		int mediaTypeCode = getMetadataCode( MEDIA_TYPES, mediaType );
+		int languageCode = getMetadataCode( LANGUAGES, language );
+		int characterSetCode = getMetadataCode( CHARACTER_SETS, characterSet );
+		int encodingCode = getMetadataCode( ENCODINGS, encoding );
+		byte[] mediaTypeName = mediaTypeCode == METADATA_LITERAL ? encodeString( mediaType.getName() ) : null;
+		byte[] languageName = languageCode == METADATA_LITERAL ? encodeString( language.getName() ) : null;
+		byte[] characterSetName = characterSetCode == METADATA_LITERAL ? encodeString( characterSet.getName() ) : null;
+		byte[] encodingName = encodingCode == METADATA_LITERAL ? encodeString( encoding.getName() ) : null;
+		size += ( mediaTypeName != null ? 4 + mediaTypeName.length : 0 ) + ( languageName != null ? 4 + languageName.length : 0 ) + ( characterSetName != null ? 4 + characterSetName.length : 0 )
+			+ ( encodingName != null ? 4 + encodingName.length : 0 );
+
+		ArrayList<byte[]> encodedHeaders = null;
+		if( headers != null )
+		{
+			encodedHeaders = new ArrayList<byte[]>( headers.size() * 2 );
+			for( Parameter header : headers )
 			{
-				stream.close();
+				byte[] name = encodeString( header.getName() );
+				byte[] value = encodeString( header.getValue() );
+				encodedHeaders.add( name );
+				encodedHeaders.add( value );
+				size += 4 + ( name != null ? name.length : 0 ) + 4 + ( value != null ? value.length : 0 );
 			}
 		}
-		finally
+
+		ByteBuffer buffer = ByteBuffer.allocate( size );
+
+		buffer.put( FORMAT_VERSION );
+
+		if( encodedTags == null )
+			buffer.putInt( 0 );
+		else
+		{
+			buffer.putInt( encodedTags.length );
+			for( byte[] tag : encodedTags )
+				putBytes( buffer, tag );
+		}
+
+		buffer.put( (byte) 1 );
+		putBytes( buffer, bytes );
+
+		putMetadata( buffer, mediaTypeCode, mediaTypeName );
+		putMetadata( buffer, languageCode, languageName );
+		putMetadata( buffer, characterSetCode, characterSetName );
+		putMetadata( buffer, encodingCode, encodingName );
+
+		if( encodedHeaders == null )
+			buffer.putInt( 0 );
+		else
 		{
-			byteStream.close();
+			buffer.putInt( encodedHeaders.size() / 2 );
+			for( byte[] header : encodedHeaders )
+				putBytes( buffer, header );
 		}
 
-		return byteStream.toByteArray();
+		putDate( buffer, documentModificationDate );
+		putDate( buffer, modificationDate );
+		putDate( buffer, expirationDate );
+		buffer.putLong( graceDuration );
+
+		return buffer.array();
 	}
 
 	/**
-	 * Creates a {@link StringRepresentation} or a
-	 * {@link ByteArrayRepresentation}.
+	 * Creates a {@link ByteArrayRepresentation} over our bytes, without
+	 * copying or encoding them.
 	 * 
 	 * @return A {@link Representation}
 	 */
 	public Representation represent()
 	{
-		Representation representation;
-
-		if( bytes != null )
-		{
-			representation = new ByteArrayRepresentation( mediaType, bytes );
-			if( language != null )
-				representation.getLanguages().add( language );
-			representation.setCharacterSet( characterSet );
-			if( encoding != null )
-				representation.getEncodings().add( encoding );
-		}
-		else
-			representation = new StringRepresentation( string, mediaType, language, characterSet );
+		Representation representation = new ByteArrayRepresentation( mediaType, bytes );
+		if( language != null )
+			representation.getLanguages().add( language );
+		representation.setCharacterSet( characterSet );
+		if( encoding != null )
+			representation.getEncodings().add( encoding );
 
 		representation.setModificationDate( modificationDate );
 		representation.setExpirationDate( expirationDate );
@@ -423,6 +594,16 @@ public class CacheEntry implements Externalizable
 	public void readExternal( ObjectInput in ) throws IOException, ClassNotFoundException
 	{
 		int tagsLength = in.readInt();
+
+		// Our binary format, otherwise this was written by an older version
+		if( tagsLength == EXTERNAL_FORMAT_MARKER )
+		{
+			byte[] encoded = new byte[in.readInt()];
+			in.readFully( encoded );
+			decode( encoded );
+			return;
+		}
+
 		tags = new String[tagsLength];
 		for( int i = 0; i < tagsLength; i++ )
 		{
@@ -430,6 +611,7 @@ public class CacheEntry implements Externalizable
 			tags[i] = tag;
 		}
 
+		String string = null;
 		if( in.readBoolean() )
 		{
 			bytes = new byte[in.readInt()];
@@ -443,6 +625,9 @@ public class CacheEntry implements Externalizable
 		characterSet = CharacterSet.valueOf( in.readUTF() );
 		encoding = Encoding.valueOf( in.readUTF() );
 
+		if( string != null )
+			bytes = encodeText( string );
+
 		int headersLength = in.readInt();
 		if( headersLength > 0 )
 		{
@@ -458,51 +643,24 @@ public class CacheEntry implements Externalizable
 		documentModificationDate = new Date( in.readLong() );
 		modificationDate = new Date( in.readLong() );
 		expirationDate = new Date( in.readLong() );
-	}
-
-	public void writeExternal( ObjectOutput out ) throws IOException
-	{
-		if( tags == null )
-			out.writeInt( 0 );
-		else
-		{
-			out.writeInt( tags.length );
-			for( String tag : tags )
-				IoUtil.writeUtf8( out, tag );
-		}
 
-		if( bytes != null )
-		{
-			out.writeBoolean( true );
-			out.writeInt( bytes.length );
-			out.write( bytes );
-		}
-		else
+		try
 		{
-			out.writeBoolean( false );
-			IoUtil.writeUtf8( out, string );
+			graceDuration = in.readLong();
 		}
-
-		out.writeUTF( nonNull( mediaType ) );
-		out.writeUTF( nonNull( language ) );
-		out.writeUTF( nonNull( characterSet ) );
-		out.writeUTF( nonNull( encoding ) );
-
-		if( headers == null )
-			out.writeInt( 0 );
-		else
+		catch( EOFException x )
 		{
-			out.writeInt( headers.size() );
-			for( Parameter header : headers )
-			{
-				IoUtil.writeUtf8( out, header.getName() );
-				IoUtil.writeUtf8( out, header.getValue() );
-			}
+			// Serialized before grace durations were supported
+			graceDuration = 0;
 		}
+	}
 
-		out.writeLong( documentModificationDate.getTime() );
-		out.writeLong( modificationDate.getTime() );
-		out.writeLong( expirationDate.getTime() );
+	public void writeExternal( ObjectOutput out ) throws IOException
+	{
+		byte[] encoded = toBytes();
+		out.writeInt( EXTERNAL_FORMAT_MARKER );
+		out.writeInt( encoded.length );
+		out.write( encoded );
 	}
 
 	// //////////////////////////////////////////////////////////////////////////
@@ -520,11 +678,6 @@ public class CacheEntry implements Externalizable
 	 */
 	private byte[] bytes;
 
-	/**
-	 * The stored string.
-	 */
-	private String string;
-
 	/**
 	 * The media type.
 	 */
@@ -566,26 +719,298 @@ public class CacheEntry implements Externalizable
 	private Date expirationDate;
 
 	/**
-	 * Makes sure to return a non-null string.
+	 * The grace duration in milliseconds.
+	 */
+	private long graceDuration;
+
+	/**
+	 * The charset for the character set.
+	 * 
+	 * @return The charset, or the default charset if there is no character
+	 *         set
+	 */
+	private Charset getCharset()
+	{
+		return characterSet != null ? Charset.forName( characterSet.getName() ) : Charset.defaultCharset();
+	}
+
+	/**
+	 * Encodes text in the character set.
+	 * 
+	 * @param string
+	 *        The string
+	 * @return The bytes
+	 */
+	private byte[] encodeText( String string )
+	{
+		ByteBuffer buffer = getCharset().encode( string );
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get( bytes );
+		return bytes;
+	}
+
+	/**
+	 * The version of our binary format.
+	 */
+	private static final byte FORMAT_VERSION = 1;
+
+	/**
+	 * Marks our binary format inside {@link #writeExternal(ObjectOutput)}
+	 * (older versions started with a non-negative tag count).
+	 */
+	private static final int EXTERNAL_FORMAT_MARKER = -1;
+
+	/**
+	 * Metadata code for null.
+	 */
+	private static final int METADATA_NULL = 0;
+
+	/**
+	 * Metadata code for metadata that is not in the dictionary, and is thus
+	 * followed by its name.
+	 */
+	private static final int METADATA_LITERAL = 255;
+
+	/**
+	 * Media type dictionary. Codes are indexes + 1, so only append to this
+	 * list!
+	 */
+	private static final MediaType[] MEDIA_TYPES = new MediaType[]
+	{
+		MediaType.TEXT_HTML, MediaType.TEXT_PLAIN, MediaType.TEXT_XML, MediaType.TEXT_CSS, MediaType.TEXT_JAVASCRIPT, MediaType.TEXT_CSV, MediaType.APPLICATION_JSON, MediaType.APPLICATION_JAVASCRIPT,
+		MediaType.APPLICATION_XML, MediaType.APPLICATION_XHTML, MediaType.APPLICATION_ATOM, MediaType.APPLICATION_RSS, MediaType.APPLICATION_OCTET_STREAM, MediaType.IMAGE_PNG, MediaType.IMAGE_JPEG, MediaType.IMAGE_GIF
+	};
+
+	/**
+	 * Language dictionary. Codes are indexes + 1, so only append to this list!
+	 */
+	private static final Language[] LANGUAGES = new Language[]
+	{
+		Language.ENGLISH, Language.ENGLISH_US, Language.FRENCH, Language.SPANISH
+	};
+
+	/**
+	 * Character set dictionary. Codes are indexes + 1, so only append to this
+	 * list!
+	 */
+	private static final CharacterSet[] CHARACTER_SETS = new CharacterSet[]
+	{
+		CharacterSet.UTF_8, CharacterSet.ISO_8859_1, CharacterSet.US_ASCII, CharacterSet.UTF_16
+	};
+
+	/**
+	 * Encoding dictionary. Codes are indexes + 1, so only append to this list!
+	 */
+	private static final Encoding[] ENCODINGS = new Encoding[]
+	{
+		Encoding.GZIP, Encoding.DEFLATE, Encoding.ZIP, Encoding.IDENTITY
+	};
+
+	/**
+	 * Deserializes our binary format.
+	 * 
+	 * @param encoded
+	 *        The encoded bytes
+	 * @throws IOException
+	 * @see #toBytes()
+	 */
+	private void decode( byte[] encoded ) throws IOException
+	{
+		try
+		{
+			ByteBuffer buffer = ByteBuffer.wrap( encoded );
+
+			byte version = buffer.get();
+			if( version != FORMAT_VERSION )
+				throw new IOException( "Unsupported cache entry format: " + version );
+
+			int tagsLength = buffer.getInt();
+			tags = new String[tagsLength];
+			for( int i = 0; i < tagsLength; i++ )
+				tags[i] = getString( buffer );
+
+			// Older versions of our format stored un-encoded text as UTF-8
+			String string = null;
+			if( buffer.get() != 0 )
+				bytes = getBytes( buffer );
+			else
+				string = getString( buffer );
+
+			int code = buffer.get() & 0xFF;
+			mediaType = code == METADATA_LITERAL ? MediaType.valueOf( getString( buffer ) ) : getMetadata( code, MEDIA_TYPES );
+			code = buffer.get() & 0xFF;
+			language = code == METADATA_LITERAL ? Language.valueOf( getString( buffer ) ) : getMetadata( code, LANGUAGES );
+			code = buffer.get() & 0xFF;
+			characterSet = code == METADATA_LITERAL ? CharacterSet.valueOf( getString( buffer ) ) : getMetadata( code, CHARACTER_SETS );
+			code = buffer.get() & 0xFF;
+			encoding = code == METADATA_LITERAL ? Encoding.valueOf( getString( buffer ) ) : getMetadata( code, ENCODINGS );
+
+			if( string != null )
+				bytes = encodeText( string );
+
+			int headersLength = buffer.getInt();
+			if( headersLength > 0 )
+			{
+				headers = new Form();
+				for( int i = 0; i < headersLength; i++ )
+				{
+					String name = getString( buffer );
+					String value = getString( buffer );
+					headers.add( name, value );
+				}
+			}
+
+			documentModificationDate = getDate( buffer );
+			modificationDate = getDate( buffer );
+			expirationDate = getDate( buffer );
+			graceDuration = buffer.getLong();
+		}
+		catch( BufferUnderflowException x )
+		{
+			throw new EOFException( "Truncated cache entry" );
+		}
+	}
+
+	/**
+	 * The dictionary code for metadata.
 	 * 
+	 * @param dictionary
+	 *        The dictionary
 	 * @param metadata
 	 *        The metadata or null
-	 * @return A string
+	 * @return The code
 	 */
-	private static String nonNull( Metadata metadata )
+	private static int getMetadataCode( Metadata[] dictionary, Metadata metadata )
+	{
+		if( ( metadata == null ) || ( metadata.getName() == null ) )
+			return METADATA_NULL;
+		for( int i = 0; i < dictionary.length; i++ )
+			if( dictionary[i].equals( metadata ) )
+				return i + 1;
+		return METADATA_LITERAL;
+	}
+
+	/**
+	 * Writes a metadata code, followed by its name if it's not in the
+	 * dictionary.
+	 * 
+	 * @param buffer
+	 *        The buffer
+	 * @param code
+	 *        The metadata code
+	 * @param name
+	 *        The encoded name or null
+	 */
+	private static void putMetadata( ByteBuffer buffer, int code, byte[] name )
 	{
-		return metadata == null ? "" : nonNull( metadata.getName() );
+		buffer.put( (byte) code );
+		if( code == METADATA_LITERAL )
+			putBytes( buffer, name );
 	}
 
 	/**
-	 * Makes sure to return a non-null string.
+	 * Looks up metadata in a dictionary.
+	 * 
+	 * @param code
+	 *        The metadata code (not {@link #METADATA_LITERAL})
+	 * @param dictionary
+	 *        The dictionary
+	 * @return The metadata or null
+	 * @throws IOException
+	 */
+	private static <M extends Metadata> M getMetadata( int code, M[] dictionary ) throws IOException
+	{
+		if( code == METADATA_NULL )
+			return null;
+		if( code > dictionary.length )
+			throw new IOException( "Unknown metadata code: " + code );
+		return dictionary[code - 1];
+	}
+
+	/**
+	 * Encodes a string as UTF-8.
 	 * 
 	 * @param string
 	 *        The string or null
-	 * @return A string
+	 * @return The bytes or null
+	 */
+	private static byte[] encodeString( String string )
+	{
+		return string != null ? IoUtil.encodeUtf8( string ) : null;
+	}
+
+	/**
+	 * Writes length-prefixed bytes.
+	 * 
+	 * @param buffer
+	 *        The buffer
+	 * @param bytes
+	 *        The bytes or null
+	 */
+	private static void putBytes( ByteBuffer buffer, byte[] bytes )
+	{
+		if( bytes == null )
+			buffer.putInt( -1 );
+		else
+		{
+			buffer.putInt( bytes.length );
+			buffer.put( bytes );
+		}
+	}
+
+	/**
+	 * Reads length-prefixed bytes.
+	 * 
+	 * @param buffer
+	 *        The buffer
+	 * @return The bytes or null
+	 */
+	private static byte[] getBytes( ByteBuffer buffer )
+	{
+		int length = buffer.getInt();
+		if( length < 0 )
+			return null;
+		byte[] bytes = new byte[length];
+		buffer.get( bytes );
+		return bytes;
+	}
+
+	/**
+	 * Reads a length-prefixed UTF-8 string.
+	 * 
+	 * @param buffer
+	 *        The buffer
+	 * @return The string or null
+	 */
+	private static String getString( ByteBuffer buffer )
+	{
+		byte[] bytes = getBytes( buffer );
+		return bytes != null ? IoUtil.decodeUtf8( bytes ) : null;
+	}
+
+	/**
+	 * Writes a date.
+	 * 
+	 * @param buffer
+	 *        The buffer
+	 * @param date
+	 *        The date or null
+	 */
+	private static void putDate( ByteBuffer buffer, Date date )
+	{
+		buffer.putLong( date != null ? date.getTime() : Long.MIN_VALUE );
+	}
+
+	/**
+	 * Reads a date.
+	 * 
+	 * @param buffer
+	 *        The buffer
+	 * @return The date or null
 	 */
-	private static String nonNull( String string )
+	private static Date getDate( ByteBuffer buffer )
 	{
-		return string == null ? "" : string;
+		long time = buffer.getLong();
+		return time != Long.MIN_VALUE ? new Date( time ) : null;
 	}
 }
\ No newline at end of file
@@ -11,9 +11,30 @@
 
 package com.threecrickets.prudence.cache;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Allows chaining of caches together in order, where the faster, less reliable
@@ -23,10 +44,24 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * when a hit occurs, the entry is stored in all previous caches before the hit,
  * so that subsequent fetches would find the entry in the faster caches. Other
  * operations always work on all caches indiscriminately.
+ * <p>
+ * In write-behind mode, only the first cache is stored to on the calling
+ * thread. Stores to the other caches are queued and run on a dedicated
+ * thread, with repeated stores of the same key coalesced into one. When the
+ * queue is full, stores to the other caches are dropped. A queued entry is not
+ * stored to a cache once one of its tags has been invalidated, and if an
+ * invalidation races with the store, the tag is invalidated again in that
+ * cache. Invalidation, pruning and resetting are run on all caches in
+ * parallel, on threads separate from the {@link #getExecutor() executor}, so
+ * that asynchronous operations waiting for them cannot starve them.
+ * <p>
+ * Each cache in the chain is guarded by its own {@link CircuitBreaker}. A cache
+ * that throws is treated as a miss, and after repeated failures it is skipped
+ * until a probe call succeeds.
  * 
  * @author Tal Liron
  */
-public class ChainCache implements Cache
+public class ChainCache extends AsyncCacheBase
 {
 	//
 	// Construction
@@ -94,14 +129,112 @@ public class ChainCache implements Cache
 		this.backtrack = backtrack;
 	}
 
+	/**
+	 * When true, stores only the first cache synchronously, queueing stores
+	 * to the other caches. Defaults to false.
+	 * 
+	 * @return The write-behind mode
+	 * @see #setWriteBehind(boolean)
+	 */
+	public boolean isWriteBehind()
+	{
+		return writeBehind;
+	}
+
+	/**
+	 * @param writeBehind
+	 *        The write-behind mode
+	 * @see #isWriteBehind()
+	 */
+	public void setWriteBehind( boolean writeBehind )
+	{
+		this.writeBehind = writeBehind;
+	}
+
+	/**
+	 * The maximum number of keys waiting to be stored in write-behind mode.
+	 * Defaults to 1000.
+	 * 
+	 * @return The maximum queue size
+	 * @see #setMaxWriteBehindQueueSize(int)
+	 */
+	public int getMaxWriteBehindQueueSize()
+	{
+		return maxWriteBehindQueueSize;
+	}
+
+	/**
+	 * @param maxWriteBehindQueueSize
+	 *        The maximum queue size
+	 * @see #getMaxWriteBehindQueueSize()
+	 */
+	public void setMaxWriteBehindQueueSize( int maxWriteBehindQueueSize )
+	{
+		this.maxWriteBehindQueueSize = maxWriteBehindQueueSize;
+	}
+
+	/**
+	 * The number of keys currently waiting to be stored in write-behind mode.
+	 * 
+	 * @return The queue depth
+	 */
+	public int getWriteBehindQueueDepth()
+	{
+		return writeBehindQueueDepth.get();
+	}
+
+	/**
+	 * The number of stores dropped because the write-behind queue was full.
+	 * 
+	 * @return The dropped store count
+	 */
+	public long getDroppedWriteCount()
+	{
+		return droppedWriteCount.get();
+	}
+
+	/**
+	 * The circuit breaker guarding a chained cache. Breakers are created on
+	 * demand with default thresholds, which can then be changed.
+	 * 
+	 * @param cache
+	 *        The chained cache
+	 * @return The circuit breaker
+	 */
+	public CircuitBreaker getCircuitBreaker( Cache cache )
+	{
+		CircuitBreaker circuitBreaker = circuitBreakers.get( cache );
+		if( circuitBreaker == null )
+		{
+			circuitBreaker = new CircuitBreaker();
+			CircuitBreaker existing = circuitBreakers.putIfAbsent( cache, circuitBreaker );
+			if( existing != null )
+				circuitBreaker = existing;
+		}
+		return circuitBreaker;
+	}
+
 	//
 	// Cache
 	//
 
 	public void store( String key, CacheEntry entry )
 	{
-		for( Cache cache : caches )
-			cache.store( key, entry );
+		if( writeBehind )
+		{
+			Iterator<Cache> iterator = caches.iterator();
+			if( iterator.hasNext() )
+			{
+				store( iterator.next(), key, entry );
+				if( iterator.hasNext() )
+					storeBehind( key, entry );
+			}
+		}
+		else
+		{
+			for( Cache cache : caches )
+				store( cache, key, entry );
+		}
 	}
 
 	public CacheEntry fetch( String key )
@@ -109,7 +242,7 @@ public class ChainCache implements Cache
 		for( ListIterator<Cache> iterator = caches.listIterator(); iterator.hasNext(); )
 		{
 			Cache cache = iterator.next();
-			CacheEntry entry = cache.fetch( key );
+			CacheEntry entry = fetch( cache, key );
 			if( entry != null )
 			{
 				if( backtrack )
@@ -120,7 +253,7 @@ public class ChainCache implements Cache
 					while( iterator.hasPrevious() )
 					{
 						cache = iterator.previous();
-						cache.store( key, entry );
+						store( cache, key, entry );
 					}
 				}
 
@@ -131,22 +264,139 @@ public class ChainCache implements Cache
 		return null;
 	}
 
-	public void invalidate( String tag )
+	public void invalidate( final String tag )
 	{
-		for( Cache cache : caches )
-			cache.invalidate( tag );
+		if( writeBehind )
+		{
+			// Make sure entries being stored behind will not resurrect the
+			// tag (this must happen before we invalidate the caches)
+			long generation = invalidationGeneration.incrementAndGet();
+			if( invalidatedTags.size() >= MAX_INVALIDATED_TAGS )
+			{
+				forgottenGeneration = generation;
+				invalidatedTags.clear();
+			}
+			invalidatedTags.put( tag, generation );
+
+			// Make sure queued entries will not resurrect the tag
+			for( Map.Entry<String, CacheEntry> pending : writeBehindEntries.entrySet() )
+			{
+				String[] tags = pending.getValue().getTags();
+				if( ( tags != null ) && Arrays.asList( tags ).contains( tag ) )
+					if( writeBehindEntries.remove( pending.getKey(), pending.getValue() ) )
+						writeBehindQueueDepth.decrementAndGet();
+			}
+
+			fanOut( new CacheOperation()
+			{
+				public void run( Cache cache )
+				{
+					cache.invalidate( tag );
+				}
+			} );
+		}
+		else
+		{
+			for( Cache cache : caches )
+				run( cache, new CacheOperation()
+				{
+					public void run( Cache cache )
+					{
+						cache.invalidate( tag );
+					}
+				} );
+		}
 	}
 
 	public void prune()
 	{
-		for( Cache cache : caches )
-			cache.prune();
+		if( writeBehind )
+		{
+			fanOut( new CacheOperation()
+			{
+				public void run( Cache cache )
+				{
+					cache.prune();
+				}
+			} );
+		}
+		else
+		{
+			for( Cache cache : caches )
+				run( cache, new CacheOperation()
+				{
+					public void run( Cache cache )
+					{
+						cache.prune();
+					}
+				} );
+		}
 	}
 
 	public void reset()
 	{
-		for( Cache cache : caches )
-			cache.reset();
+		if( writeBehind )
+		{
+			// Entries being stored behind should not survive the reset
+			forgottenGeneration = invalidationGeneration.incrementAndGet();
+			invalidatedTags.clear();
+
+			// Keys left in the queue without entries are skipped by the
+			// drainer
+			for( String key : writeBehindEntries.keySet() )
+				if( writeBehindEntries.remove( key ) != null )
+					writeBehindQueueDepth.decrementAndGet();
+
+			fanOut( new CacheOperation()
+			{
+				public void run( Cache cache )
+				{
+					cache.reset();
+				}
+			} );
+		}
+		else
+		{
+			for( Cache cache : caches )
+				run( cache, new CacheOperation()
+				{
+					public void run( Cache cache )
+					{
+						cache.reset();
+					}
+				} );
+		}
+	}
+
+	//
+	// AsyncCache
+	//
+
+	/**
+	 * In write-behind mode, stores synchronously, because only the first
+	 * cache is stored to on the calling thread anyway.
+	 * 
+	 * @param key
+	 *        A key unique to the cache
+	 * @param entry
+	 *        The entry
+	 * @return A future that completes when the entry is stored
+	 */
+	@Override
+	public Future<?> storeAsync( final String key, final CacheEntry entry )
+	{
+		if( !writeBehind )
+			return super.storeAsync( key, entry );
+
+		FutureTask<Object> stored = new FutureTask<Object>( new Runnable()
+		{
+			public void run()
+			{
+				store( key, entry );
+			}
+		}, null );
+		stored.run();
+		return stored;
 	}
 
 	// //////////////////////////////////////////////////////////////////////////
@@ -162,4 +412,481 @@ public class ChainCache implements Cache
 	 * chain.
 	 */
 	private volatile boolean backtrack = true;
+
+	/**
+	 * When true, stores only the first cache synchronously.
+	 */
+	private volatile boolean writeBehind;
+
+	/**
+	 * The maximum number of keys waiting to be stored in write-behind mode.
+	 */
+	private volatile int maxWriteBehindQueueSize = 1000;
+
+	/**
+	 * The entries waiting to be stored in write-behind mode.
+	 */
+	private final ConcurrentMap<String, CacheEntry> writeBehindEntries = new ConcurrentHashMap<String, CacheEntry>();
+
+	/**
+	 * The keys waiting to be stored in write-behind mode, in order.
+	 */
+	private final ConcurrentLinkedQueue<String> writeBehindKeys = new ConcurrentLinkedQueue<String>();
+
+	/**
+	 * The number of entries waiting to be stored in write-behind mode.
+	 */
+	private final AtomicInteger writeBehindQueueDepth = new AtomicInteger();
+
+	/**
+	 * The number of stores dropped because the write-behind queue was full.
+	 */
+	private final AtomicLong droppedWriteCount = new AtomicLong();
+
+	/**
+	 * Whether a task is draining the write-behind queue.
+	 */
+	private final AtomicBoolean draining = new AtomicBoolean();
+
+	/**
+	 * Maximum number of invalidated tags to remember for write-behind.
+	 */
+	private static final int MAX_INVALIDATED_TAGS = 1000;
+
+	/**
+	 * Incremented on every invalidation and reset in write-behind mode.
+	 */
+	private final AtomicLong invalidationGeneration = new AtomicLong();
+
+	/**
+	 * Recently invalidated tags, mapped to their invalidation generation.
+	 */
+	private final ConcurrentMap<String, Long> invalidatedTags = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * Invalidations before this generation are no longer remembered in
+	 * {@link #invalidatedTags}.
+	 */
+	private volatile long forgottenGeneration;
+
+	/**
+	 * Maximum number of threads for running operations on all caches in
+	 * parallel.
+	 */
+	private static final int FAN_OUT_THREADS = 16;
+
+	/**
+	 * The executor for running operations on all caches in parallel.
+	 */
+	private volatile ExecutorService fanOutExecutor;
+
+	/**
+	 * The executor for draining the write-behind queue.
+	 */
+	private volatile ExecutorService writeBehindExecutor;
+
+	/**
+	 * Used to name our threads.
+	 */
+	private final AtomicInteger threadCounter = new AtomicInteger();
+
+	/**
+	 * The circuit breakers guarding the chained caches.
+	 */
+	private final ConcurrentMap<Cache, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<Cache, CircuitBreaker>();
+
+	/**
+	 * The logger.
+	 */
+	private final Logger logger = Logger.getLogger( this.getClass().getCanonicalName() );
+
+	/**
+	 * An operation on a single cache.
+	 */
+	private interface CacheOperation
+	{
+		/**
+		 * Runs the operation.
+		 * 
+		 * @param cache
+		 *        The cache
+		 */
+		public void run( Cache cache );
+	}
+
+	/**
+	 * Queues an entry to be stored in all caches but the first.
+	 * 
+	 * @param key
+	 *        The key
+	 * @param entry
+	 *        The entry
+	 */
+	private void storeBehind( String key, CacheEntry entry )
+	{
+		// Coalesce with a queued store of the same key
+		if( writeBehindEntries.replace( key, entry ) != null )
+			return;
+
+		// We count the entry before queueing it, so that the depth cannot
+		// drop below zero when the entry is removed
+		if( writeBehindQueueDepth.incrementAndGet() > maxWriteBehindQueueSize )
+		{
+			writeBehindQueueDepth.decrementAndGet();
+			droppedWriteCount.incrementAndGet();
+			return;
+		}
+
+		if( writeBehindEntries.putIfAbsent( key, entry ) == null )
+		{
+			writeBehindKeys.add( key );
+			drain();
+		}
+		else
+		{
+			writeBehindQueueDepth.decrementAndGet();
+			writeBehindEntries.put( key, entry );
+		}
+	}
+
+	/**
+	 * Makes sure a task is draining the write-behind queue.
+	 */
+	private void drain()
+	{
+		if( draining.compareAndSet( false, true ) )
+		{
+			getWriteBehindExecutor().execute( new Runnable()
+			{
+				public void run()
+				{
+					do
+					{
+						try
+						{
+							String key;
+							while( ( key = writeBehindKeys.poll() ) != null )
+							{
+								// Any invalidation after this point will
+								// either remove the entry before we do or
+								// have a later generation
+								long generation = invalidationGeneration.get();
+
+								CacheEntry entry = writeBehindEntries.remove( key );
+								if( entry == null )
+									// Removed by invalidation or reset
+									continue;
+
+								writeBehindQueueDepth.decrementAndGet();
+
+								Iterator<Cache> iterator = caches.iterator();
+								if( iterator.hasNext() )
+									iterator.next();
+								while( iterator.hasNext() )
+									if( !storeBehind( iterator.next(), key, entry, generation ) )
+										break;
+							}
+						}
+						finally
+						{
+							draining.set( false );
+						}
+
+						// Keys may have been queued after we polled the last
+						// one
+					}
+					while( !writeBehindKeys.isEmpty() && draining.compareAndSet( false, true ) );
+				}
+			} );
+		}
+	}
+
+	/**
+	 * Stores a dequeued entry in one of the caches, unless it was invalidated
+	 * since it was dequeued.
+	 * 
+	 * @param cache
+	 *        The cache
+	 * @param key
+	 *        The key
+	 * @param entry
+	 *        The entry
+	 * @param generation
+	 *        The invalidation generation when the entry was dequeued
+	 * @return False if the entry was invalidated
+	 */
+	private boolean storeBehind( Cache cache, String key, CacheEntry entry, long generation )
+	{
+		if( invalidationGeneration.get() != generation )
+		{
+			if( generation < forgottenGeneration )
+				return false;
+			if( getInvalidatedTags( entry, generation ) != null )
+				return false;
+		}
+
+		store( cache, key, entry );
+
+		// An invalidation that started while we were storing might have
+		// reached the cache before we did, so we will invalidate again
+		List<String> invalidated = getInvalidatedTags( entry, generation );
+		if( invalidated != null )
+		{
+			for( final String tag : invalidated )
+			{
+				run( cache, new CacheOperation()
+				{
+					public void run( Cache cache )
+					{
+						cache.invalidate( tag );
+					}
+				} );
+			}
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * The tags of an entry that were invalidated since a generation.
+	 * 
+	 * @param entry
+	 *        The entry
+	 * @param generation
+	 *        The invalidation generation
+	 * @return The invalidated tags or null
+	 */
+	private List<String> getInvalidatedTags( CacheEntry entry, long generation )
+	{
+		if( invalidationGeneration.get() == generation )
+			return null;
+
+		String[] tags = entry.getTags();
+		if( tags == null )
+			return null;
+
+		// If we no longer remember, we must assume the worst
+		boolean forgotten = generation < forgottenGeneration;
+
+		List<String> invalidated = null;
+		for( String tag : tags )
+		{
+			Long tagGeneration = invalidatedTags.get( tag );
+			if( forgotten || ( ( tagGeneration != null ) && ( tagGeneration > generation ) ) )
+			{
+				if( invalidated == null )
+					invalidated = new ArrayList<String>( tags.length );
+				invalidated.add( tag );
+			}
+		}
+		return invalidated;
+	}
+
+	/**
+	 * The executor for draining the write-behind queue: a single thread that
+	 * is let go when idle. At most one drain task is ever queued, so the
+	 * unbounded queue is safe.
+	 * 
+	 * @return The executor
+	 */
+	private ExecutorService getWriteBehindExecutor()
+	{
+		if( writeBehindExecutor == null )
+		{
+			synchronized( this )
+			{
+				if( writeBehindExecutor == null )
+					writeBehindExecutor = new ThreadPoolExecutor( 0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), createThreadFactory( "writeBehind" ) );
+			}
+		}
+
+		return writeBehindExecutor;
+	}
+
+	/**
+	 * The executor for running operations on all caches in parallel. When all
+	 * its threads are busy, the caller runs the operation itself. Since its
+	 * tasks never wait for other tasks, this cannot deadlock.
+	 * 
+	 * @return The executor
+	 */
+	private ExecutorService getFanOutExecutor()
+	{
+		if( fanOutExecutor == null )
+		{
+			synchronized( this )
+			{
+				if( fanOutExecutor == null )
+					fanOutExecutor = new ThreadPoolExecutor( 0, FAN_OUT_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), createThreadFactory( "fanOut" ), new ThreadPoolExecutor.CallerRunsPolicy() );
+			}
+		}
+
+		return fanOutExecutor;
+	}
+
+	/**
+	 * Creates a factory for daemon threads.
+	 * 
+	 * @param purpose
+	 *        Added to the thread names
+	 * @return The thread factory
+	 */
+	private ThreadFactory createThreadFactory( String purpose )
+	{
+		final String name = getClass().getSimpleName() + "-" + purpose + "-";
+		return new ThreadFactory()
+		{
+			public Thread newThread( Runnable runnable )
+			{
+				Thread thread = new Thread( runnable, name + threadCounter.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Runs an operation on all caches in parallel, waiting for all to
+	 * complete.
+	 * 
+	 * @param operation
+	 *        The operation
+	 */
+	private void fanOut( final CacheOperation operation )
+	{
+		ExecutorService executor = getFanOutExecutor();
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>( caches.size() );
+		Cache first = null;
+		for( final Cache cache : caches )
+		{
+			if( first == null )
+			{
+				// We'll run this one ourselves
+				first = cache;
+				continue;
+			}
+
+			futures.add( executor.submit( new Runnable()
+			{
+				public void run()
+				{
+					ChainCache.this.run( cache, operation );
+				}
+			} ) );
+		}
+
+		if( first != null )
+			run( first, operation );
+
+		for( Future<?> future : futures )
+		{
+			try
+			{
+				future.get();
+			}
+			catch( InterruptedException x )
+			{
+				// Restore interrupt status
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch( ExecutionException x )
+			{
+				logger.log( Level.WARNING, "Cache operation failed", x.getCause() );
+			}
+		}
+	}
+
+	/**
+	 * Fetches from a chained cache, guarded by its circuit breaker.
+	 * 
+	 * @param cache
+	 *        The chained cache
+	 * @param key
+	 *        The key
+	 * @return The entry or null
+	 */
+	private CacheEntry fetch( Cache cache, String key )
+	{
+		CircuitBreaker circuitBreaker = getCircuitBreaker( cache );
+		if( !circuitBreaker.allowRequest() )
+			return null;
+
+		try
+		{
+			CacheEntry entry = cache.fetch( key );
+			circuitBreaker.success();
+			return entry;
+		}
+		catch( RuntimeException x )
+		{
+			failed( cache, circuitBreaker, x );
+			return null;
+		}
+	}
+
+	/**
+	 * Stores in a chained cache, guarded by its circuit breaker.
+	 * 
+	 * @param cache
+	 *        The chained cache
+	 * @param key
+	 *        The key
+	 * @param entry
+	 *        The entry
+	 */
+	private void store( Cache cache, final String key, final CacheEntry entry )
+	{
+		run( cache, new CacheOperation()
+		{
+			public void run( Cache cache )
+			{
+				cache.store( key, entry );
+			}
+		} );
+	}
+
+	/**
+	 * Runs an operation on a chained cache, guarded by its circuit breaker.
+	 * 
+	 * @param cache
+	 *        The chained cache
+	 * @param operation
+	 *        The operation
+	 */
+	private void run( Cache cache, CacheOperation operation )
+	{
+		CircuitBreaker circuitBreaker = getCircuitBreaker( cache );
+		if( !circuitBreaker.allowRequest() )
+			return;
+
+		try
+		{
+			operation.run( cache );
+			circuitBreaker.success();
+		}
+		catch( RuntimeException x )
+		{
+			failed( cache, circuitBreaker, x );
+		}
+	}
+
+	/**
+	 * Reports a failed operation on a chained cache.
+	 * 
+	 * @param cache
+	 *        The chained cache
+	 * @param circuitBreaker
+	 *        The cache's circuit breaker
+	 * @param x
+	 *        The exception
+	 */
+	private void failed( Cache cache, CircuitBreaker circuitBreaker, RuntimeException x )
+	{
+		if( circuitBreaker.failure() )
+			logger.log( Level.WARNING, "Circuit breaker opened for " + cache + ", skipping it for " + circuitBreaker.getOpenDuration() + " ms", x );
+		else
+			logger.log( Level.WARNING, "Cache operation failed: " + cache, x );
+	}
 }
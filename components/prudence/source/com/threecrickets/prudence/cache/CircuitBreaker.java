@@ -0,0 +1,342 @@
+/**
+ * Copyright 2009-2012 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Protects callers from a backend that is failing, by skipping calls to it
+ * instantly instead of waiting for each call to time out.
+ * <p>
+ * The breaker starts closed, letting all calls through. After a number of
+ * consecutive failures it opens, and calls are skipped. Once the open
+ * duration has passed, it becomes half-open and lets a probe call through: if
+ * the probe succeeds the breaker closes, and if it fails the breaker opens
+ * again.
+ * <p>
+ * Callers must check {@link #allowRequest()} before each call and then report
+ * either {@link #success()} or {@link #failure()}.
+ * <p>
+ * Instances are thread safe.
+ * 
+ * @author Tal Liron
+ */
+public class CircuitBreaker
+{
+	//
+	// Constants
+	//
+
+	/**
+	 * Calls are let through.
+	 */
+	public static final int CLOSED = 0;
+
+	/**
+	 * Calls are skipped.
+	 */
+	public static final int OPEN = 1;
+
+	/**
+	 * A probe call is let through.
+	 */
+	public static final int HALF_OPEN = 2;
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor with a failure threshold of 5 and an open duration of 10
+	 * seconds.
+	 */
+	public CircuitBreaker()
+	{
+		this( 5, 10000 );
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param failureThreshold
+	 *        The number of consecutive failures after which to open
+	 * @param openDuration
+	 *        The time in milliseconds to stay open before probing
+	 */
+	public CircuitBreaker( int failureThreshold, long openDuration )
+	{
+		this.failureThreshold = failureThreshold;
+		this.openDuration = openDuration;
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The number of consecutive failures after which to open.
+	 * 
+	 * @return The failure threshold
+	 * @see #setFailureThreshold(int)
+	 */
+	public int getFailureThreshold()
+	{
+		return failureThreshold;
+	}
+
+	/**
+	 * @param failureThreshold
+	 *        The failure threshold
+	 * @see #getFailureThreshold()
+	 */
+	public void setFailureThreshold( int failureThreshold )
+	{
+		this.failureThreshold = failureThreshold;
+	}
+
+	/**
+	 * The time in milliseconds to stay open before letting a probe call
+	 * through. This is also the time after which a probe that never reported
+	 * back is given up on.
+	 * 
+	 * @return The open duration
+	 * @see #setOpenDuration(long)
+	 */
+	public long getOpenDuration()
+	{
+		return openDuration;
+	}
+
+	/**
+	 * @param openDuration
+	 *        The open duration
+	 * @see #getOpenDuration()
+	 */
+	public void setOpenDuration( long openDuration )
+	{
+		this.openDuration = openDuration;
+	}
+
+	/**
+	 * The current state.
+	 * 
+	 * @return {@link #CLOSED}, {@link #OPEN} or {@link #HALF_OPEN}
+	 */
+	public int getState()
+	{
+		return stateOf( state.get() );
+	}
+
+	/**
+	 * Whether calls are currently let through without probing.
+	 * 
+	 * @return True if closed
+	 */
+	public boolean isClosed()
+	{
+		return stateOf( state.get() ) == CLOSED;
+	}
+
+	/**
+	 * The current number of consecutive failures.
+	 * 
+	 * @return The failure count
+	 */
+	public int getConsecutiveFailures()
+	{
+		return consecutiveFailures.get();
+	}
+
+	/**
+	 * The number of times the breaker has opened.
+	 * 
+	 * @return The open count
+	 */
+	public long getOpenCount()
+	{
+		return openCount.get();
+	}
+
+	/**
+	 * The number of calls skipped because the breaker was open.
+	 * 
+	 * @return The skipped call count
+	 */
+	public long getSkippedCount()
+	{
+		return skippedCount.get();
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Whether a call may be made now. If true, the caller must report the
+	 * result via {@link #success()} or {@link #failure()}.
+	 * 
+	 * @return True if the call may be made
+	 */
+	public boolean allowRequest()
+	{
+		long current = state.get();
+		if( stateOf( current ) == CLOSED )
+			return true;
+
+		// Open, or half-open with a probe that might never report back (the
+		// timestamp changes together with the state, so only one caller can
+		// win the probe)
+		long now = System.currentTimeMillis();
+		if( ( now - timestampOf( current ) >= openDuration ) && state.compareAndSet( current, pack( HALF_OPEN, now ) ) )
+			return true;
+
+		skippedCount.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Reports a successful call.
+	 * 
+	 * @return True if this closed the breaker
+	 */
+	public boolean success()
+	{
+		consecutiveFailures.set( 0 );
+		while( true )
+		{
+			long current = state.get();
+			if( stateOf( current ) == CLOSED )
+				return false;
+			if( state.compareAndSet( current, pack( CLOSED, 0 ) ) )
+				return true;
+		}
+	}
+
+	/**
+	 * Reports a failed call.
+	 * 
+	 * @return True if this opened the breaker
+	 */
+	public boolean failure()
+	{
+		int failures = consecutiveFailures.incrementAndGet();
+		long current = state.get();
+		int currentState = stateOf( current );
+		if( ( currentState == HALF_OPEN ) || ( ( currentState == CLOSED ) && ( failures >= failureThreshold ) ) )
+		{
+			if( state.compareAndSet( current, pack( OPEN, System.currentTimeMillis() ) ) )
+			{
+				openCount.incrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Closes the breaker and forgets all failures.
+	 */
+	public void reset()
+	{
+		consecutiveFailures.set( 0 );
+		state.set( pack( CLOSED, 0 ) );
+	}
+
+	//
+	// Object
+	//
+
+	@Override
+	public String toString()
+	{
+		int currentState = getState();
+		return currentState == CLOSED ? "closed" : currentState == OPEN ? "open" : "half-open";
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The number of consecutive failures after which to open.
+	 */
+	private volatile int failureThreshold;
+
+	/**
+	 * The time in milliseconds to stay open before probing.
+	 */
+	private volatile long openDuration;
+
+	/**
+	 * The current state in the low bits, and when we last opened or let a
+	 * probe through in the high bits, so that both change atomically.
+	 */
+	private final AtomicLong state = new AtomicLong( pack( CLOSED, 0 ) );
+
+	/**
+	 * The number of low bits used for the state.
+	 */
+	private static final int STATE_BITS = 2;
+
+	/**
+	 * The current number of consecutive failures.
+	 */
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+	/**
+	 * The number of times the breaker has opened.
+	 */
+	private final AtomicLong openCount = new AtomicLong();
+
+	/**
+	 * The number of calls skipped because the breaker was open.
+	 */
+	private final AtomicLong skippedCount = new AtomicLong();
+
+	/**
+	 * Combines a state and its timestamp.
+	 * 
+	 * @param state
+	 *        The state
+	 * @param timestamp
+	 *        The timestamp
+	 * @return The combined value
+	 */
+	private static long pack( int state, long timestamp )
+	{
+		return ( timestamp << STATE_BITS ) | state;
+	}
+
+	/**
+	 * The state of a combined value.
+	 * 
+	 * @param packed
+	 *        The combined value
+	 * @return The state
+	 */
+	private static int stateOf( long packed )
+	{
+		return (int) ( packed & ( ( 1 << STATE_BITS ) - 1 ) );
+	}
+
+	/**
+	 * The timestamp of a combined value.
+	 * 
+	 * @param packed
+	 *        The combined value
+	 * @return The timestamp
+	 */
+	private static long timestampOf( long packed )
+	{
+		return packed >>> STATE_BITS;
+	}
+}
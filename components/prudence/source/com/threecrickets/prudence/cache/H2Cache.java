@@ -54,6 +54,15 @@ public class H2Cache extends SqlCache
 		// debug=true;
 	}
 
+	// //////////////////////////////////////////////////////////////////////////
+	// Protected
+
+	@Override
+	protected boolean isMergeSupported()
+	{
+		return true;
+	}
+
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
@@ -11,13 +11,20 @@
 
 package com.threecrickets.prudence.cache;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.EntryListener;
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
 import com.hazelcast.core.MultiMap;
 
 /**
@@ -27,10 +34,25 @@ import com.hazelcast.core.MultiMap;
  * "com.threecrickets.prudence.prudence.cache" and
  * "com.threecrickets.prudence.prduence.cacheTags" respectively. Refer to
  * Hazelcast documentation for instructions on how to configure them.
+ * <p>
+ * Entries are stored with their remaining lifetime (including the grace
+ * period) as a Hazelcast TTL, so that Hazelcast evicts them by itself. Since
+ * Hazelcast only supports a TTL for synchronous puts, {@link AsyncCache}
+ * operations are run on the executor.
+ * <p>
+ * When an entry is evicted or removed, its keys are removed from the tag
+ * multimap by a listener on the member that owns the entry. Members on which
+ * no instance of this class was created have no listener, so
+ * {@link #prune()} also removes tagged keys that are no longer in the cache.
+ * <p>
+ * For read-mostly sites, consider enabling a near cache for the map in the
+ * Hazelcast configuration, so that hits do not require a remote call to the
+ * owning member. Hazelcast invalidates near-cached entries when they are
+ * changed or removed anywhere in the cluster.
  * 
  * @author Tal Liron
  */
-public class HazelcastCache implements Cache
+public class HazelcastCache extends AsyncCacheBase
 {
 	//
 	// Construction
@@ -76,6 +98,8 @@ public class HazelcastCache implements Cache
 				throw new RuntimeException( "Cannot find a Hazelcast instance named \"com.threecrickets.prudence\"" );
 		}
 		this.hazelcast = hazelcast;
+
+		getCache().addLocalEntryListener( new Untagger() );
 	}
 
 	//
@@ -84,10 +108,15 @@ public class HazelcastCache implements Cache
 
 	public void store( String key, CacheEntry entry )
 	{
+		long timeToLive = entry.getGraceExpirationDate().getTime() - System.currentTimeMillis();
+		if( timeToLive <= 0 )
+			// Would be stale by the time we fetch it
+			return;
+
 		logger.fine( "Store: " + key );
 
-		ConcurrentMap<String, CacheEntry> cache = getCache();
-		cache.put( key, entry );
+		IMap<String, CacheEntry> cache = getCache();
+		cache.put( key, entry, timeToLive, TimeUnit.MILLISECONDS );
 
 		String[] tags = entry.getTags();
 		if( ( tags != null ) && ( tags.length > 0 ) )
@@ -100,11 +129,11 @@ public class HazelcastCache implements Cache
 
 	public CacheEntry fetch( String key )
 	{
-		ConcurrentMap<String, CacheEntry> cache = getCache();
+		IMap<String, CacheEntry> cache = getCache();
 		CacheEntry entry = cache.get( key );
 		if( entry != null )
 		{
-			if( new Date().after( entry.getExpirationDate() ) )
+			if( new Date().after( entry.getGraceExpirationDate() ) )
 			{
 				logger.fine( "Stale entry: " + key );
 				cache.remove( key );
@@ -123,21 +152,56 @@ public class HazelcastCache implements Cache
 	{
 		MultiMap<String, String> tagMap = getTagMap();
 		Collection<String> tagged = tagMap.remove( tag );
-		if( tagged != null )
+		if( ( tagged != null ) && !tagged.isEmpty() )
 		{
-			ConcurrentMap<String, CacheEntry> cache = getCache();
+			// Send all removals before waiting for any of them, so that
+			// invalidating many keys takes about one round trip per member
+			// instead of one per key
+			IMap<String, CacheEntry> cache = getCache();
+			ArrayList<Future<CacheEntry>> removed = new ArrayList<Future<CacheEntry>>( tagged.size() );
 			for( String key : tagged )
 			{
 				logger.fine( "Invalidate " + tag + ": " + key );
-				cache.remove( key );
+				removed.add( cache.removeAsync( key ) );
+			}
+
+			for( Future<CacheEntry> future : removed )
+			{
+				try
+				{
+					future.get();
+				}
+				catch( InterruptedException x )
+				{
+					// Restore interrupt status
+					Thread.currentThread().interrupt();
+					return;
+				}
+				catch( ExecutionException x )
+				{
+					logger.log( Level.WARNING, "Could not invalidate " + tag, x.getCause() );
+				}
 			}
 		}
 	}
 
 	public void prune()
 	{
-		// This is too expensive to do in Hazelcast (we'll have to traverse all
-		// cached entries) and not worth it.
+		// Entries are evicted by Hazelcast according to their TTL, but tagged
+		// keys might linger on members without our listener
+		IMap<String, CacheEntry> cache = getCache();
+		MultiMap<String, String> tagMap = getTagMap();
+		for( String tag : tagMap.localKeySet() )
+		{
+			Collection<String> tagged = tagMap.get( tag );
+			if( tagged != null )
+				for( String key : new ArrayList<String>( tagged ) )
+					if( !cache.containsKey( key ) )
+						untag( key, new String[]
+						{
+							tag
+						} );
+		}
 	}
 
 	public void reset()
@@ -176,7 +240,7 @@ public class HazelcastCache implements Cache
 	 * 
 	 * @return The cache
 	 */
-	private ConcurrentMap<String, CacheEntry> getCache()
+	private IMap<String, CacheEntry> getCache()
 	{
 		return hazelcast.getMap( cacheName );
 	}
@@ -190,4 +254,77 @@ public class HazelcastCache implements Cache
 	{
 		return hazelcast.getMultiMap( cacheTagsName );
 	}
+
+	/**
+	 * Removes a key from the tag map.
+	 * 
+	 * @param key
+	 *        The key
+	 * @param tags
+	 *        The tags under which the key might be
+	 */
+	private void untag( String key, String[] tags )
+	{
+		if( ( tags == null ) || ( tags.length == 0 ) )
+			return;
+
+		MultiMap<String, String> tagMap = getTagMap();
+		for( String tag : tags )
+			tagMap.remove( tag, key );
+
+		// If the key was stored again while we were removing it, we might
+		// have removed the new entry's tags, so we will restore them
+		CacheEntry entry = getCache().get( key );
+		if( entry != null )
+		{
+			String[] currentTags = entry.getTags();
+			if( currentTags != null )
+				for( String tag : currentTags )
+					tagMap.put( tag, key );
+		}
+	}
+
+	/**
+	 * Removes the keys of evicted and removed entries from the tag map.
+	 */
+	private class Untagger implements EntryListener<String, CacheEntry>
+	{
+		//
+		// EntryListener
+		//
+
+		public void entryAdded( EntryEvent<String, CacheEntry> event )
+		{
+		}
+
+		public void entryUpdated( EntryEvent<String, CacheEntry> event )
+		{
+		}
+
+		public void entryRemoved( EntryEvent<String, CacheEntry> event )
+		{
+			untag( event );
+		}
+
+		public void entryEvicted( EntryEvent<String, CacheEntry> event )
+		{
+			untag( event );
+		}
+
+		// //////////////////////////////////////////////////////////////////////////
+		// Private
+
+		/**
+		 * Removes the event's key from the tag map.
+		 * 
+		 * @param event
+		 *        The event
+		 */
+		private void untag( EntryEvent<String, CacheEntry> event )
+		{
+			CacheEntry entry = event.getValue();
+			if( entry != null )
+				HazelcastCache.this.untag( event.getKey(), entry.getTags() );
+		}
+	}
 }
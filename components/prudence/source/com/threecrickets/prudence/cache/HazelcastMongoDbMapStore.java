@@ -15,6 +15,7 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -40,6 +41,11 @@ import com.threecrickets.prudence.util.IoUtil;
  * {@link Component}'s context.
  * <p>
  * The MongoDB database will be "prudence".
+ * <p>
+ * Each document is replaced atomically by an upsert, using the collection's
+ * write concern. Bulk loads are split into batches. Bulk stores are upserted
+ * one document at a time, as this version of the MongoDB driver has no bulk
+ * write operation.
  * 
  * @author Tal Liron
  * @param <K>
@@ -105,6 +111,28 @@ public abstract class HazelcastMongoDbMapStore<K, V> implements MapStore<K, V>
 		return collection;
 	}
 
+	/**
+	 * The maximum number of entries queried in a single MongoDB operation.
+	 * Defaults to 500.
+	 * 
+	 * @return The batch size
+	 * @see #setBatchSize(int)
+	 */
+	public int getBatchSize()
+	{
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *        The batch size
+	 * @see #getBatchSize()
+	 */
+	public void setBatchSize( int batchSize )
+	{
+		this.batchSize = batchSize;
+	}
+
 	//
 	// MapStore
 	//
@@ -129,23 +157,29 @@ public abstract class HazelcastMongoDbMapStore<K, V> implements MapStore<K, V>
 	public Map<K, V> loadAll( Collection<K> keys )
 	{
 		DBCollection collection = getCollection();
-		DBObject query = new BasicDBObject();
-		DBObject in = new BasicDBObject();
-		BasicDBList keysList = new BasicDBList();
-
-		query.put( "_id", in );
-		in.put( "$in", keysList );
-		keysList.addAll( keys );
+		int batchSize = this.batchSize;
 
 		HashMap<K, V> map = new HashMap<K, V>();
-		for( DBCursor cursor = collection.find( query ); cursor.hasNext(); )
+		for( Iterator<K> i = keys.iterator(); i.hasNext(); )
 		{
-			DBObject value = cursor.next();
-			@SuppressWarnings("unchecked")
-			K key = (K) value.get( "_id" );
-			@SuppressWarnings("unchecked")
-			V fromBinary = (V) fromBinary( (byte[]) value.get( "value" ) );
-			map.put( key, fromBinary );
+			DBObject query = new BasicDBObject();
+			DBObject in = new BasicDBObject();
+			BasicDBList keysList = new BasicDBList();
+
+			query.put( "_id", in );
+			in.put( "$in", keysList );
+			while( i.hasNext() && ( keysList.size() < batchSize ) )
+				keysList.add( i.next() );
+
+			for( DBCursor cursor = collection.find( query ).batchSize( batchSize ); cursor.hasNext(); )
+			{
+				DBObject value = cursor.next();
+				@SuppressWarnings("unchecked")
+				K key = (K) value.get( "_id" );
+				@SuppressWarnings("unchecked")
+				V fromBinary = (V) fromBinary( (byte[]) value.get( "value" ) );
+				map.put( key, fromBinary );
+			}
 		}
 
 		return map;
@@ -172,22 +206,14 @@ public abstract class HazelcastMongoDbMapStore<K, V> implements MapStore<K, V>
 
 	public void store( K key, V value )
 	{
-		DBCollection collection = getCollection();
-		DBObject query = new BasicDBObject();
-		DBObject update = new BasicDBObject();
-		DBObject set = new BasicDBObject();
-
-		query.put( "_id", key );
-		update.put( "$set", set );
-		set.put( "value", toBinary( value ) );
-
-		collection.update( query, update, true, false );
+		store( getCollection(), key, value );
 	}
 
 	public void storeAll( Map<K, V> map )
 	{
+		DBCollection collection = getCollection();
 		for( Map.Entry<K, V> entry : map.entrySet() )
-			store( entry.getKey(), entry.getValue() );
+			store( collection, entry.getKey(), entry.getValue() );
 	}
 
 	public void delete( K key )
@@ -232,6 +258,34 @@ public abstract class HazelcastMongoDbMapStore<K, V> implements MapStore<K, V>
 	 */
 	private volatile DBCollection collection;
 
+	/**
+	 * The maximum number of entries queried in a single MongoDB operation.
+	 */
+	private volatile int batchSize = 500;
+
+	/**
+	 * Upserts a document.
+	 * 
+	 * @param collection
+	 *        The MongoDB collection
+	 * @param key
+	 *        The key
+	 * @param value
+	 *        The value
+	 */
+	private void store( DBCollection collection, K key, V value )
+	{
+		DBObject query = new BasicDBObject();
+		DBObject update = new BasicDBObject();
+		DBObject set = new BasicDBObject();
+
+		query.put( "_id", key );
+		update.put( "$set", set );
+		set.put( "value", toBinary( value ) );
+
+		collection.update( query, update, true, false );
+	}
+
 	/**
 	 * Serialize an object into a BSON binary.
 	 * 
@@ -12,16 +12,34 @@
 package com.threecrickets.prudence.cache;
 
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An in-process (heap) memory cache.
  * <p>
+ * When the cache is full, entries are evicted according to a segmented LRU
+ * policy weighed by entry size: new entries enter a "probation" segment, and
+ * are promoted to a "protected" segment only if they are fetched again.
+ * Eviction always starts with the least recently used probationary entries, so
+ * that a burst of one-time entries cannot flush out the hot ones. However, a
+ * new entry is never evicted while there are protected entries that could be
+ * demoted and evicted instead. Eviction happens in constant time per evicted
+ * entry and never scans the cache.
+ * <p>
+ * Tags are indexed in both directions, and a key is removed from the index
+ * whenever its entry leaves the cache, whether it was replaced, evicted,
+ * pruned, invalidated or found stale. The index thus never holds more than the
+ * tags of the entries currently in the cache.
+ * <p>
  * Note that this implementation does not check for overall heap consumption or
  * free system memory. Make sure you set the maximum size appropriate for your
  * system!
@@ -86,6 +104,77 @@ public class InProcessMemoryCache implements Cache
 	public void setMaxSize( long maxSize )
 	{
 		this.maxSize = maxSize;
+		rebalance();
+	}
+
+	/**
+	 * The maximum share of {@link #getMaxSize()} that can be occupied by the
+	 * protected segment, meaning entries that have been fetched at least once
+	 * since they were stored. Defaults to 0.8.
+	 * 
+	 * @return The protected ratio, between 0 and 1
+	 * @see #setProtectedRatio(float)
+	 */
+	public float getProtectedRatio()
+	{
+		return protectedRatio;
+	}
+
+	/**
+	 * @param protectedRatio
+	 *        The protected ratio, between 0 and 1
+	 * @see #getProtectedRatio()
+	 */
+	public void setProtectedRatio( float protectedRatio )
+	{
+		this.protectedRatio = protectedRatio;
+		rebalance();
+	}
+
+	/**
+	 * The number of entries evicted in order to make room for new entries.
+	 * 
+	 * @return The eviction count
+	 */
+	public long getEvictionCount()
+	{
+		return evictionCount.get();
+	}
+
+	/**
+	 * The number of distinct tags of the entries currently in the cache.
+	 * 
+	 * @return The tag count
+	 */
+	public int getTagCount()
+	{
+		evictionLock.lock();
+		try
+		{
+			return tagKeys.size();
+		}
+		finally
+		{
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * The number of entries currently in the cache that have tags.
+	 * 
+	 * @return The tagged entry count
+	 */
+	public int getTaggedCount()
+	{
+		evictionLock.lock();
+		try
+		{
+			return keyTags.size();
+		}
+		finally
+		{
+			evictionLock.unlock();
+		}
 	}
 
 	//
@@ -99,49 +188,37 @@ public class InProcessMemoryCache implements Cache
 		if( debug )
 			System.out.println( "Store: " + key );
 
+		if( entrySize > maxSize )
+		{
+			// No room for us :(
+			discard( key );
+
+			if( debug )
+				System.out.println( "No room in cache for " + entrySize + " (" + size.get() + ", " + maxSize + ")" );
+
+			return;
+		}
+
 		CacheEntry removed = cache.put( key, entry );
 		if( removed != null )
 			size.addAndGet( -removed.getSize() );
 		size.addAndGet( entrySize );
 
-		if( size.get() > maxSize )
+		evictionLock.lock();
+		try
 		{
-			// Note: We are only attempting pruning once. However, under heavy
-			// concurrency it might be possible that a subsequent attempt to
-			// prune would succeed in making room for us. Is it worth retrying?
-			// This issue should be given more thought. TODO.
-
-			prune();
-
-			if( size.get() > maxSize )
-			{
-				// No room for us :(
-				removed = cache.remove( key );
-				if( removed != null )
-					size.addAndGet( -entrySize );
-
-				if( debug )
-					System.out.println( "No room in cache for " + entrySize + " (" + size.get() + ", " + maxSize + ")" );
-
-				return;
-			}
+			// (Re)enter probation
+			Integer protectedSize = protectedSegment.remove( key );
+			if( protectedSize != null )
+				protectedWeight -= protectedSize;
+			probationSegment.put( key, entrySize );
+
+			index( key );
+			evict( key );
 		}
-
-		String[] tags = entry.getTags();
-		if( ( tags != null ) && ( tags.length > 0 ) )
+		finally
 		{
-			for( String tag : tags )
-			{
-				Set<String> tagged = cacheTags.get( tag );
-				if( tagged == null )
-				{
-					tagged = new CopyOnWriteArraySet<String>();
-					Set<String> existing = cacheTags.putIfAbsent( tag, tagged );
-					if( existing != null )
-						tagged = existing;
-				}
-				tagged.add( key );
-			}
+			evictionLock.unlock();
 		}
 	}
 
@@ -150,21 +227,32 @@ public class InProcessMemoryCache implements Cache
 		CacheEntry entry = cache.get( key );
 		if( entry != null )
 		{
-			if( new Date().after( entry.getExpirationDate() ) )
+			if( new Date().after( entry.getGraceExpirationDate() ) )
 			{
 				if( debug )
 					System.out.println( "Stale entry: " + key );
 
-				entry = cache.remove( key );
-				if( entry != null )
-					size.addAndGet( -entry.getSize() );
-				else
-					entry = null;
+				discard( key );
 			}
 			else
 			{
 				if( debug )
 					System.out.println( "Fetched: " + key );
+
+				// Recording the access is best-effort: we would rather lose
+				// some precision in the eviction order than block fetches
+				if( evictionLock.tryLock() )
+				{
+					try
+					{
+						access( key );
+					}
+					finally
+					{
+						evictionLock.unlock();
+					}
+				}
+
 				return entry;
 			}
 		}
@@ -176,7 +264,17 @@ public class InProcessMemoryCache implements Cache
 
 	public void invalidate( String tag )
 	{
-		Set<String> tagged = cacheTags.remove( tag );
+		Set<String> tagged;
+		evictionLock.lock();
+		try
+		{
+			tagged = tagKeys.remove( tag );
+		}
+		finally
+		{
+			evictionLock.unlock();
+		}
+
 		if( tagged != null )
 		{
 			for( String key : tagged )
@@ -184,9 +282,7 @@ public class InProcessMemoryCache implements Cache
 				if( debug )
 					System.out.println( "Invalidate " + tag + ": " + key );
 
-				CacheEntry removed = cache.remove( key );
-				if( removed != null )
-					size.addAndGet( -removed.getSize() );
+				discard( key );
 			}
 		}
 	}
@@ -196,26 +292,35 @@ public class InProcessMemoryCache implements Cache
 		Date now = new Date();
 		for( Map.Entry<String, CacheEntry> entry : cache.entrySet() )
 		{
-			if( now.after( entry.getValue().getExpirationDate() ) )
+			if( now.after( entry.getValue().getGraceExpirationDate() ) )
 			{
-				CacheEntry removed = cache.remove( entry.getKey() );
-				if( removed != null )
-				{
-					if( debug )
-						System.out.println( "Pruned " + entry.getKey() );
-
-					size.addAndGet( -removed.getSize() );
-				}
+				if( discard( entry.getKey() ) && debug )
+					System.out.println( "Pruned " + entry.getKey() );
 			}
 		}
 	}
 
 	public void reset()
 	{
-		// This is not atomic, but does it matter?
+		// This is not atomic with concurrent stores, but does it matter?
 
-		cache.clear();
-		cacheTags.clear();
+		evictionLock.lock();
+		try
+		{
+			// Stores index themselves while holding the lock, so clearing the
+			// cache here keeps the tag index in agreement with it
+			cache.clear();
+			size.set( 0 );
+			probationSegment.clear();
+			protectedSegment.clear();
+			protectedWeight = 0;
+			tagKeys.clear();
+			keyTags.clear();
+		}
+		finally
+		{
+			evictionLock.unlock();
+		}
 	}
 
 	// //////////////////////////////////////////////////////////////////////////
@@ -227,9 +332,15 @@ public class InProcessMemoryCache implements Cache
 	private final ConcurrentMap<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>();
 
 	/**
-	 * The tagged keys, for invalidation.
+	 * The keys per tag, for invalidation. Guarded by the eviction lock.
+	 */
+	private final HashMap<String, Set<String>> tagKeys = new HashMap<String, Set<String>>();
+
+	/**
+	 * The indexed tags per key, for cleaning up {@link #tagKeys}. Guarded by
+	 * the eviction lock.
 	 */
-	private final ConcurrentMap<String, Set<String>> cacheTags = new ConcurrentHashMap<String, Set<String>>();
+	private final HashMap<String, String[]> keyTags = new HashMap<String, String[]>();
 
 	/**
 	 * The current cache size.
@@ -241,8 +352,246 @@ public class InProcessMemoryCache implements Cache
 	 */
 	private volatile long maxSize;
 
+	/**
+	 * The maximum share of the max cache size that can be occupied by the
+	 * protected segment.
+	 */
+	private volatile float protectedRatio = 0.8f;
+
+	/**
+	 * The number of evicted entries.
+	 */
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * Guards the eviction segments and the tag index.
+	 */
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	/**
+	 * Keys that have been stored but not fetched since, with their sizes, in
+	 * access order.
+	 */
+	private final LinkedHashMap<String, Integer> probationSegment = new LinkedHashMap<String, Integer>( 16, 0.75f, true );
+
+	/**
+	 * Keys that have been fetched since they were stored, with their sizes, in
+	 * access order.
+	 */
+	private final LinkedHashMap<String, Integer> protectedSegment = new LinkedHashMap<String, Integer>( 16, 0.75f, true );
+
+	/**
+	 * The total size of the protected segment.
+	 */
+	private long protectedWeight;
+
 	/**
 	 * Whether to print debug messages to standard out.
 	 */
 	private volatile boolean debug = false;
+
+	/**
+	 * Removes an entry from the cache and from the eviction segments.
+	 * 
+	 * @param key
+	 *        The key
+	 * @return True if an entry was removed
+	 */
+	private boolean discard( String key )
+	{
+		CacheEntry removed = cache.remove( key );
+		if( removed != null )
+			size.addAndGet( -removed.getSize() );
+
+		evictionLock.lock();
+		try
+		{
+			probationSegment.remove( key );
+			Integer protectedSize = protectedSegment.remove( key );
+			if( protectedSize != null )
+				protectedWeight -= protectedSize;
+
+			index( key );
+		}
+		finally
+		{
+			evictionLock.unlock();
+		}
+
+		return removed != null;
+	}
+
+	/**
+	 * Makes the tag index agree with the entry currently cached for a key.
+	 * Since every change to the cache is followed by a call to this method,
+	 * the index ends up agreeing with the cache even if changes race. Must be
+	 * called while holding the eviction lock.
+	 * 
+	 * @param key
+	 *        The key
+	 */
+	private void index( String key )
+	{
+		CacheEntry entry = cache.get( key );
+		String[] tags = entry != null ? entry.getTags() : null;
+		if( ( tags != null ) && ( tags.length == 0 ) )
+			tags = null;
+
+		String[] indexedTags = tags != null ? keyTags.put( key, tags.clone() ) : keyTags.remove( key );
+
+		if( indexedTags != null )
+		{
+			for( String tag : indexedTags )
+			{
+				if( ( tags != null ) && contains( tags, tag ) )
+					continue;
+
+				Set<String> tagged = tagKeys.get( tag );
+				if( ( tagged != null ) && tagged.remove( key ) && tagged.isEmpty() )
+					tagKeys.remove( tag );
+			}
+		}
+
+		if( tags != null )
+		{
+			for( String tag : tags )
+			{
+				Set<String> tagged = tagKeys.get( tag );
+				if( tagged == null )
+				{
+					tagged = new HashSet<String>();
+					tagKeys.put( tag, tagged );
+				}
+				tagged.add( key );
+			}
+		}
+	}
+
+	/**
+	 * Whether an array contains a string.
+	 * 
+	 * @param array
+	 *        The array
+	 * @param string
+	 *        The string
+	 * @return True if contained
+	 */
+	private static boolean contains( String[] array, String string )
+	{
+		for( String element : array )
+			if( element.equals( string ) )
+				return true;
+		return false;
+	}
+
+	/**
+	 * Records a cache hit, promoting the key from probation to the protected
+	 * segment. Must be called while holding the eviction lock.
+	 * 
+	 * @param key
+	 *        The key
+	 */
+	private void access( String key )
+	{
+		Integer entrySize = probationSegment.remove( key );
+		if( entrySize != null )
+		{
+			protectedSegment.put( key, entrySize );
+			protectedWeight += entrySize;
+			demote();
+		}
+		else
+			// Just touch it
+			protectedSegment.get( key );
+	}
+
+	/**
+	 * Demotes the least recently used protected entries back to probation
+	 * while the protected segment is too big. Must be called while holding the
+	 * eviction lock.
+	 */
+	private void demote()
+	{
+		long maxProtectedWeight = (long) ( maxSize * protectedRatio );
+		for( Iterator<Map.Entry<String, Integer>> i = protectedSegment.entrySet().iterator(); ( protectedWeight > maxProtectedWeight ) && i.hasNext(); )
+		{
+			Map.Entry<String, Integer> eldest = i.next();
+			i.remove();
+			protectedWeight -= eldest.getValue();
+			probationSegment.put( eldest.getKey(), eldest.getValue() );
+		}
+	}
+
+	/**
+	 * Makes the segments fit a changed max size or protected ratio.
+	 */
+	private void rebalance()
+	{
+		evictionLock.lock();
+		try
+		{
+			demote();
+			evict( null );
+		}
+		finally
+		{
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Evicts entries until the cache fits in the max size, starting with the
+	 * least recently used probationary entries. The newest entry is evicted
+	 * only once the protected segment is empty: before that, the least
+	 * recently used protected entries are demoted and evicted ahead of it.
+	 * Must be called while holding the eviction lock.
+	 * 
+	 * @param newest
+	 *        The key of the entry that was just stored, or null
+	 */
+	private void evict( String newest )
+	{
+		while( size.get() > maxSize )
+		{
+			String victim = null;
+			Iterator<Map.Entry<String, Integer>> i = probationSegment.entrySet().iterator();
+			if( i.hasNext() )
+			{
+				// The newest entry is always the most recently used on
+				// probation, so it is the eldest only if it is alone there
+				Map.Entry<String, Integer> eldest = i.next();
+				if( !eldest.getKey().equals( newest ) || protectedSegment.isEmpty() )
+				{
+					i.remove();
+					victim = eldest.getKey();
+				}
+			}
+
+			if( victim == null )
+			{
+				// Rather than drop the newest entry right away, demote the
+				// least recently used protected entry: on probation it would
+				// be older than the newest entry, so it is evicted first
+				i = protectedSegment.entrySet().iterator();
+				if( !i.hasNext() )
+					break;
+
+				Map.Entry<String, Integer> eldest = i.next();
+				i.remove();
+				protectedWeight -= eldest.getValue();
+				victim = eldest.getKey();
+			}
+
+			CacheEntry removed = cache.remove( victim );
+			if( removed != null )
+			{
+				size.addAndGet( -removed.getSize() );
+				evictionCount.incrementAndGet();
+				index( victim );
+
+				if( debug )
+					System.out.println( "Evicted: " + victim );
+			}
+		}
+	}
 }
@@ -12,9 +12,16 @@
 package com.threecrickets.prudence.cache;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -33,12 +40,23 @@ import net.spy.memcached.OperationTimeoutException;
  * turn this feature off to increase throughput at the cost of allowing for
  * inconsistent cache states.
  * <p>
+ * Stores and invalidations are natively asynchronous via {@link AsyncCache};
+ * fetches are run on the executor.
+ * <p>
+ * Tag timestamps are fetched in bulk. The tags last seen for each key are
+ * remembered locally, so that a hit on an unchanged entry takes a single
+ * multi-get no matter how many tags it has.
+ * <p>
+ * While memcached is failing, calls to it are skipped by a
+ * {@link CircuitBreaker}, so that fetches miss instantly instead of waiting
+ * for a timeout.
+ * <p>
  * Note that {@link #reset()} (which causes memcached flushing) works only if
  * you are the sole client of the memcached cluster.
  * 
  * @author Tal Liron
  */
-public class MemcachedCache implements Cache
+public class MemcachedCache extends AsyncCacheBase
 {
 	//
 	// Construction
@@ -110,54 +128,70 @@ public class MemcachedCache implements Cache
 	}
 
 	//
-	// Cache
+	// Attributes
 	//
 
-	public void store( String key, CacheEntry entry )
+	/**
+	 * The circuit breaker protecting calls to memcached.
+	 * 
+	 * @return The circuit breaker
+	 */
+	public CircuitBreaker getCircuitBreaker()
 	{
-		logger.info( "Store: " + key );
+		return circuitBreaker;
+	}
 
-		Object theEntry = entry;
+	//
+	// Cache
+	//
 
-		try
-		{
-			Future<Boolean> stored = memcached.set( key, (int) ( entry.getExpirationDate().getTime() / 1000 ), theEntry );
-			if( waitForCompletion )
-			{
-				try
-				{
-					stored.get();
-				}
-				catch( InterruptedException x )
-				{
-					// Restore interrupt status
-					Thread.currentThread().interrupt();
-				}
-				catch( ExecutionException x )
-				{
-				}
-			}
-			up();
-		}
-		catch( OperationTimeoutException x )
-		{
-			down();
-		}
+	public void store( String key, CacheEntry entry )
+	{
+		Future<Boolean> stored = set( key, entry );
+		if( waitForCompletion && ( stored != null ) )
+			complete( stored );
 	}
 
 	public CacheEntry fetch( String key )
 	{
+		if( !circuitBreaker.allowRequest() )
+			return null;
+
 		try
 		{
-			CacheEntry cacheEntry = (CacheEntry) memcached.get( key );
+			// We optimistically fetch the tags we saw for this key last time
+			// together with the entry, so that in the common case a hit costs
+			// only one round trip
+			String[] hintedTags = tagHints.get( key );
+			ArrayList<String> keys = new ArrayList<String>( hintedTags != null ? hintedTags.length + 1 : 1 );
+			keys.add( key );
+			if( hintedTags != null )
+				for( String tag : hintedTags )
+					keys.add( tagPrefix + tag );
+
+			Map<String, Object> values = memcached.getBulk( keys );
+			CacheEntry cacheEntry = (CacheEntry) values.get( key );
 			if( cacheEntry != null )
 			{
 				String[] tags = cacheEntry.getTags();
 				if( ( tags != null ) && ( tags.length > 0 ) )
 				{
+					hint( key, tags );
+
+					// Fetch tags we did not expect in one more round trip
+					keys.clear();
 					for( String tag : tags )
 					{
-						Long tagTimestamp = (Long) memcached.get( tagPrefix + tag );
+						String tagKey = tagPrefix + tag;
+						if( !values.containsKey( tagKey ) && !isHinted( hintedTags, tag ) )
+							keys.add( tagKey );
+					}
+					if( !keys.isEmpty() )
+						values.putAll( memcached.getBulk( keys ) );
+
+					for( String tag : tags )
+					{
+						Long tagTimestamp = (Long) values.get( tagPrefix + tag );
 						if( tagTimestamp != null )
 						{
 							if( tagTimestamp > cacheEntry.getModificationDate().getTime() )
@@ -167,23 +201,7 @@ public class MemcachedCache implements Cache
 
 								logger.info( "Invalidated tagged entry: " + key + ", tag: " + tag );
 
-								Future<Boolean> deleted = memcached.delete( key );
-								if( waitForCompletion )
-								{
-									try
-									{
-										deleted.get();
-									}
-									catch( InterruptedException x )
-									{
-										// Restore interrupt status
-										Thread.currentThread().interrupt();
-									}
-									catch( ExecutionException x )
-									{
-									}
-								}
-
+								delete( key );
 								cacheEntry = null;
 
 								break;
@@ -191,34 +209,22 @@ public class MemcachedCache implements Cache
 						}
 					}
 				}
+				else if( hintedTags != null )
+					tagHints.remove( key );
 
-				if( ( cacheEntry != null ) && new Date().after( cacheEntry.getExpirationDate() ) )
+				if( ( cacheEntry != null ) && new Date().after( cacheEntry.getGraceExpirationDate() ) )
 				{
 					// This should never happen with memcached, but it doesn't
 					// hurt to double check.
 
 					logger.info( "Stale entry: " + key );
 
-					Future<Boolean> deleted = memcached.delete( key );
-					if( waitForCompletion )
-					{
-						try
-						{
-							deleted.get();
-						}
-						catch( InterruptedException x )
-						{
-							// Restore interrupt status
-							Thread.currentThread().interrupt();
-						}
-						catch( ExecutionException x )
-						{
-						}
-					}
-
+					delete( key );
 					cacheEntry = null;
 				}
 			}
+			else if( hintedTags != null )
+				tagHints.remove( key );
 
 			if( logger.isLoggable( Level.FINE ) )
 			{
@@ -240,30 +246,9 @@ public class MemcachedCache implements Cache
 
 	public void invalidate( String tag )
 	{
-		try
-		{
-			Future<Boolean> set = memcached.set( tagPrefix + tag, 0, System.currentTimeMillis() );
-			if( waitForCompletion )
-			{
-				try
-				{
-					set.get();
-				}
-				catch( InterruptedException x )
-				{
-					// Restore interrupt status
-					Thread.currentThread().interrupt();
-				}
-				catch( ExecutionException x )
-				{
-				}
-			}
-			up();
-		}
-		catch( OperationTimeoutException x )
-		{
-			down();
-		}
+		Future<Boolean> set = set( tag );
+		if( waitForCompletion && ( set != null ) )
+			complete( set );
 	}
 
 	public void prune()
@@ -274,27 +259,14 @@ public class MemcachedCache implements Cache
 	public void reset()
 	{
 		// Only allow flushing if we are the sole clients of the cluster
-		if( soleClient )
+		if( soleClient && circuitBreaker.allowRequest() )
 		{
 			try
 			{
+				tagHints.clear();
 				Future<Boolean> flushed = memcached.flush();
 				if( waitForCompletion )
-				{
-					try
-					{
-						flushed.get();
-					}
-					catch( InterruptedException x )
-					{
-						// Restore interrupt status
-						Thread.currentThread().interrupt();
-					}
-					catch( ExecutionException x )
-					{
-					}
-				}
-				up();
+					complete( flushed );
 			}
 			catch( OperationTimeoutException x )
 			{
@@ -303,6 +275,46 @@ public class MemcachedCache implements Cache
 		}
 	}
 
+	//
+	// AsyncCache
+	//
+
+	/**
+	 * Stores an entry without waiting for memcached to acknowledge it. The
+	 * result is reported to the circuit breaker only if the returned future
+	 * is waited on.
+	 * 
+	 * @param key
+	 *        A key unique to the cache
+	 * @param entry
+	 *        The entry
+	 * @return A future for whether the entry was stored, or null if memcached
+	 *         is down
+	 */
+	@Override
+	public Future<Boolean> storeAsync( String key, CacheEntry entry )
+	{
+		Future<Boolean> stored = set( key, entry );
+		return stored != null ? new ReportingFuture( stored ) : null;
+	}
+
+	/**
+	 * Invalidates a tag without waiting for memcached to acknowledge it. The
+	 * result is reported to the circuit breaker only if the returned future
+	 * is waited on.
+	 * 
+	 * @param tag
+	 *        The tag
+	 * @return A future for whether the tag was invalidated, or null if
+	 *         memcached is down
+	 */
+	@Override
+	public Future<Boolean> invalidateAsync( String tag )
+	{
+		Future<Boolean> set = set( tag );
+		return set != null ? new ReportingFuture( set ) : null;
+	}
+
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
@@ -331,16 +343,180 @@ public class MemcachedCache implements Cache
 	 */
 	private final String tagPrefix;
 
+	/**
+	 * Maximum number of keys for which to remember tags.
+	 */
+	private static final int MAX_TAG_HINTS = 10000;
+
+	/**
+	 * The tags last seen for each key, used to fetch the tag timestamps
+	 * together with the entry.
+	 */
+	private final ConcurrentMap<String, String[]> tagHints = new ConcurrentHashMap<String, String[]>();
+
 	/**
 	 * Whether memcached has last been seen as up.
 	 */
 	private AtomicBoolean up = new AtomicBoolean();
 
+	/**
+	 * The circuit breaker protecting calls to memcached.
+	 */
+	private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+	/**
+	 * Queues storing an entry. The result is not reported to the circuit
+	 * breaker, as it is not yet known.
+	 * 
+	 * @param key
+	 *        A key unique to the cache
+	 * @param entry
+	 *        The entry
+	 * @return A future for whether the entry was stored, or null if memcached
+	 *         is down
+	 */
+	private Future<Boolean> set( String key, CacheEntry entry )
+	{
+		if( !circuitBreaker.allowRequest() )
+			return null;
+
+		logger.info( "Store: " + key );
+
+		Object theEntry = entry;
+
+		try
+		{
+			Future<Boolean> stored = memcached.set( key, (int) ( entry.getGraceExpirationDate().getTime() / 1000 ), theEntry );
+
+			String[] tags = entry.getTags();
+			if( ( tags != null ) && ( tags.length > 0 ) )
+				hint( key, tags );
+			else
+				tagHints.remove( key );
+
+			return stored;
+		}
+		catch( OperationTimeoutException x )
+		{
+			down();
+			return null;
+		}
+	}
+
+	/**
+	 * Queues invalidating a tag. The result is not reported to the circuit
+	 * breaker, as it is not yet known.
+	 * 
+	 * @param tag
+	 *        The tag
+	 * @return A future for whether the tag was invalidated, or null if
+	 *         memcached is down
+	 */
+	private Future<Boolean> set( String tag )
+	{
+		if( !circuitBreaker.allowRequest() )
+			return null;
+
+		try
+		{
+			return memcached.set( tagPrefix + tag, 0, System.currentTimeMillis() );
+		}
+		catch( OperationTimeoutException x )
+		{
+			down();
+			return null;
+		}
+	}
+
+	/**
+	 * Remembers the tags for a key.
+	 * 
+	 * @param key
+	 *        The key
+	 * @param tags
+	 *        The tags
+	 */
+	private void hint( String key, String[] tags )
+	{
+		// This is only an optimization, so we'd rather start over than
+		// track usage
+		if( tagHints.size() >= MAX_TAG_HINTS )
+			tagHints.clear();
+
+		tagHints.put( key, tags );
+	}
+
+	/**
+	 * Whether a tag was among the hinted tags.
+	 * 
+	 * @param hintedTags
+	 *        The hinted tags or null
+	 * @param tag
+	 *        The tag
+	 * @return True if hinted
+	 */
+	private static boolean isHinted( String[] hintedTags, String tag )
+	{
+		if( hintedTags != null )
+			for( String hintedTag : hintedTags )
+				if( hintedTag.equals( tag ) )
+					return true;
+		return false;
+	}
+
+	/**
+	 * Deletes a key, waiting for completion if so configured.
+	 * 
+	 * @param key
+	 *        The key
+	 */
+	private void delete( String key )
+	{
+		tagHints.remove( key );
+
+		Future<Boolean> deleted = memcached.delete( key );
+		if( waitForCompletion )
+			complete( deleted );
+	}
+
+	/**
+	 * Waits for a memcached operation to complete, and reports the result to
+	 * the circuit breaker.
+	 * 
+	 * @param future
+	 *        The operation's future
+	 */
+	private void complete( Future<Boolean> future )
+	{
+		try
+		{
+			future.get();
+			up();
+		}
+		catch( InterruptedException x )
+		{
+			// Restore interrupt status
+			Thread.currentThread().interrupt();
+		}
+		catch( ExecutionException x )
+		{
+			logger.log( Level.FINE, "Operation failed", x.getCause() );
+			down();
+		}
+		catch( CancellationException x )
+		{
+			// Operations are cancelled when their connection is lost
+			down();
+		}
+	}
+
 	/**
 	 * Call when memcached is up.
 	 */
 	private void up()
 	{
+		if( circuitBreaker.success() )
+			logger.info( "Circuit breaker closed" );
 		if( up.compareAndSet( false, true ) )
 			logger.info( "Up! " + memcached.getAvailableServers() );
 	}
@@ -350,7 +526,121 @@ public class MemcachedCache implements Cache
 	 */
 	private void down()
 	{
+		if( circuitBreaker.failure() )
+			logger.warning( "Circuit breaker opened, skipping calls for " + circuitBreaker.getOpenDuration() + " ms" );
 		if( up.compareAndSet( true, false ) )
 			logger.severe( "Down! " + memcached.getAvailableServers() );
 	}
+
+	/**
+	 * Reports the result of an operation to the circuit breaker once the
+	 * caller waits for it.
+	 */
+	private class ReportingFuture implements Future<Boolean>
+	{
+		/**
+		 * Constructor.
+		 * 
+		 * @param future
+		 *        The operation's future
+		 */
+		public ReportingFuture( Future<Boolean> future )
+		{
+			this.future = future;
+		}
+
+		//
+		// Future
+		//
+
+		public boolean cancel( boolean mayInterruptIfRunning )
+		{
+			return future.cancel( mayInterruptIfRunning );
+		}
+
+		public boolean isCancelled()
+		{
+			return future.isCancelled();
+		}
+
+		public boolean isDone()
+		{
+			return future.isDone();
+		}
+
+		public Boolean get() throws InterruptedException, ExecutionException
+		{
+			try
+			{
+				Boolean result = future.get();
+				report( true );
+				return result;
+			}
+			catch( ExecutionException x )
+			{
+				report( false );
+				throw x;
+			}
+			catch( CancellationException x )
+			{
+				report( false );
+				throw x;
+			}
+		}
+
+		public Boolean get( long timeout, TimeUnit unit ) throws InterruptedException, ExecutionException, TimeoutException
+		{
+			try
+			{
+				Boolean result = future.get( timeout, unit );
+				report( true );
+				return result;
+			}
+			catch( ExecutionException x )
+			{
+				report( false );
+				throw x;
+			}
+			catch( CancellationException x )
+			{
+				report( false );
+				throw x;
+			}
+			catch( TimeoutException x )
+			{
+				report( false );
+				throw x;
+			}
+		}
+
+		// //////////////////////////////////////////////////////////////////////////
+		// Private
+
+		/**
+		 * The operation's future.
+		 */
+		private final Future<Boolean> future;
+
+		/**
+		 * Whether the result has been reported.
+		 */
+		private final AtomicBoolean reported = new AtomicBoolean();
+
+		/**
+		 * Reports the result once.
+		 * 
+		 * @param success
+		 *        Whether the operation succeeded
+		 */
+		private void report( boolean success )
+		{
+			if( reported.compareAndSet( false, true ) )
+			{
+				if( success )
+					up();
+				else
+					down();
+			}
+		}
+	}
 }
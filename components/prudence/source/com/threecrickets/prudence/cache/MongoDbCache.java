@@ -47,11 +47,22 @@ import com.mongodb.MongoException;
  * documents are far easier to debug. Binary mode is off by default.
  * <p>
  * Note that MongoDB's indexing facility allows for very high performance
- * invalidation and pruning.
+ * invalidation and pruning. Entries past their grace expiration are removed
+ * by MongoDB itself via a TTL index (requires MongoDB 2.2 or later), and are
+ * filtered out by fetch queries until then, so {@link #prune()} is only
+ * needed for older versions of MongoDB, and for entries stored by older
+ * versions of this class, which have no grace expiration date.
+ * <p>
+ * The driver is synchronous, so {@link AsyncCache} operations are run on the
+ * executor.
+ * <p>
+ * While MongoDB is failing, calls to it are skipped by a
+ * {@link CircuitBreaker}, so that fetches miss instantly instead of waiting
+ * for the driver to time out.
  * 
  * @author Tal Liron
  */
-public class MongoDbCache implements Cache
+public class MongoDbCache extends AsyncCacheBase
 {
 	//
 	// Construction
@@ -131,8 +142,7 @@ public class MongoDbCache implements Cache
 		this.cacheCollection = collection;
 		try
 		{
-			collection.ensureIndex( TAG_INDEX );
-			collection.ensureIndex( EXPIRATION_DATE_INDEX );
+			validateIndexes();
 			up();
 		}
 		catch( com.mongodb.MongoException.Network x )
@@ -166,6 +176,16 @@ public class MongoDbCache implements Cache
 		this.isBinary = isBinary;
 	}
 
+	/**
+	 * The circuit breaker protecting calls to MongoDB.
+	 * 
+	 * @return The circuit breaker
+	 */
+	public CircuitBreaker getCircuitBreaker()
+	{
+		return circuitBreaker;
+	}
+
 	//
 	// Cache
 	//
@@ -181,9 +201,11 @@ public class MongoDbCache implements Cache
 		DBObject set = new BasicDBObject();
 		document.put( "$set", set );
 
-		// Note: In binary mode, the expirationDate is also inside the binary
-		// dump, however we need it here, too, to allow for fast pruning.
+		// Note: In binary mode, the dates are also inside the binary dump,
+		// however we need them here, too, for the TTL index and for filtering
+		// stale entries in queries.
 		set.put( "expirationDate", entry.getExpirationDate() );
+		set.put( "graceExpirationDate", entry.getGraceExpirationDate() );
 
 		String[] tags = entry.getTags();
 		if( ( tags != null ) && ( tags.length > 0 ) )
@@ -207,9 +229,11 @@ public class MongoDbCache implements Cache
 			if( documentModificationDate != null )
 				set.put( "documentModificationDate", documentModificationDate );
 
-			String string = entry.getString();
-			if( string != null )
-				set.put( "string", string );
+			// Text is stored as bytes, so remove any string stored by older
+			// versions
+			DBObject unset = new BasicDBObject();
+			unset.put( "string", 1 );
+			document.put( "$unset", unset );
 
 			byte[] bytes = entry.getBytes();
 			if( bytes != null )
@@ -249,6 +273,9 @@ public class MongoDbCache implements Cache
 			}
 		}
 
+		if( !circuitBreaker.allowRequest() )
+			return;
+
 		// Upsert
 		try
 		{
@@ -263,21 +290,22 @@ public class MongoDbCache implements Cache
 
 	public CacheEntry fetch( String key )
 	{
+		// Stale entries may linger until MongoDB's TTL monitor gets to them
 		DBObject query = new BasicDBObject();
 		query.put( "_id", key );
+		query.put( "graceExpirationDate", new BasicDBObject( "$gt", new Date() ) );
+
+		if( !circuitBreaker.allowRequest() )
+			return null;
+
 		try
 		{
-			DBObject document = cacheCollection.findOne( query );
+			DBObject document = cacheCollection.findOne( query, FETCH_FIELDS );
 			up();
 			if( document != null )
 			{
 				Date expirationDate = (Date) document.get( "expirationDate" );
-				if( expirationDate.before( new Date() ) )
-				{
-					cacheCollection.remove( query );
-					logger.fine( "Stale entry: " + key );
-					return null;
-				}
+				Date graceExpirationDate = (Date) document.get( "graceExpirationDate" );
 
 				try
 				{
@@ -320,6 +348,7 @@ public class MongoDbCache implements Cache
 							cacheEntry = new CacheEntry( string, mediaType, language, characterSet, encoding, headers, documentModificationDate, expirationDate );
 						else
 							cacheEntry = new CacheEntry( bytes, mediaType, language, characterSet, encoding, headers, documentModificationDate, expirationDate );
+						cacheEntry.setGraceDuration( graceExpirationDate.getTime() - expirationDate.getTime() );
 					}
 
 					logger.fine( "Fetched: " + key );
@@ -350,6 +379,9 @@ public class MongoDbCache implements Cache
 		DBObject query = new BasicDBObject();
 		query.put( "tags", tag );
 
+		if( !circuitBreaker.allowRequest() )
+			return;
+
 		try
 		{
 			cacheCollection.remove( query );
@@ -363,14 +395,30 @@ public class MongoDbCache implements Cache
 
 	public void prune()
 	{
+		Date now = new Date();
+
+		DBObject graceExpired = new BasicDBObject();
+		graceExpired.put( "graceExpirationDate", new BasicDBObject( "$lt", now ) );
+
+		// Entries stored before we had grace expiration dates are not covered
+		// by the TTL index
+		DBObject expired = new BasicDBObject();
+		expired.put( "graceExpirationDate", new BasicDBObject( "$exists", false ) );
+		expired.put( "expirationDate", new BasicDBObject( "$lt", now ) );
+
+		BasicDBList or = new BasicDBList();
+		or.add( graceExpired );
+		or.add( expired );
 		DBObject query = new BasicDBObject();
-		DBObject lt = new BasicDBObject();
-		query.put( "$lt", lt );
+		query.put( "$or", or );
+
+		if( !circuitBreaker.allowRequest() )
+			return;
 
-		lt.put( "expirationDate", new Date() );
 		try
 		{
 			cacheCollection.remove( query );
+			up();
 		}
 		catch( com.mongodb.MongoException.Network x )
 		{
@@ -380,6 +428,9 @@ public class MongoDbCache implements Cache
 
 	public void reset()
 	{
+		if( !circuitBreaker.allowRequest() )
+			return;
+
 		try
 		{
 			cacheCollection.remove( new BasicDBObject() );
@@ -394,20 +445,62 @@ public class MongoDbCache implements Cache
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
+	/**
+	 * The expiration date index field, which older versions of this class
+	 * indexed.
+	 */
+	private static final String OBSOLETE_EXPIRATION_DATE_INDEX_FIELD = "expirationDate";
+
 	/**
 	 * Options for ensuring the tag index on the cache collection.
 	 */
 	private static final DBObject TAG_INDEX = new BasicDBObject();
 
 	/**
-	 * Options for ensuring the expiration date index on the cache collection.
+	 * Options for ensuring the grace expiration date index on the cache
+	 * collection.
+	 */
+	private static final DBObject GRACE_EXPIRATION_DATE_INDEX = new BasicDBObject();
+
+	/**
+	 * Makes the grace expiration date index a TTL index, so that MongoDB
+	 * removes entries as soon as their grace expiration date has passed.
 	 */
-	private static final DBObject EXPIRATION_DATE_INDEX = new BasicDBObject();
+	private static final DBObject GRACE_EXPIRATION_DATE_INDEX_OPTIONS = new BasicDBObject();
+
+	/**
+	 * The fields needed by {@link #fetch(String)}.
+	 */
+	private static final DBObject FETCH_FIELDS = new BasicDBObject();
 
 	static
 	{
 		TAG_INDEX.put( "tags", 1 );
-		EXPIRATION_DATE_INDEX.put( "expirationDate", 1 );
+		GRACE_EXPIRATION_DATE_INDEX.put( "graceExpirationDate", 1 );
+		GRACE_EXPIRATION_DATE_INDEX_OPTIONS.put( "expireAfterSeconds", 0 );
+		FETCH_FIELDS.put( "_id", 0 );
+		FETCH_FIELDS.put( "tags", 0 );
+	}
+
+	/**
+	 * Ensures the indexes we need, and drops the expiration date index
+	 * created by older versions of this class, which is not used by any of
+	 * our queries and only slows down stores.
+	 */
+	private void validateIndexes()
+	{
+		cacheCollection.ensureIndex( TAG_INDEX );
+		cacheCollection.ensureIndex( GRACE_EXPIRATION_DATE_INDEX, GRACE_EXPIRATION_DATE_INDEX_OPTIONS );
+
+		for( DBObject index : cacheCollection.getIndexInfo() )
+		{
+			DBObject key = (DBObject) index.get( "key" );
+			if( ( key != null ) && ( key.keySet().size() == 1 ) && key.containsField( OBSOLETE_EXPIRATION_DATE_INDEX_FIELD ) )
+			{
+				logger.info( "Dropping obsolete index: " + index.get( "name" ) );
+				cacheCollection.dropIndex( (String) index.get( "name" ) );
+			}
+		}
 	}
 
 	/**
@@ -435,11 +528,18 @@ public class MongoDbCache implements Cache
 	 */
 	private AtomicBoolean up = new AtomicBoolean();
 
+	/**
+	 * The circuit breaker protecting calls to MongoDB.
+	 */
+	private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+
 	/**
 	 * Call when MongoDB is up.
 	 */
 	private void up()
 	{
+		if( circuitBreaker.success() )
+			logger.info( "Circuit breaker closed" );
 		if( up.compareAndSet( false, true ) )
 			logger.info( "Up! " + cacheCollection.getDB().getMongo() );
 	}
@@ -449,6 +549,8 @@ public class MongoDbCache implements Cache
 	 */
 	private void down()
 	{
+		if( circuitBreaker.failure() )
+			logger.warning( "Circuit breaker opened, skipping calls for " + circuitBreaker.getOpenDuration() + " ms" );
 		if( up.compareAndSet( true, false ) )
 			logger.severe( "Down! " + cacheCollection.getDB().getMongo() );
 	}
@@ -11,12 +11,31 @@
 
 package com.threecrickets.prudence.cache;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.orientechnologies.common.exception.OException;
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentPool;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.metadata.schema.OClass;
+import com.orientechnologies.orient.core.metadata.schema.OSchema;
+import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.sql.OCommandSQL;
+import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
 
 /**
  * An <a href="http://www.orientdb.org/">OrientDB</a>-backed cache.
+ * <p>
+ * Entries are stored as serialized binaries in documents of a single class,
+ * defaulting to "PrudenceCache", together with their key, tags and expiration
+ * dates, all of which are indexed. Use a "local:" database URL for a cache
+ * that survives restarts, or a "memory:" URL for a volatile one. The database
+ * is created if it does not exist.
  * 
  * @author Tal Liron
  */
@@ -27,11 +46,24 @@ public class OrientDbCache implements Cache
 	//
 
 	/**
-	 * Constructor with global database document pool.
+	 * Constructor with global database document pool, using an in-memory
+	 * database named "prudence".
 	 */
 	public OrientDbCache()
 	{
-		this( ODatabaseDocumentPool.global() );
+		this( "memory:prudence" );
+	}
+
+	/**
+	 * Constructor with global database document pool, using the default admin
+	 * user.
+	 * 
+	 * @param url
+	 *        The database URL
+	 */
+	public OrientDbCache( String url )
+	{
+		this( ODatabaseDocumentPool.global(), url, "admin", "admin" );
 	}
 
 	/**
@@ -39,10 +71,86 @@ public class OrientDbCache implements Cache
 	 * 
 	 * @param databaseDocumentPool
 	 *        The database document pool.
+	 * @param url
+	 *        The database URL
+	 * @param username
+	 *        The database username
+	 * @param password
+	 *        The database password
 	 */
-	public OrientDbCache( ODatabaseDocumentPool databaseDocumentPool )
+	public OrientDbCache( ODatabaseDocumentPool databaseDocumentPool, String url, String username, String password )
+	{
+		this( databaseDocumentPool, url, username, password, "PrudenceCache" );
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param databaseDocumentPool
+	 *        The database document pool.
+	 * @param url
+	 *        The database URL
+	 * @param username
+	 *        The database username
+	 * @param password
+	 *        The database password
+	 * @param className
+	 *        The document class name to use for the cache
+	 */
+	public OrientDbCache( ODatabaseDocumentPool databaseDocumentPool, String url, String username, String password, String className )
 	{
 		this.databaseDocumentPool = databaseDocumentPool;
+		this.url = url;
+		this.username = username;
+		this.password = password;
+		this.className = className;
+
+		validateSchema();
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Makes sure that the database exists, and that the document class and its
+	 * indexes exist.
+	 */
+	public void validateSchema()
+	{
+		try
+		{
+			ODatabaseDocumentTx database = new ODatabaseDocumentTx( url );
+			if( database.exists() )
+				database.open( username, password );
+			else
+				database.create();
+
+			try
+			{
+				OSchema schema = database.getMetadata().getSchema();
+				if( !schema.existsClass( className ) )
+				{
+					OClass theClass = schema.createClass( className );
+					theClass.createProperty( "key", OType.STRING );
+					theClass.createProperty( "tags", OType.EMBEDDEDLIST, OType.STRING );
+					theClass.createProperty( "graceExpirationDate", OType.DATETIME );
+					theClass.createProperty( "binary", OType.BINARY );
+					theClass.createIndex( className + ".key", OClass.INDEX_TYPE.UNIQUE, "key" );
+					theClass.createIndex( className + ".tags", OClass.INDEX_TYPE.NOTUNIQUE, "tags" );
+					theClass.createIndex( className + ".graceExpirationDate", OClass.INDEX_TYPE.NOTUNIQUE, "graceExpirationDate" );
+					schema.save();
+				}
+			}
+			finally
+			{
+				database.close();
+			}
+		}
+		catch( OException x )
+		{
+			logger.log( Level.WARNING, "Could not validate schema", x );
+		}
 	}
 
 	//
@@ -51,23 +159,149 @@ public class OrientDbCache implements Cache
 
 	public void store( String key, CacheEntry entry )
 	{
+		logger.fine( "Store: " + key );
+
+		byte[] binary;
+		try
+		{
+			binary = entry.toBytes();
+		}
+		catch( IOException x )
+		{
+			logger.log( Level.WARNING, "Could not serialize binary", x );
+			return;
+		}
+
+		try
+		{
+			save( key, entry, binary );
+		}
+		catch( OException x )
+		{
+			// This could be a duplicate key, in the case of a concurrent
+			// store of a new entry, in which case the document exists now
+			// and we can update it
+			try
+			{
+				save( key, entry, binary );
+			}
+			catch( OException xx )
+			{
+				logger.log( Level.WARNING, "Could not store cache entry", xx );
+			}
+		}
 	}
 
 	public CacheEntry fetch( String key )
 	{
+		try
+		{
+			ODatabaseDocumentTx database = connect();
+			try
+			{
+				List<ODocument> documents = database.query( new OSQLSynchQuery<ODocument>( "SELECT FROM " + className + " WHERE key = ?" ), key );
+				if( !documents.isEmpty() )
+				{
+					ODocument document = documents.get( 0 );
+					Date graceExpirationDate = document.field( "graceExpirationDate" );
+					if( ( graceExpirationDate == null ) || graceExpirationDate.before( new Date() ) )
+					{
+						logger.fine( "Stale entry: " + key );
+						document.delete();
+						return null;
+					}
+
+					byte[] binary = document.field( "binary" );
+					try
+					{
+						CacheEntry entry = new CacheEntry( binary );
+						logger.fine( "Fetched: " + key );
+						return entry;
+					}
+					catch( IOException x )
+					{
+						logger.log( Level.WARNING, "Could not deserialize cache entry", x );
+					}
+					catch( ClassNotFoundException x )
+					{
+						logger.log( Level.WARNING, "Could not deserialize cache entry", x );
+					}
+				}
+			}
+			finally
+			{
+				database.close();
+			}
+		}
+		catch( OException x )
+		{
+			logger.log( Level.WARNING, "Could not fetch cache entry", x );
+		}
+
+		logger.fine( "Did not fetch: " + key );
 		return null;
 	}
 
 	public void invalidate( String tag )
 	{
+		try
+		{
+			ODatabaseDocumentTx database = connect();
+			try
+			{
+				Object count = database.command( new OCommandSQL( "DELETE FROM " + className + " WHERE tags CONTAINS ?" ) ).execute( tag );
+				logger.fine( "Invalidated " + count );
+			}
+			finally
+			{
+				database.close();
+			}
+		}
+		catch( OException x )
+		{
+			logger.log( Level.WARNING, "Could not invalidate cache tag", x );
+		}
 	}
 
 	public void prune()
 	{
+		try
+		{
+			ODatabaseDocumentTx database = connect();
+			try
+			{
+				Object count = database.command( new OCommandSQL( "DELETE FROM " + className + " WHERE graceExpirationDate < ?" ) ).execute( new Date() );
+				logger.fine( "Pruned " + count );
+			}
+			finally
+			{
+				database.close();
+			}
+		}
+		catch( OException x )
+		{
+			logger.log( Level.WARNING, "Could not prune", x );
+		}
 	}
 
 	public void reset()
 	{
+		try
+		{
+			ODatabaseDocumentTx database = connect();
+			try
+			{
+				database.command( new OCommandSQL( "DELETE FROM " + className ) ).execute();
+			}
+			finally
+			{
+				database.close();
+			}
+		}
+		catch( OException x )
+		{
+			logger.log( Level.WARNING, "Could not reset", x );
+		}
 	}
 
 	// //////////////////////////////////////////////////////////////////////////
@@ -82,4 +316,66 @@ public class OrientDbCache implements Cache
 	 * The database document pool.
 	 */
 	private final ODatabaseDocumentPool databaseDocumentPool;
+
+	/**
+	 * The database URL.
+	 */
+	private final String url;
+
+	/**
+	 * The database username.
+	 */
+	private final String username;
+
+	/**
+	 * The database password.
+	 */
+	private final String password;
+
+	/**
+	 * The document class name.
+	 */
+	private final String className;
+
+	/**
+	 * Creates or updates the document for a cache entry.
+	 * 
+	 * @param key
+	 *        The key
+	 * @param entry
+	 *        The cache entry
+	 * @param binary
+	 *        The serialized cache entry
+	 * @throws OException
+	 *         If the document could not be saved
+	 */
+	private void save( String key, CacheEntry entry, byte[] binary )
+	{
+		ODatabaseDocumentTx database = connect();
+		try
+		{
+			List<ODocument> documents = database.query( new OSQLSynchQuery<ODocument>( "SELECT FROM " + className + " WHERE key = ?" ), key );
+			ODocument document = documents.isEmpty() ? new ODocument( className ) : documents.get( 0 );
+			document.field( "key", key );
+			String[] tags = entry.getTags();
+			document.field( "tags", ( tags != null ) && ( tags.length > 0 ) ? Arrays.asList( tags ) : null, OType.EMBEDDEDLIST );
+			document.field( "graceExpirationDate", entry.getGraceExpirationDate() );
+			document.field( "binary", binary );
+			document.save();
+		}
+		finally
+		{
+			database.close();
+		}
+	}
+
+	/**
+	 * Acquires a database from the pool. Make sure to close it when done.
+	 * 
+	 * @return The database
+	 */
+	private ODatabaseDocumentTx connect()
+	{
+		return databaseDocumentPool.acquire( url, username, password );
+	}
 }
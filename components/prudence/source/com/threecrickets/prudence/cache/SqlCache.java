@@ -11,8 +11,9 @@
 
 package com.threecrickets.prudence.cache;
 
-import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -20,9 +21,14 @@ import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -47,20 +53,27 @@ import org.restlet.data.Metadata;
  * href="http://commons.apache.org/dbcp/">Apache Commons DBCP</a> for connection
  * pooling.
  * <p>
- * This instance maintains a pool of read/write locks to guarantee atomicity of
- * storing, fetching and invalidating. It does not use SQL transactions. This
- * allows you disable transaction features in your database for better
- * performance. However, it also means that you should not have more than one
- * instance of this class working on the same set of keys, because they will not
- * be sharing the locks.
+ * This instance maintains a fixed array of read/write locks, striped by key,
+ * to guarantee atomicity of storing, fetching and invalidating. It does not use
+ * SQL transactions. This allows you disable transaction features in your
+ * database for better performance. However, it also means that you should not
+ * have more than one instance of this class working on the same set of keys,
+ * because they will not be sharing the locks.
  * <p>
- * Also note that {@link #prune()} does not clean up unused locks. Since most
- * applications reuse cache keys anyway, this seems like an insignificant
- * "memory leak" cost in order to vastly improve pruning performance.
+ * The entry count is tracked approximately in memory. When the cache seems to
+ * be full, a background thread prunes expired entries and then evicts the least
+ * recently used entries in bulk, so that neither pruning nor eviction happen
+ * while storing. Pruning also happens periodically in the background (see
+ * {@link #setPruneInterval(long)}), until the cache is {@link #close()
+ * closed}. Access times are recorded at a resolution of ten seconds, in order
+ * to avoid a database write on every fetch.
+ * <p>
+ * JDBC is synchronous, so {@link AsyncCache} operations are run on the
+ * executor.
  * 
  * @author Tal Liron
  */
-public class SqlCache implements Cache
+public class SqlCache extends AsyncCacheBase
 {
 	//
 	// Construction
@@ -92,9 +105,14 @@ public class SqlCache implements Cache
 	{
 		this.maxSize = maxSize;
 
-		GenericObjectPool connectionPool = new GenericObjectPool( null, poolSize );
+		for( int i = 0; i < LOCK_STRIPES; i++ )
+			locks[i] = new ReentrantReadWriteLock();
+
+		connectionPool = new GenericObjectPool( null, poolSize );
 		new PoolableConnectionFactory( new DataSourceConnectionFactory( dataSource ), connectionPool, null, null, false, true );
 		this.dataSource = new PoolingDataSource( connectionPool );
+
+		setPruneInterval( 60000 );
 	}
 
 	//
@@ -132,10 +150,108 @@ public class SqlCache implements Cache
 		this.maxSize = maxSize;
 	}
 
+	/**
+	 * The interval at which expired entries are pruned in the background.
+	 * Defaults to one minute.
+	 * 
+	 * @return The prune interval in milliseconds, or 0 if disabled
+	 * @see #setPruneInterval(long)
+	 */
+	public long getPruneInterval()
+	{
+		return pruneInterval;
+	}
+
+	/**
+	 * @param pruneInterval
+	 *        The prune interval in milliseconds, or 0 to disable
+	 * @see #getPruneInterval()
+	 */
+	public synchronized void setPruneInterval( long pruneInterval )
+	{
+		this.pruneInterval = pruneInterval;
+
+		if( scheduledMaintenance != null )
+		{
+			scheduledMaintenance.cancel( false );
+			scheduledMaintenance = null;
+		}
+
+		if( pruneInterval > 0 )
+		{
+			PeriodicMaintenance periodicMaintenance = new PeriodicMaintenance( this );
+			scheduledMaintenance = maintenanceScheduler.scheduleWithFixedDelay( periodicMaintenance, pruneInterval, pruneInterval, TimeUnit.MILLISECONDS );
+			periodicMaintenance.scheduledMaintenance = scheduledMaintenance;
+		}
+	}
+
 	//
 	// Operations
 	//
 
+	/**
+	 * Stops periodic maintenance and closes the pooled connections. The cache
+	 * must not be used afterwards.
+	 * <p>
+	 * Caches that are not closed stop their periodic maintenance once they are
+	 * garbage collected.
+	 */
+	public synchronized void close()
+	{
+		if( scheduledMaintenance != null )
+		{
+			scheduledMaintenance.cancel( false );
+			scheduledMaintenance = null;
+		}
+
+		try
+		{
+			connectionPool.close();
+		}
+		catch( Exception x )
+		{
+			logger.log( Level.WARNING, "Could not close connection pool", x );
+		}
+	}
+
+	/**
+	 * Prunes expired entries, and then, if the cache is full, evicts the least
+	 * recently used entries down to 90% of the max entry count.
+	 * <p>
+	 * This is normally done in the background.
+	 */
+	public void maintain()
+	{
+		prune();
+
+		try
+		{
+			Connection connection = connect();
+			if( connection == null )
+				return;
+
+			try
+			{
+				int size = countEntries( connection );
+				if( size >= maxSize )
+				{
+					int evict = size - (int) ( maxSize * EVICTION_TARGET );
+					if( evict > 0 )
+						size -= evict( connection, evict );
+				}
+				approximateSize.set( size );
+			}
+			finally
+			{
+				connection.close();
+			}
+		}
+		catch( SQLException x )
+		{
+			logger.log( Level.WARNING, "Could not evict", x );
+		}
+	}
+
 	/**
 	 * Makes sure that the required tables exist.
 	 * 
@@ -164,7 +280,7 @@ public class SqlCache implements Cache
 					statement
 						.execute( "CREATE TABLE IF NOT EXISTS "
 							+ cacheTableName
-							+ " (key VARCHAR(255) PRIMARY KEY, data BLOB, media_type VARCHAR(255), language VARCHAR(255), character_set VARCHAR(255), encoding VARCHAR(255), headers TEXT, document_modification_date TIMESTAMP, expiration_date TIMESTAMP)" );
+							+ " (key VARCHAR(255) PRIMARY KEY, data BLOB, media_type VARCHAR(255), language VARCHAR(255), character_set VARCHAR(255), encoding VARCHAR(255), headers TEXT, document_modification_date TIMESTAMP, expiration_date TIMESTAMP, access_date TIMESTAMP)" );
 					statement.execute( "CREATE TABLE IF NOT EXISTS " + cacheTagsTableName + " (key VARCHAR(255), tag VARCHAR(255), FOREIGN KEY(key) REFERENCES " + cacheTableName + "(key) ON DELETE CASCADE)" );
 					statement.execute( "CREATE INDEX IF NOT EXISTS " + cacheTagsTableName + "_tag_idx ON " + cacheTagsTableName + " (tag)" );
 				}
@@ -172,6 +288,17 @@ public class SqlCache implements Cache
 				{
 					statement.close();
 				}
+
+				// A failed migration should not prevent the cache from
+				// working without access dates
+				try
+				{
+					migrateAccessDate( connection );
+				}
+				catch( SQLException x )
+				{
+					logger.log( Level.WARNING, "Could not add access dates to " + cacheTableName + ", so eviction will not be by least recent use", x );
+				}
 			}
 			finally
 			{
@@ -202,64 +329,29 @@ public class SqlCache implements Cache
 
 			try
 			{
-				boolean tryInsert = true;
+				// Make sure we have room...
 
-				// Try updating this key
+				int size = approximateSize.get();
+				if( ( size < 0 ) || ( size >= maxSize ) )
+					maintainInBackground();
 
-				String sql = "UPDATE " + cacheTableName + " SET data=?, media_type=?, language=?, character_set=?, encoding=?, headers=?, document_modification_date=?, expiration_date=? WHERE key=?";
-				PreparedStatement statement = connection.prepareStatement( sql );
-				try
-				{
-					statement.setBytes( 1, entry.getString() != null ? entry.getString().getBytes() : entry.getBytes() );
-					statement.setString( 2, entry.getMediaType() != null ? entry.getMediaType().getName() : null );
-					statement.setString( 3, entry.getLanguage() != null ? entry.getLanguage().getName() : null );
-					statement.setString( 4, entry.getCharacterSet() != null ? entry.getCharacterSet().getName() : null );
-					statement.setString( 5, entry.getEncoding() != null ? entry.getEncoding().getName() : null );
-					statement.setString( 6, entry.getHeaders() == null ? "" : entry.getHeaders().getQueryString() );
-					statement.setTimestamp( 7, new Timestamp( entry.getDocumentModificationDate().getTime() ) );
-					statement.setTimestamp( 8, new Timestamp( entry.getExpirationDate().getTime() ) );
-					statement.setString( 9, key );
-					if( !statement.execute() && statement.getUpdateCount() > 0 )
-					{
-						logger.fine( "Updated " + key );
+				// We allow overflowing until the background maintenance
+				// catches up, but not indefinitely
+				boolean hasRoom = size < maxSize * 2;
+				Timestamp now = new Timestamp( System.currentTimeMillis() );
 
-						// Update worked, so no need to try insertion
+				byte[] data = entry.getBytes();
 
-						tryInsert = false;
-					}
-				}
-				finally
+				if( hasRoom && isMergeSupported() )
 				{
-					statement.close();
-				}
+					// Upsert this key
 
-				if( tryInsert )
-				{
-					// Try inserting this key
-
-					// But first make sure we have room...
-
-					int size = countEntries( connection );
-					if( size >= maxSize )
-					{
-						prune();
-
-						size = countEntries( connection );
-						if( size >= maxSize )
-						{
-							logger.fine( "No room in cache (" + size + ", " + maxSize + ")" );
-							return;
-						}
-					}
-
-					// delete( connection, key );
-
-					sql = "INSERT INTO " + cacheTableName + " (key, data, media_type, language, character_set, encoding, headers, document_modification_date, expiration_date) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
-					statement = connection.prepareStatement( sql );
+					String sql = "MERGE INTO " + cacheTableName + " (key, data, media_type, language, character_set, encoding, headers, document_modification_date, expiration_date, access_date) KEY(key) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+					PreparedStatement statement = connection.prepareStatement( sql );
 					try
 					{
 						statement.setString( 1, key );
-						statement.setBytes( 2, entry.getString() != null ? entry.getString().getBytes() : entry.getBytes() );
+						statement.setBytes( 2, data );
 						statement.setString( 3, getName( entry.getMediaType() ) );
 						statement.setString( 4, getName( entry.getLanguage() ) );
 						statement.setString( 5, getName( entry.getCharacterSet() ) );
@@ -267,18 +359,92 @@ public class SqlCache implements Cache
 						statement.setString( 7, entry.getHeaders() == null ? "" : entry.getHeaders().getQueryString() );
 						statement.setTimestamp( 8, new Timestamp( entry.getDocumentModificationDate().getTime() ) );
 						statement.setTimestamp( 9, new Timestamp( entry.getExpirationDate().getTime() ) );
+						statement.setTimestamp( 10, now );
 						statement.execute();
 					}
 					finally
 					{
 						statement.close();
 					}
+
+					// We can't tell an update from an insert, so we assume the
+					// worst; the count will be corrected when the cache seems
+					// full
+					approximateSize.incrementAndGet();
+				}
+				else
+				{
+					boolean tryInsert = true;
+
+					// Try updating this key
+
+					String sql = "UPDATE " + cacheTableName + " SET data=?, media_type=?, language=?, character_set=?, encoding=?, headers=?, document_modification_date=?, expiration_date=?, access_date=? WHERE key=?";
+					PreparedStatement statement = connection.prepareStatement( sql );
+					try
+					{
+						statement.setBytes( 1, data );
+						statement.setString( 2, getName( entry.getMediaType() ) );
+						statement.setString( 3, getName( entry.getLanguage() ) );
+						statement.setString( 4, getName( entry.getCharacterSet() ) );
+						statement.setString( 5, getName( entry.getEncoding() ) );
+						statement.setString( 6, entry.getHeaders() == null ? "" : entry.getHeaders().getQueryString() );
+						statement.setTimestamp( 7, new Timestamp( entry.getDocumentModificationDate().getTime() ) );
+						statement.setTimestamp( 8, new Timestamp( entry.getExpirationDate().getTime() ) );
+						statement.setTimestamp( 9, now );
+						statement.setString( 10, key );
+						if( !statement.execute() && statement.getUpdateCount() > 0 )
+						{
+							logger.fine( "Updated " + key );
+
+							// Update worked, so no need to try insertion
+
+							tryInsert = false;
+						}
+					}
+					finally
+					{
+						statement.close();
+					}
+
+					if( tryInsert )
+					{
+						// Try inserting this key
+
+						if( !hasRoom )
+						{
+							logger.fine( "No room in cache (" + size + ", " + maxSize + ")" );
+							return;
+						}
+
+						sql = "INSERT INTO " + cacheTableName + " (key, data, media_type, language, character_set, encoding, headers, document_modification_date, expiration_date, access_date) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+						statement = connection.prepareStatement( sql );
+						try
+						{
+							statement.setString( 1, key );
+							statement.setBytes( 2, data );
+							statement.setString( 3, getName( entry.getMediaType() ) );
+							statement.setString( 4, getName( entry.getLanguage() ) );
+							statement.setString( 5, getName( entry.getCharacterSet() ) );
+							statement.setString( 6, getName( entry.getEncoding() ) );
+							statement.setString( 7, entry.getHeaders() == null ? "" : entry.getHeaders().getQueryString() );
+							statement.setTimestamp( 8, new Timestamp( entry.getDocumentModificationDate().getTime() ) );
+							statement.setTimestamp( 9, new Timestamp( entry.getExpirationDate().getTime() ) );
+							statement.setTimestamp( 10, now );
+							statement.execute();
+						}
+						finally
+						{
+							statement.close();
+						}
+
+						approximateSize.incrementAndGet();
+					}
 				}
 
 				// Clean out existing tags for this key
 
-				sql = "DELETE FROM " + cacheTagsTableName + " WHERE key=?";
-				statement = connection.prepareStatement( sql );
+				String sql = "DELETE FROM " + cacheTagsTableName + " WHERE key=?";
+				PreparedStatement statement = connection.prepareStatement( sql );
 				try
 				{
 					statement.setString( 1, key );
@@ -296,14 +462,15 @@ public class SqlCache implements Cache
 				{
 					sql = "INSERT INTO " + cacheTagsTableName + " (key, tag) VALUES (?, ?)";
 					statement = connection.prepareStatement( sql );
-					statement.setString( 1, key );
 					try
 					{
+						statement.setString( 1, key );
 						for( String tag : tags )
 						{
 							statement.setString( 2, tag );
-							statement.execute();
+							statement.addBatch();
 						}
+						statement.executeBatch();
 					}
 					finally
 					{
@@ -338,7 +505,7 @@ public class SqlCache implements Cache
 
 			try
 			{
-				String sql = "SELECT data, media_type, language, character_set, encoding, headers, document_modification_date, expiration_date FROM " + cacheTableName + " WHERE key=?";
+				String sql = "SELECT data, media_type, language, character_set, encoding, headers, document_modification_date, expiration_date, access_date FROM " + cacheTableName + " WHERE key=?";
 				PreparedStatement statement = connection.prepareStatement( sql );
 				try
 				{
@@ -357,23 +524,11 @@ public class SqlCache implements Cache
 							Form headers = ( rawHeaders != null ) && ( rawHeaders.length() > 0 ) ? new Form( rawHeaders ) : null;
 							Timestamp documentModificationDate = rs.getTimestamp( 7 );
 							Timestamp expirationDate = rs.getTimestamp( 8 );
+							Timestamp accessDate = rs.getTimestamp( 9 );
 
 							logger.fine( "Fetched: " + key );
 
-							CacheEntry entry;
-							if( encoding != null )
-								entry = new CacheEntry( data, mediaType, language, characterSet, encoding, headers, documentModificationDate, expirationDate );
-							else
-							{
-								try
-								{
-									entry = new CacheEntry( new String( data ), mediaType, language, characterSet, null, headers, documentModificationDate, expirationDate );
-								}
-								catch( IOException x )
-								{
-									throw new RuntimeException( "Should never happen if data is not encoded!" );
-								}
-							}
+							CacheEntry entry = new CacheEntry( data, mediaType, language, characterSet, encoding, headers, documentModificationDate, expirationDate );
 
 							if( new java.util.Date().after( entry.getExpirationDate() ) )
 							{
@@ -383,8 +538,6 @@ public class SqlCache implements Cache
 									logger.fine( "Stale entry: " + key );
 									delete( connection, key );
 
-									// (Note that this also discarded our lock,
-									// but we kept it as a local variable)
 								}
 								finally
 								{
@@ -393,6 +546,10 @@ public class SqlCache implements Cache
 								return null;
 							}
 
+							long now = System.currentTimeMillis();
+							if( ( accessDate == null ) || ( now - accessDate.getTime() > ACCESS_RESOLUTION ) )
+								touch( connection, key, now );
+
 							return entry;
 						}
 					}
@@ -438,15 +595,19 @@ public class SqlCache implements Cache
 				if( tagged.isEmpty() )
 					return;
 
+				// Always lock stripes in the same order, to avoid deadlocks
+				TreeSet<Integer> stripes = new TreeSet<Integer>();
 				ArrayList<Lock> locks = new ArrayList<Lock>( tagged.size() );
 
 				String sql = "DELETE FROM " + cacheTableName + " WHERE key IN (";
 				for( String key : tagged )
 				{
 					sql += "?,";
-					locks.add( getLock( key ).writeLock() );
+					stripes.add( getStripe( key ) );
 				}
 				sql = sql.substring( 0, sql.length() - 1 ) + ")";
+				for( int stripe : stripes )
+					locks.add( this.locks[stripe].writeLock() );
 
 				for( Lock lock : locks )
 					lock.lock();
@@ -459,15 +620,16 @@ public class SqlCache implements Cache
 						for( String key : tagged )
 							statement.setString( i++, key );
 						if( !statement.execute() )
-							logger.fine( "Invalidated " + statement.getUpdateCount() );
+						{
+							int count = statement.getUpdateCount();
+							approximateSize.addAndGet( -count );
+							logger.fine( "Invalidated " + count );
+						}
 					}
 					finally
 					{
 						statement.close();
 					}
-
-					for( String key : tagged )
-						discardLock( key );
 				}
 				finally
 				{
@@ -488,8 +650,6 @@ public class SqlCache implements Cache
 
 	public void prune()
 	{
-		// Note that this will not discard locks
-
 		try
 		{
 			Connection connection = connect();
@@ -504,7 +664,11 @@ public class SqlCache implements Cache
 				{
 					statement.setTimestamp( 1, new Timestamp( System.currentTimeMillis() ) );
 					if( !statement.execute() )
-						logger.fine( "Pruned " + statement.getUpdateCount() );
+					{
+						int count = statement.getUpdateCount();
+						approximateSize.addAndGet( -count );
+						logger.fine( "Pruned " + count );
+					}
 				}
 				finally
 				{
@@ -527,12 +691,25 @@ public class SqlCache implements Cache
 		// This is not atomic, but does it matter?
 
 		validateTables( true );
-		locks.clear();
+		approximateSize.set( 0 );
 	}
 
 	// //////////////////////////////////////////////////////////////////////////
 	// Protected
 
+	/**
+	 * Whether the database supports H2-style
+	 * <code>MERGE INTO ... KEY(...) VALUES ...</code> for upserting. When
+	 * false, entries are stored with an UPDATE followed by an INSERT if
+	 * necessary.
+	 * 
+	 * @return True if MERGE is supported
+	 */
+	protected boolean isMergeSupported()
+	{
+		return false;
+	}
+
 	/**
 	 * Call when server is up.
 	 */
@@ -559,6 +736,11 @@ public class SqlCache implements Cache
 	 */
 	private final Logger logger = Logger.getLogger( this.getClass().getCanonicalName() );
 
+	/**
+	 * The connection pool.
+	 */
+	private final GenericObjectPool connectionPool;
+
 	/**
 	 * The data source.
 	 */
@@ -580,9 +762,77 @@ public class SqlCache implements Cache
 	private volatile int maxSize;
 
 	/**
-	 * A pool of read/write locks per key.
+	 * Number of lock stripes (must be a power of 2).
+	 */
+	private static final int LOCK_STRIPES = 256;
+
+	/**
+	 * Read/write locks, striped by key.
+	 */
+	private final ReadWriteLock[] locks = new ReadWriteLock[LOCK_STRIPES];
+
+	/**
+	 * The resolution in milliseconds at which access dates are recorded.
+	 */
+	private static final long ACCESS_RESOLUTION = 10000;
+
+	/**
+	 * The fraction of the max entry count to which we evict.
+	 */
+	private static final float EVICTION_TARGET = 0.9f;
+
+	/**
+	 * Runs maintenance for all SQL caches. Periodic maintenance holds caches
+	 * only weakly, so that the scheduler does not keep them alive.
+	 */
+	private static final ScheduledExecutorService maintenanceScheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+	{
+		public Thread newThread( Runnable runnable )
+		{
+			Thread thread = new Thread( runnable, "SqlCache maintenance" );
+			thread.setDaemon( true );
+			return thread;
+		}
+	} );
+
+	/**
+	 * The prune interval in milliseconds.
 	 */
-	private ConcurrentMap<String, ReadWriteLock> locks = new ConcurrentHashMap<String, ReadWriteLock>();
+	private volatile long pruneInterval;
+
+	/**
+	 * The periodic maintenance.
+	 */
+	private ScheduledFuture<?> scheduledMaintenance;
+
+	/**
+	 * Whether maintenance was requested and has not yet run.
+	 */
+	private final AtomicBoolean maintenancePending = new AtomicBoolean();
+
+	/**
+	 * The maintenance task.
+	 */
+	private final Runnable maintenanceTask = new Runnable()
+	{
+		public void run()
+		{
+			maintenancePending.set( false );
+			try
+			{
+				maintain();
+			}
+			catch( RuntimeException x )
+			{
+				logger.log( Level.WARNING, "Could not maintain cache", x );
+			}
+		}
+	};
+
+	/**
+	 * The approximate entry count, or -1 if unknown.
+	 */
+	private final AtomicInteger approximateSize = new AtomicInteger( -1 );
 
 	/**
 	 * Whether the server has last been seen as up.
@@ -609,6 +859,71 @@ public class SqlCache implements Cache
 		}
 	}
 
+	/**
+	 * Adds the access date column to entry tables created before it existed,
+	 * and makes sure it is indexed.
+	 * 
+	 * @param connection
+	 *        The connection
+	 * @throws SQLException
+	 */
+	private void migrateAccessDate( Connection connection ) throws SQLException
+	{
+		Statement statement = connection.createStatement();
+		try
+		{
+			if( !hasColumn( connection, cacheTableName, "access_date" ) )
+			{
+				logger.info( "Adding access dates to " + cacheTableName );
+				statement.execute( "ALTER TABLE " + cacheTableName + " ADD COLUMN access_date TIMESTAMP" );
+			}
+
+			statement.execute( "CREATE INDEX IF NOT EXISTS " + cacheTableName + "_access_date_idx ON " + cacheTableName + " (access_date)" );
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+
+	/**
+	 * Checks whether a table has a column, according to the database metadata.
+	 * 
+	 * @param connection
+	 *        The connection
+	 * @param table
+	 *        The table name
+	 * @param column
+	 *        The column name
+	 * @return True if the column exists
+	 * @throws SQLException
+	 */
+	private static boolean hasColumn( Connection connection, String table, String column ) throws SQLException
+	{
+		// Unquoted identifiers are stored in the database's preferred case
+		DatabaseMetaData metaData = connection.getMetaData();
+		if( metaData.storesUpperCaseIdentifiers() )
+		{
+			table = table.toUpperCase();
+			column = column.toUpperCase();
+		}
+		else if( metaData.storesLowerCaseIdentifiers() )
+		{
+			table = table.toLowerCase();
+			column = column.toLowerCase();
+		}
+
+		ResultSet rs = metaData.getColumns( null, null, table, column );
+		try
+		{
+			return rs.next();
+		}
+		finally
+		{
+			rs.close();
+		}
+	}
+
 	/**
 	 * Count all entries.
 	 * 
@@ -642,6 +957,75 @@ public class SqlCache implements Cache
 		return -1;
 	}
 
+	/**
+	 * Requests maintenance in the background, unless it's already been
+	 * requested.
+	 */
+	private void maintainInBackground()
+	{
+		if( maintenancePending.compareAndSet( false, true ) )
+			maintenanceScheduler.execute( maintenanceTask );
+	}
+
+	/**
+	 * Deletes the least recently used entries (tags are deleted via cascade).
+	 * 
+	 * @param connection
+	 *        The connection
+	 * @param count
+	 *        The number of entries to delete
+	 * @return The number of entries deleted
+	 * @throws SQLException
+	 */
+	private int evict( Connection connection, int count ) throws SQLException
+	{
+		String sql = "DELETE FROM " + cacheTableName + " WHERE key IN (SELECT key FROM " + cacheTableName + " ORDER BY access_date LIMIT ?)";
+		PreparedStatement statement = connection.prepareStatement( sql );
+		try
+		{
+			statement.setInt( 1, count );
+			if( !statement.execute() )
+			{
+				int evicted = statement.getUpdateCount();
+				logger.fine( "Evicted " + evicted );
+				return evicted;
+			}
+		}
+		finally
+		{
+			statement.close();
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Records access to an entry.
+	 * 
+	 * @param connection
+	 *        The connection
+	 * @param key
+	 *        The key
+	 * @param now
+	 *        The access time
+	 * @throws SQLException
+	 */
+	private void touch( Connection connection, String key, long now ) throws SQLException
+	{
+		String sql = "UPDATE " + cacheTableName + " SET access_date=? WHERE key=?";
+		PreparedStatement statement = connection.prepareStatement( sql );
+		try
+		{
+			statement.setTimestamp( 1, new Timestamp( now ) );
+			statement.setString( 2, key );
+			statement.execute();
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+
 	/**
 	 * Delete an entry.
 	 * 
@@ -664,8 +1048,11 @@ public class SqlCache implements Cache
 				statement.setString( 1, key );
 				if( !statement.execute() )
 				{
-					if( logger.isLoggable( Level.FINE ) && statement.getUpdateCount() > 0 )
+					if( statement.getUpdateCount() > 0 )
+					{
+						approximateSize.decrementAndGet();
 						logger.fine( "Deleted: " + key );
+					}
 				}
 			}
 			finally
@@ -676,7 +1063,6 @@ public class SqlCache implements Cache
 		finally
 		{
 			lock.unlock();
-			discardLock( key );
 		}
 	}
 
@@ -718,34 +1104,31 @@ public class SqlCache implements Cache
 	}
 
 	/**
-	 * Gets a unique lock for a key.
+	 * The lock stripe for a key.
 	 * 
 	 * @param key
 	 *        The key
-	 * @return The lock
+	 * @return The stripe index
 	 */
-	private ReadWriteLock getLock( String key )
+	private static int getStripe( String key )
 	{
-		ReadWriteLock lock = locks.get( key );
-		if( lock == null )
-		{
-			lock = new ReentrantReadWriteLock();
-			ReadWriteLock existing = locks.putIfAbsent( key, lock );
-			if( existing != null )
-				lock = existing;
-		}
-		return lock;
+		// Spread the hash bits, as in HashMap
+		int hash = key.hashCode();
+		hash ^= ( hash >>> 20 ) ^ ( hash >>> 12 );
+		hash ^= ( hash >>> 7 ) ^ ( hash >>> 4 );
+		return hash & ( LOCK_STRIPES - 1 );
 	}
 
 	/**
-	 * Discards the lock for a key.
+	 * Gets the lock for a key. Keys may share locks.
 	 * 
 	 * @param key
 	 *        The key
+	 * @return The lock
 	 */
-	private void discardLock( String key )
+	private ReadWriteLock getLock( String key )
 	{
-		locks.remove( key );
+		return locks[getStripe( key )];
 	}
 
 	/**
@@ -759,4 +1142,45 @@ public class SqlCache implements Cache
 	{
 		return metadata == null ? null : metadata.getName();
 	}
+
+	/**
+	 * Periodic maintenance for a cache, which cancels itself once the cache
+	 * has been garbage collected.
+	 */
+	private static class PeriodicMaintenance implements Runnable
+	{
+		/**
+		 * Constructor.
+		 * 
+		 * @param cache
+		 *        The cache
+		 */
+		public PeriodicMaintenance( SqlCache cache )
+		{
+			this.cache = new WeakReference<SqlCache>( cache );
+		}
+
+		/**
+		 * Our scheduled execution.
+		 */
+		public volatile ScheduledFuture<?> scheduledMaintenance;
+
+		public void run()
+		{
+			SqlCache cache = this.cache.get();
+			if( cache != null )
+				cache.maintenanceTask.run();
+			else
+			{
+				ScheduledFuture<?> scheduledMaintenance = this.scheduledMaintenance;
+				if( scheduledMaintenance != null )
+					scheduledMaintenance.cancel( false );
+			}
+		}
+
+		/**
+		 * The cache.
+		 */
+		private final WeakReference<SqlCache> cache;
+	}
 }
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2009-2012 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.internal;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.restlet.routing.Template;
+import org.restlet.util.Resolver;
+
+/**
+ * A parsed cache key pattern, meant to be reused by all conversations.
+ * <p>
+ * Instances are immutable and thus thread safe.
+ * 
+ * @author Tal Liron
+ * @see CacheKeyPatternResolver
+ */
+public class CacheKeyTemplate
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param pattern
+	 *        The cache key pattern
+	 */
+	public CacheKeyTemplate( String pattern )
+	{
+		this.pattern = pattern;
+		template = new Template( pattern );
+		variableNames = Collections.unmodifiableList( template.getVariableNames() );
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The cache key pattern.
+	 * 
+	 * @return The cache key pattern
+	 */
+	public String getPattern()
+	{
+		return pattern;
+	}
+
+	/**
+	 * The names of the variables used in the pattern.
+	 * 
+	 * @return The variable names
+	 */
+	public List<String> getVariableNames()
+	{
+		return variableNames;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Casts a cache key.
+	 * 
+	 * @param resolver
+	 *        The variable resolver
+	 * @return The cache key
+	 */
+	public String format( Resolver<?> resolver )
+	{
+		return template.format( resolver );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The cache key pattern.
+	 */
+	private final String pattern;
+
+	/**
+	 * The template.
+	 */
+	private final Template template;
+
+	/**
+	 * The variable names.
+	 */
+	private final List<String> variableNames;
+}
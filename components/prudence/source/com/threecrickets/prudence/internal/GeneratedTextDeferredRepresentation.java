@@ -14,12 +14,20 @@ package com.threecrickets.prudence.internal;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 
+import org.restlet.Application;
 import org.restlet.Response;
 import org.restlet.data.Status;
 import org.restlet.representation.WriterRepresentation;
 
 import com.threecrickets.prudence.GeneratedTextResource;
+import com.threecrickets.prudence.service.ConversationStoppedException;
 import com.threecrickets.prudence.service.GeneratedTextResourceConversationService;
 import com.threecrickets.prudence.service.GeneratedTextResourceDocumentService;
 import com.threecrickets.scripturian.Executable;
@@ -29,6 +37,12 @@ import com.threecrickets.scripturian.exception.ParsingException;
 
 /**
  * Representation used in deferred mode of {@link GeneratedTextResource}.
+ * <p>
+ * When {@link #submit(ExecutorService, long) submitted} to an executor, the
+ * document is executed on the executor's thread into a buffer, and the
+ * response is committed with the buffered text, so that the connector's
+ * threads are never held by slow documents. Otherwise, the document is
+ * executed while the representation is written.
  * 
  * @author Tal Liron
  * @see GeneratedTextResource
@@ -96,6 +110,65 @@ public class GeneratedTextDeferredRepresentation extends WriterRepresentation im
 		// setEncodings( Arrays.asList( conversationService.getEncoding() ) );
 	}
 
+	//
+	// Operations
+	//
+
+	/**
+	 * Submits this representation for rendering on an executor. The resource
+	 * should not be auto-committing, as the response is committed when
+	 * rendering is done.
+	 * <p>
+	 * If rendering is not done within the timeout, whether because the
+	 * executor's queue is backed up or because the document is slow, the
+	 * response is committed with a
+	 * {@link Status#SERVER_ERROR_SERVICE_UNAVAILABLE} status instead. The
+	 * rendering thread is interrupted, and whatever it renders is discarded.
+	 * 
+	 * @param executor
+	 *        The executor
+	 * @param timeout
+	 *        The maximum time in milliseconds to wait for rendering to be
+	 *        done, or zero to wait indefinitely
+	 * @return False if the executor rejected the representation, in which
+	 *         case it should be rendered synchronously
+	 */
+	public boolean submit( ExecutorService executor, final long timeout )
+	{
+		try
+		{
+			executor.execute( this );
+		}
+		catch( RejectedExecutionException x )
+		{
+			return false;
+		}
+
+		if( timeout > 0 )
+		{
+			final Response response = resource.getResponse();
+			watchdog = new TimerTask()
+			{
+				@Override
+				public void run()
+				{
+					if( finished.compareAndSet( false, true ) )
+					{
+						resource.getLogger().warning( "Deferred rendering was not done within " + timeout + " ms: " + resource.getReference() );
+						Thread renderingThread = GeneratedTextDeferredRepresentation.this.renderingThread;
+						if( renderingThread != null )
+							renderingThread.interrupt();
+						response.setStatus( Status.SERVER_ERROR_SERVICE_UNAVAILABLE );
+						response.commit();
+					}
+				}
+			};
+			watchdogTimer.schedule( watchdog, timeout );
+		}
+
+		return true;
+	}
+
 	//
 	// WriterRepresentation
 	//
@@ -103,6 +176,14 @@ public class GeneratedTextDeferredRepresentation extends WriterRepresentation im
 	@Override
 	public void write( Writer writer ) throws IOException
 	{
+		String text = this.text;
+		if( text != null )
+		{
+			// Already rendered by run()
+			writer.write( text );
+			return;
+		}
+
 		executionContext.setWriter( writer );
 		try
 		{
@@ -156,9 +237,87 @@ public class GeneratedTextDeferredRepresentation extends WriterRepresentation im
 			}
 		}
 
+		if( finished.get() )
+		{
+			// The watchdog has already given up on us
+			executionContext.release();
+			return;
+		}
+
 		Response response = resource.getResponse();
-		response.setEntity( this );
-		response.setStatus( Status.SUCCESS_OK );
+		boolean rendered = false;
+		ReusableStringWriter writer = ReusableStringWriter.acquire();
+		Application oldApplication = Application.getCurrent();
+		Response oldResponse = Response.getCurrent();
+		renderingThread = Thread.currentThread();
+		try
+		{
+			// Our thread belongs to the executor, not to the conversation
+			Application.setCurrent( resource.getApplication() );
+			Response.setCurrent( response );
+
+			executionContext.setWriter( writer );
+			executable.execute( executionContext, documentService, resource.getAttributes().getExecutionController() );
+			rendered = true;
+		}
+		catch( ParsingException x )
+		{
+			resource.getLogger().log( Level.SEVERE, "Deferred rendering failed: " + resource.getReference(), x );
+		}
+		catch( ExecutionException x )
+		{
+			if( ConversationStoppedException.isConversationStopped( resource.getRequest() ) )
+			{
+				resource.getLogger().fine( "conversation.stop() was called" );
+				rendered = true;
+			}
+			else
+				resource.getLogger().log( Level.SEVERE, "Deferred rendering failed: " + resource.getReference(), x );
+		}
+		finally
+		{
+			renderingThread = null;
+			Response.setCurrent( oldResponse );
+			Application.setCurrent( oldApplication );
+			// Clear an interrupt by the watchdog, so it won't affect the
+			// executor's next task
+			Thread.interrupted();
+			try
+			{
+				executionContext.getErrorWriterOrDefault().flush();
+			}
+			catch( IOException x )
+			{
+				// The error writer is not part of the response
+			}
+			text = writer.toString();
+			writer.release();
+		}
+
+		if( !finished.compareAndSet( false, true ) )
+		{
+			// Too late: the watchdog has already committed the response
+			executionContext.release();
+			return;
+		}
+
+		if( watchdog != null )
+			watchdog.cancel();
+
+		if( rendered )
+		{
+			// Keep an error status set by the document
+			if( response.getStatus().isSuccess() )
+				response.setStatus( Status.SUCCESS_OK );
+			response.setEntity( this );
+		}
+		else
+		{
+			executionContext.release();
+			if( response.getStatus().isSuccess() )
+				response.setStatus( Status.SERVER_ERROR_INTERNAL );
+		}
+
 		response.commit();
 	}
 
@@ -190,4 +349,31 @@ public class GeneratedTextDeferredRepresentation extends WriterRepresentation im
 	 * purposes.)
 	 */
 	private final long delay;
+
+	/**
+	 * Commits timed-out responses for all instances.
+	 */
+	private static final Timer watchdogTimer = new Timer( GeneratedTextDeferredRepresentation.class.getSimpleName() + "-watchdog", true );
+
+	/**
+	 * Commits our response if rendering times out.
+	 */
+	private volatile TimerTask watchdog;
+
+	/**
+	 * Set by whichever of rendering and the watchdog finishes first, which
+	 * is then the one to commit the response.
+	 */
+	private final AtomicBoolean finished = new AtomicBoolean();
+
+	/**
+	 * The thread rendering the document, if it is being rendered by
+	 * {@link #run()}.
+	 */
+	private volatile Thread renderingThread;
+
+	/**
+	 * The text rendered by {@link #run()}.
+	 */
+	private volatile String text;
 }
\ No newline at end of file
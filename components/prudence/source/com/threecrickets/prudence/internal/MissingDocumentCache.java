@@ -0,0 +1,207 @@
+/**
+ * Copyright 2009-2012 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.internal;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.threecrickets.scripturian.exception.DocumentNotFoundException;
+
+/**
+ * Remembers document names that could not be found in a set of document file
+ * sources, so that repeated lookups of missing documents do not have to probe
+ * each source.
+ * <p>
+ * An entry is valid as long as the directories in which the document would
+ * have been found have not been modified. To keep hits cheap, the directories
+ * are checked at most once per validity check interval.
+ * <p>
+ * Instances are thread safe.
+ * 
+ * @author Tal Liron
+ */
+public class MissingDocumentCache
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param maxSize
+	 *        The maximum number of document names to remember
+	 * @param minimumTimeBetweenValidityChecks
+	 *        The minimum time in milliseconds between checks of the
+	 *        directories
+	 */
+	public MissingDocumentCache( int maxSize, long minimumTimeBetweenValidityChecks )
+	{
+		this.maxSize = maxSize;
+		this.minimumTimeBetweenValidityChecks = minimumTimeBetweenValidityChecks;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Checks whether a document is known to be missing.
+	 * 
+	 * @param key
+	 *        The key, which should identify both the document name and the
+	 *        set of sources
+	 * @param documentName
+	 *        The document name
+	 * @param basePaths
+	 *        The base paths of the document file sources
+	 * @return The exception thrown when the document was found missing, or
+	 *         null if it is not known to be missing
+	 */
+	public DocumentNotFoundException get( String key, String documentName, List<File> basePaths )
+	{
+		Entry entry = entries.get( key );
+		if( entry == null )
+			return null;
+
+		long now = System.currentTimeMillis();
+		if( now - entry.lastChecked >= minimumTimeBetweenValidityChecks )
+		{
+			if( entry.fingerprint != fingerprint( documentName, basePaths ) )
+			{
+				entries.remove( key, entry );
+				return null;
+			}
+			entry.lastChecked = now;
+		}
+
+		return entry.exception;
+	}
+
+	/**
+	 * Remembers that a document is missing.
+	 * 
+	 * @param key
+	 *        The key, which should identify both the document name and the
+	 *        set of sources
+	 * @param documentName
+	 *        The document name
+	 * @param basePaths
+	 *        The base paths of the document file sources
+	 * @param exception
+	 *        The exception to throw for the missing document
+	 */
+	public void put( String key, String documentName, List<File> basePaths, DocumentNotFoundException exception )
+	{
+		// This is only an optimization, so we'd rather start over than
+		// track usage
+		if( entries.size() >= maxSize )
+			entries.clear();
+
+		entries.put( key, new Entry( exception, fingerprint( documentName, basePaths ) ) );
+	}
+
+	/**
+	 * Forgets all missing documents.
+	 */
+	public void clear()
+	{
+		entries.clear();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The maximum number of document names to remember.
+	 */
+	private final int maxSize;
+
+	/**
+	 * The minimum time in milliseconds between checks of the directories.
+	 */
+	private final long minimumTimeBetweenValidityChecks;
+
+	/**
+	 * The entries.
+	 */
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * A missing document.
+	 */
+	private static class Entry
+	{
+		/**
+		 * Constructor.
+		 * 
+		 * @param exception
+		 *        The exception to throw for the missing document
+		 * @param fingerprint
+		 *        The fingerprint of the directories
+		 */
+		public Entry( DocumentNotFoundException exception, long fingerprint )
+		{
+			this.exception = exception;
+			this.fingerprint = fingerprint;
+			lastChecked = System.currentTimeMillis();
+		}
+
+		/**
+		 * The exception to throw for the missing document.
+		 */
+		public final DocumentNotFoundException exception;
+
+		/**
+		 * The fingerprint of the directories.
+		 */
+		public final long fingerprint;
+
+		/**
+		 * When the directories were last checked.
+		 */
+		public volatile long lastChecked;
+	}
+
+	/**
+	 * Combines the modification timestamps of the directories in which a
+	 * document would be found. Creating the document (or a directory for it)
+	 * would modify at least one of them.
+	 * 
+	 * @param documentName
+	 *        The document name
+	 * @param basePaths
+	 *        The base paths of the document file sources
+	 * @return The fingerprint
+	 */
+	private static long fingerprint( String documentName, List<File> basePaths )
+	{
+		long fingerprint = 17;
+		for( File basePath : basePaths )
+		{
+			// The document name might be a directory containing a default
+			// document
+			File file = new File( basePath, documentName );
+			fingerprint = fingerprint * 31 + file.lastModified();
+
+			// The closest existing parent directory
+			File directory = file.getParentFile();
+			long lastModified = 0;
+			while( ( directory != null ) && ( ( lastModified = directory.lastModified() ) == 0 ) )
+				directory = directory.getParentFile();
+			fingerprint = fingerprint * 31 + lastModified;
+		}
+		return fingerprint;
+	}
+}
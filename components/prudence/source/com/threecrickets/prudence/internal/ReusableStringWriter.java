@@ -0,0 +1,178 @@
+/**
+ * Copyright 2009-2012 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.internal;
+
+import java.io.Writer;
+
+import com.threecrickets.prudence.service.GeneratedTextResourceDocumentService;
+
+/**
+ * An unsynchronized {@link Writer} into a {@link StringBuilder}, which can be
+ * reused by the thread that released it.
+ * <p>
+ * Each thread keeps at most one idle instance. Acquiring while that instance
+ * is in use (for example, for a nested internal request) simply creates a new
+ * one. Instances that grew too large are not kept, so that a single huge page
+ * does not pin its buffer forever.
+ * 
+ * @author Tal Liron
+ * @see GeneratedTextResourceDocumentService
+ */
+public class ReusableStringWriter extends Writer
+{
+	//
+	// Static operations
+	//
+
+	/**
+	 * Takes this thread's idle writer, or creates a new one. Make sure to
+	 * {@link #release()} it when done.
+	 * 
+	 * @return An empty writer
+	 */
+	public static ReusableStringWriter acquire()
+	{
+		ReusableStringWriter writer = idle.get();
+		if( writer != null )
+		{
+			idle.set( null );
+			return writer;
+		}
+
+		return new ReusableStringWriter();
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The buffer.
+	 * 
+	 * @return The buffer
+	 */
+	public StringBuilder getBuffer()
+	{
+		return buffer;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Empties the writer and makes it available for reuse by the current
+	 * thread. The writer must not be used after this call.
+	 */
+	public void release()
+	{
+		if( buffer.capacity() <= MAX_REUSABLE_CAPACITY )
+		{
+			buffer.setLength( 0 );
+			idle.set( this );
+		}
+	}
+
+	//
+	// Writer
+	//
+
+	@Override
+	public void write( int c )
+	{
+		buffer.append( (char) c );
+	}
+
+	@Override
+	public void write( char[] cbuf, int off, int len )
+	{
+		buffer.append( cbuf, off, len );
+	}
+
+	@Override
+	public void write( String str )
+	{
+		buffer.append( str );
+	}
+
+	@Override
+	public void write( String str, int off, int len )
+	{
+		buffer.append( str, off, off + len );
+	}
+
+	@Override
+	public Writer append( CharSequence csq )
+	{
+		buffer.append( csq );
+		return this;
+	}
+
+	@Override
+	public Writer append( CharSequence csq, int start, int end )
+	{
+		buffer.append( csq, start, end );
+		return this;
+	}
+
+	@Override
+	public Writer append( char c )
+	{
+		buffer.append( c );
+		return this;
+	}
+
+	@Override
+	public void flush()
+	{
+	}
+
+	@Override
+	public void close()
+	{
+	}
+
+	//
+	// Object
+	//
+
+	@Override
+	public String toString()
+	{
+		return buffer.toString();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * Writers with a larger buffer capacity (in characters) are not reused.
+	 */
+	private static final int MAX_REUSABLE_CAPACITY = 64 * 1024;
+
+	/**
+	 * The idle writer per thread.
+	 */
+	private static final ThreadLocal<ReusableStringWriter> idle = new ThreadLocal<ReusableStringWriter>();
+
+	/**
+	 * The buffer.
+	 */
+	private final StringBuilder buffer = new StringBuilder( 1024 );
+
+	/**
+	 * Use {@link #acquire()} instead.
+	 */
+	private ReusableStringWriter()
+	{
+	}
+}
@@ -13,7 +13,10 @@ package com.threecrickets.prudence.internal.attributes;
 
 import java.io.File;
 import java.io.Writer;
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentMap;
 
 import org.restlet.Context;
@@ -24,6 +27,7 @@ import org.restlet.resource.ResourceException;
 import com.threecrickets.prudence.DelegatedResource;
 import com.threecrickets.prudence.GeneratedTextResource;
 import com.threecrickets.prudence.cache.Cache;
+import com.threecrickets.prudence.internal.MissingDocumentCache;
 import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.ExecutionContext;
 import com.threecrickets.scripturian.ExecutionController;
@@ -196,12 +200,43 @@ public abstract class ContextualAttributes implements DocumentExecutionAttribute
 	 */
 	public abstract Cache getCache();
 
+	/**
+	 * Remembers documents that could not be found by
+	 * {@link #createDocumentOnce(String, boolean, boolean, boolean, boolean)}.
+	 * It is stored in the application's {@link Context} for sharing among
+	 * instances.
+	 * 
+	 * @return The missing document cache
+	 */
+	public MissingDocumentCache getMissingDocumentCache()
+	{
+		if( missingDocumentCache == null )
+		{
+			ConcurrentMap<String, Object> attributes = getAttributes();
+			missingDocumentCache = (MissingDocumentCache) attributes.get( prefix + ".missingDocumentCache" );
+
+			if( missingDocumentCache == null )
+			{
+				missingDocumentCache = new MissingDocumentCache( 10000, 1000 );
+
+				MissingDocumentCache existing = (MissingDocumentCache) attributes.putIfAbsent( prefix + ".missingDocumentCache", missingDocumentCache );
+				if( existing != null )
+					missingDocumentCache = existing;
+			}
+		}
+
+		return missingDocumentCache;
+	}
+
 	//
 	// Operations
 	//
 
 	/**
 	 * Adds the library locations to the execution context.
+	 * <p>
+	 * The locations are computed once per application, and recomputed only if
+	 * the library document sources change.
 	 * 
 	 * @param executionContext
 	 *        The execution context
@@ -210,18 +245,18 @@ public abstract class ContextualAttributes implements DocumentExecutionAttribute
 	public void addLibraryLocations( ExecutionContext executionContext )
 	{
 		Iterable<DocumentSource<Executable>> sources = getLibraryDocumentSources();
-		if( sources != null )
+		if( sources == null )
+			return;
+
+		ConcurrentMap<String, Object> attributes = getAttributes();
+		LibraryLocations libraryLocations = (LibraryLocations) attributes.get( prefix + ".libraryLocations" );
+		if( ( libraryLocations == null ) || !libraryLocations.isCurrent( sources ) )
 		{
-			for( DocumentSource<Executable> source : sources )
-			{
-				if( source instanceof DocumentFileSource<?> )
-				{
-					File libraryDirectory = ( (DocumentFileSource<Executable>) source ).getBasePath();
-					if( libraryDirectory != null )
-						executionContext.getLibraryLocations().add( libraryDirectory.toURI() );
-				}
-			}
+			libraryLocations = new LibraryLocations( sources );
+			attributes.put( prefix + ".libraryLocations", libraryLocations );
 		}
+
+		executionContext.getLibraryLocations().addAll( libraryLocations.locations );
 	}
 
 	//
@@ -231,6 +266,15 @@ public abstract class ContextualAttributes implements DocumentExecutionAttribute
 	public DocumentDescriptor<Executable> createDocumentOnce( String documentName, boolean isTextWithScriptlets, boolean includeMainSource, boolean includeExtraSources, boolean includeLibrarySources )
 		throws ParsingException, DocumentException
 	{
+		List<File> basePaths = getBasePaths( includeMainSource, includeExtraSources, includeLibrarySources );
+		String missingKey = basePaths != null ? getMissingDocumentKey( documentName, includeMainSource, includeExtraSources, includeLibrarySources ) : null;
+		if( missingKey != null )
+		{
+			DocumentNotFoundException missing = getMissingDocumentCache().get( missingKey, documentName, basePaths );
+			if( missing != null )
+				throw missing;
+		}
+
 		ParsingContext parsingContext = new ParsingContext();
 		parsingContext.setLanguageManager( getLanguageManager() );
 		parsingContext.setDefaultLanguageTag( getDefaultLanguageTag() );
@@ -265,7 +309,7 @@ public abstract class ContextualAttributes implements DocumentExecutionAttribute
 				}
 
 				if( ( iterator == null ) || !iterator.hasNext() )
-					throw new DocumentNotFoundException( documentName );
+					throw missingDocument( documentName, missingKey, basePaths );
 
 				parsingContext.setDocumentSource( iterator.next() );
 			}
@@ -289,6 +333,9 @@ public abstract class ContextualAttributes implements DocumentExecutionAttribute
 
 			Executable executable = new Executable( documentName, System.currentTimeMillis(), code, true, parsingContext );
 			documentSource.setDocument( documentName, code, "", executable );
+
+			// The document now exists without a file
+			getMissingDocumentCache().clear();
 			return documentSource.getDocument( documentName );
 		}
 	}
@@ -343,4 +390,183 @@ public abstract class ContextualAttributes implements DocumentExecutionAttribute
 	 * The prefix for attribute keys.
 	 */
 	protected final String prefix;
+
+	/**
+	 * The base paths of a set of document sources.
+	 * 
+	 * @param includeMainSource
+	 *        Whether to include the main source
+	 * @param includeExtraSources
+	 *        Whether to include the extra sources
+	 * @param includeLibrarySources
+	 *        Whether to include the library sources
+	 * @return The base paths, or null if not all sources are
+	 *         {@link DocumentFileSource} instances
+	 */
+	protected List<File> getBasePaths( boolean includeMainSource, boolean includeExtraSources, boolean includeLibrarySources )
+	{
+		ArrayList<File> basePaths = new ArrayList<File>();
+		if( includeMainSource && !addBasePath( getDocumentSource(), basePaths ) )
+			return null;
+		if( includeExtraSources && !addBasePaths( getExtraDocumentSources(), basePaths ) )
+			return null;
+		if( includeLibrarySources && !addBasePaths( getLibraryDocumentSources(), basePaths ) )
+			return null;
+		return basePaths;
+	}
+
+	/**
+	 * The key for {@link #getMissingDocumentCache()}.
+	 * 
+	 * @param documentName
+	 *        The document name
+	 * @param includeMainSource
+	 *        Whether to include the main source
+	 * @param includeExtraSources
+	 *        Whether to include the extra sources
+	 * @param includeLibrarySources
+	 *        Whether to include the library sources
+	 * @return The key
+	 */
+	protected static String getMissingDocumentKey( String documentName, boolean includeMainSource, boolean includeExtraSources, boolean includeLibrarySources )
+	{
+		return ( includeMainSource ? "m" : "-" ) + ( includeExtraSources ? "e" : "-" ) + ( includeLibrarySources ? "l" : "-" ) + documentName;
+	}
+
+	/**
+	 * Creates an exception for a missing document, remembering it in
+	 * {@link #getMissingDocumentCache()} if possible.
+	 * 
+	 * @param documentName
+	 *        The document name
+	 * @param missingKey
+	 *        The key or null if not cacheable
+	 * @param basePaths
+	 *        The base paths
+	 * @return The exception
+	 */
+	protected DocumentNotFoundException missingDocument( String documentName, String missingKey, List<File> basePaths )
+	{
+		DocumentNotFoundException x = new DocumentNotFoundException( documentName );
+		if( missingKey != null )
+			getMissingDocumentCache().put( missingKey, documentName, basePaths, x );
+		return x;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * Remembers documents that could not be found.
+	 */
+	private MissingDocumentCache missingDocumentCache;
+
+	/**
+	 * The library locations, together with the base paths they were computed
+	 * from.
+	 */
+	private static class LibraryLocations
+	{
+		/**
+		 * Constructor.
+		 * 
+		 * @param sources
+		 *        The library document sources
+		 */
+		public LibraryLocations( Iterable<DocumentSource<Executable>> sources )
+		{
+			ArrayList<File> basePaths = new ArrayList<File>();
+			ArrayList<URI> locations = new ArrayList<URI>();
+			for( DocumentSource<Executable> source : sources )
+			{
+				File basePath = getBasePath( source );
+				basePaths.add( basePath );
+				if( basePath != null )
+					locations.add( basePath.toURI() );
+			}
+			this.basePaths = basePaths.toArray( new File[basePaths.size()] );
+			this.locations = locations;
+		}
+
+		/**
+		 * The library locations.
+		 */
+		public final List<URI> locations;
+
+		/**
+		 * Whether the locations were computed from exactly these sources. Only
+		 * compares identities, which is much cheaper than
+		 * {@link File#toURI()}.
+		 * 
+		 * @param sources
+		 *        The library document sources
+		 * @return True if current
+		 */
+		public boolean isCurrent( Iterable<DocumentSource<Executable>> sources )
+		{
+			int index = 0;
+			for( Iterator<DocumentSource<Executable>> i = sources.iterator(); i.hasNext(); index++ )
+				if( ( index == basePaths.length ) || ( getBasePath( i.next() ) != basePaths[index] ) )
+					return false;
+			return index == basePaths.length;
+		}
+
+		/**
+		 * The base paths, one per source (null for sources that are not
+		 * {@link DocumentFileSource}).
+		 */
+		private final File[] basePaths;
+
+		/**
+		 * The base path of a library document source.
+		 * 
+		 * @param source
+		 *        The library document source
+		 * @return The base path or null
+		 */
+		private static File getBasePath( DocumentSource<Executable> source )
+		{
+			return source instanceof DocumentFileSource<?> ? ( (DocumentFileSource<Executable>) source ).getBasePath() : null;
+		}
+	}
+
+	/**
+	 * Adds the base path of a document source.
+	 * 
+	 * @param source
+	 *        The document source or null
+	 * @param basePaths
+	 *        The base paths to add to
+	 * @return False if the source is not a {@link DocumentFileSource}
+	 */
+	private static boolean addBasePath( DocumentSource<Executable> source, List<File> basePaths )
+	{
+		if( source == null )
+			return true;
+		if( !( source instanceof DocumentFileSource<?> ) )
+			return false;
+		File basePath = ( (DocumentFileSource<Executable>) source ).getBasePath();
+		if( basePath == null )
+			return false;
+		basePaths.add( basePath );
+		return true;
+	}
+
+	/**
+	 * Adds the base paths of document sources.
+	 * 
+	 * @param sources
+	 *        The document sources or null
+	 * @param basePaths
+	 *        The base paths to add to
+	 * @return False if any of the sources is not a {@link DocumentFileSource}
+	 */
+	private static boolean addBasePaths( Iterable<DocumentSource<Executable>> sources, List<File> basePaths )
+	{
+		if( sources != null )
+			for( DocumentSource<Executable> source : sources )
+				if( !addBasePath( source, basePaths ) )
+					return false;
+		return true;
+	}
 }
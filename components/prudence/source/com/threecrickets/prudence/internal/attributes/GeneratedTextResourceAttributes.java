@@ -13,14 +13,25 @@ package com.threecrickets.prudence.internal.attributes;
 
 import java.io.File;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.restlet.Context;
+import org.restlet.data.MediaType;
+import org.restlet.service.Service;
 
 import com.threecrickets.prudence.DelegatedScriptletPlugin;
 import com.threecrickets.prudence.GeneratedTextResource;
+import com.threecrickets.prudence.util.IoUtil;
 import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.ParsingContext;
 import com.threecrickets.scripturian.ScriptletPlugin;
@@ -186,6 +197,65 @@ public class GeneratedTextResourceAttributes extends ResourceContextualAttribute
 		return negotiateEncoding;
 	}
 
+	/**
+	 * The compression level to use when encoding generated text. Defaults to
+	 * {@link IoUtil#DEFAULT_COMPRESSION_LEVEL}. Levels can be overridden per
+	 * media type via {@link #getCompressionLevels()}.
+	 * <p>
+	 * This setting can be configured by setting an attribute named
+	 * <code>compressionLevel</code> in the application's {@link Context}.
+	 * 
+	 * @param mediaType
+	 *        The media type or null
+	 * @return The compression level (0-9, or -1 for the zlib default)
+	 */
+	public int getCompressionLevel( MediaType mediaType )
+	{
+		if( mediaType != null )
+		{
+			Map<String, Number> compressionLevels = getCompressionLevels();
+			if( compressionLevels != null )
+			{
+				Number level = compressionLevels.get( mediaType.getName() );
+				if( level != null )
+					return level.intValue();
+			}
+		}
+
+		if( compressionLevel == null )
+		{
+			Number number = (Number) getAttributes().get( prefix + ".compressionLevel" );
+
+			if( number != null )
+				compressionLevel = number.intValue();
+
+			if( compressionLevel == null )
+				compressionLevel = IoUtil.DEFAULT_COMPRESSION_LEVEL;
+		}
+
+		return compressionLevel;
+	}
+
+	/**
+	 * Compression levels per media type name, overriding the application's
+	 * compression level. For example, you might want to use a low level for
+	 * large, frequently generated JSON responses.
+	 * <p>
+	 * This setting can be configured by setting an attribute named
+	 * <code>compressionLevels</code> in the application's {@link Context}.
+	 * 
+	 * @return The compression levels or null
+	 * @see #getCompressionLevel(MediaType)
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, Number> getCompressionLevels()
+	{
+		if( compressionLevels == null )
+			compressionLevels = (Map<String, Number>) getAttributes().get( prefix + ".compressionLevels" );
+
+		return compressionLevels;
+	}
+
 	/**
 	 * Whether or not to send information to the client about cache expiration.
 	 * Defaults to {@link #CLIENT_CACHING_MODE_CONDITIONAL}.
@@ -211,6 +281,197 @@ public class GeneratedTextResourceAttributes extends ResourceContextualAttribute
 		return clientCachingMode;
 	}
 
+	/**
+	 * Whether concurrent cache misses for the same cache key should be
+	 * coalesced, so that only one request executes the document while the
+	 * others wait for it to store its output in the cache. Only applies to
+	 * documents that were cached on their previous execution. Defaults to
+	 * true.
+	 * <p>
+	 * This setting can be configured by setting an attribute named
+	 * <code>cacheSingleFlight</code> in the application's {@link Context}.
+	 * 
+	 * @return Whether to coalesce cache misses
+	 * @see #getCacheSingleFlightTimeout()
+	 */
+	public boolean isCacheSingleFlight()
+	{
+		if( cacheSingleFlight == null )
+		{
+			cacheSingleFlight = (Boolean) getAttributes().get( prefix + ".cacheSingleFlight" );
+
+			if( cacheSingleFlight == null )
+				cacheSingleFlight = true;
+		}
+
+		return cacheSingleFlight;
+	}
+
+	/**
+	 * The maximum time a coalesced request will wait for the in-flight
+	 * execution before giving up and executing the document itself. Defaults
+	 * to 10 seconds.
+	 * <p>
+	 * This setting can be configured by setting an attribute named
+	 * <code>cacheSingleFlightTimeout</code> in the application's
+	 * {@link Context}.
+	 * 
+	 * @return The timeout in milliseconds
+	 * @see #isCacheSingleFlight()
+	 */
+	public long getCacheSingleFlightTimeout()
+	{
+		if( cacheSingleFlightTimeout == null )
+		{
+			Number number = (Number) getAttributes().get( prefix + ".cacheSingleFlightTimeout" );
+
+			if( number != null )
+				cacheSingleFlightTimeout = number.longValue();
+
+			if( cacheSingleFlightTimeout == null )
+				cacheSingleFlightTimeout = 10000L;
+		}
+
+		return cacheSingleFlightTimeout;
+	}
+
+	/**
+	 * The cache keys currently being generated, mapped to latches that are
+	 * released when generation is done. It is stored in the application's
+	 * {@link Context} for sharing among instances of
+	 * {@link GeneratedTextResource}.
+	 * 
+	 * @return The in-flight cache keys
+	 * @see #isCacheSingleFlight()
+	 */
+	@SuppressWarnings("unchecked")
+	public ConcurrentMap<String, CountDownLatch> getInFlightCacheKeys()
+	{
+		if( inFlightCacheKeys == null )
+		{
+			ConcurrentMap<String, Object> attributes = getAttributes();
+			inFlightCacheKeys = (ConcurrentMap<String, CountDownLatch>) attributes.get( prefix + ".inFlightCacheKeys" );
+
+			if( inFlightCacheKeys == null )
+			{
+				inFlightCacheKeys = new ConcurrentHashMap<String, CountDownLatch>();
+
+				ConcurrentMap<String, CountDownLatch> existing = (ConcurrentMap<String, CountDownLatch>) attributes.putIfAbsent( prefix + ".inFlightCacheKeys", inFlightCacheKeys );
+				if( existing != null )
+					inFlightCacheKeys = existing;
+			}
+		}
+
+		return inFlightCacheKeys;
+	}
+
+	/**
+	 * Whether deferred documents are rendered asynchronously, releasing the
+	 * connector thread. Defaults to false, in which case deferred documents
+	 * are rendered on the connector thread.
+	 * <p>
+	 * This setting can be configured by setting an attribute named
+	 * <code>asynchronous</code> in the application's {@link Context}.
+	 * 
+	 * @return Whether to render deferred documents asynchronously
+	 * @see #getDeferredExecutor()
+	 */
+	public boolean isAsynchronous()
+	{
+		if( asynchronous == null )
+		{
+			asynchronous = (Boolean) getAttributes().get( prefix + ".asynchronous" );
+
+			if( asynchronous == null )
+				asynchronous = false;
+		}
+
+		return asynchronous;
+	}
+
+	/**
+	 * The executor on which deferred documents are rendered in asynchronous
+	 * mode. It is stored in the application's {@link Context} for sharing
+	 * among instances of {@link GeneratedTextResource}.
+	 * <p>
+	 * An executor can be configured by setting an attribute named
+	 * <code>deferredExecutor</code> in the application's {@link Context}.
+	 * Otherwise, a bounded executor is created with the number of threads set
+	 * in the <code>deferredThreads</code> attribute (defaults to twice the
+	 * number of processors) and the queue size set in the
+	 * <code>deferredQueueSize</code> attribute (defaults to 100). When the
+	 * queue is full the executor rejects the document, which is then rendered
+	 * on the connector thread. A created executor is shut down when the
+	 * application stops.
+	 * 
+	 * @return The executor
+	 * @see #isAsynchronous()
+	 */
+	public ExecutorService getDeferredExecutor()
+	{
+		if( deferredExecutor == null )
+		{
+			ConcurrentMap<String, Object> attributes = getAttributes();
+			deferredExecutor = (ExecutorService) attributes.get( prefix + ".deferredExecutor" );
+
+			if( deferredExecutor == null )
+			{
+				Number threads = (Number) attributes.get( prefix + ".deferredThreads" );
+				Number queueSize = (Number) attributes.get( prefix + ".deferredQueueSize" );
+				int poolSize = threads != null ? threads.intValue() : Runtime.getRuntime().availableProcessors() * 2;
+				final String name = resource.getClass().getSimpleName() + "-deferred-";
+				final AtomicInteger threadCounter = new AtomicInteger();
+				deferredExecutor = new ThreadPoolExecutor( poolSize, poolSize, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>( queueSize != null ? queueSize.intValue() : 100 ), new ThreadFactory()
+				{
+					public Thread newThread( Runnable runnable )
+					{
+						Thread thread = new Thread( runnable, name + threadCounter.incrementAndGet() );
+						thread.setDaemon( true );
+						return thread;
+					}
+				} );
+
+				ExecutorService existing = (ExecutorService) attributes.putIfAbsent( prefix + ".deferredExecutor", deferredExecutor );
+				if( existing != null )
+				{
+					deferredExecutor.shutdown();
+					deferredExecutor = existing;
+				}
+				else
+					resource.getApplication().getServices().add( new ExecutorShutdownService( attributes, prefix + ".deferredExecutor", deferredExecutor ) );
+			}
+		}
+
+		return deferredExecutor;
+	}
+
+	/**
+	 * The maximum time a deferred document may wait for the
+	 * {@link #getDeferredExecutor()} before it is abandoned with a 503 status.
+	 * Defaults to 30 seconds.
+	 * <p>
+	 * This setting can be configured by setting an attribute named
+	 * <code>deferredTimeout</code> in the application's {@link Context}.
+	 * 
+	 * @return The timeout in milliseconds
+	 * @see #isAsynchronous()
+	 */
+	public long getDeferredTimeout()
+	{
+		if( deferredTimeout == null )
+		{
+			Number number = (Number) getAttributes().get( prefix + ".deferredTimeout" );
+
+			if( number != null )
+				deferredTimeout = number.longValue();
+
+			if( deferredTimeout == null )
+				deferredTimeout = 30000L;
+		}
+
+		return deferredTimeout;
+	}
+
 	/**
 	 * The scriptlet plugins to use during parsing.
 	 * 
@@ -255,6 +516,15 @@ public class GeneratedTextResourceAttributes extends ResourceContextualAttribute
 	 */
 	public DocumentDescriptor<Executable> getDocument( String documentName, boolean includeExtraSources ) throws DocumentException
 	{
+		List<File> basePaths = getBasePaths( true, includeExtraSources, false );
+		String missingKey = basePaths != null ? getMissingDocumentKey( documentName, true, includeExtraSources, false ) : null;
+		if( missingKey != null )
+		{
+			DocumentNotFoundException missing = getMissingDocumentCache().get( missingKey, documentName, basePaths );
+			if( missing != null )
+				throw missing;
+		}
+
 		DocumentSource<Executable> documentSource = getDocumentSource();
 		Iterator<DocumentSource<Executable>> iterator = null;
 		while( true )
@@ -276,7 +546,7 @@ public class GeneratedTextResourceAttributes extends ResourceContextualAttribute
 				}
 
 				if( ( iterator == null ) || !iterator.hasNext() )
-					throw new DocumentNotFoundException( documentName );
+					throw missingDocument( documentName, missingKey, basePaths );
 
 				documentSource = iterator.next();
 			}
@@ -291,6 +561,15 @@ public class GeneratedTextResourceAttributes extends ResourceContextualAttribute
 	public DocumentDescriptor<Executable> createDocumentOnce( String documentName, boolean isTextWithScriptlets, boolean includeMainSource, boolean includeExtraSources, boolean includeLibrarySources )
 		throws ParsingException, DocumentException
 	{
+		List<File> basePaths = getBasePaths( includeMainSource, includeExtraSources, includeLibrarySources );
+		String missingKey = basePaths != null ? getMissingDocumentKey( documentName, includeMainSource, includeExtraSources, includeLibrarySources ) : null;
+		if( missingKey != null )
+		{
+			DocumentNotFoundException missing = getMissingDocumentCache().get( missingKey, documentName, basePaths );
+			if( missing != null )
+				throw missing;
+		}
+
 		ParsingContext parsingContext = new ParsingContext();
 		parsingContext.setLanguageManager( getLanguageManager() );
 		parsingContext.setDefaultLanguageTag( getDefaultLanguageTag() );
@@ -332,7 +611,7 @@ public class GeneratedTextResourceAttributes extends ResourceContextualAttribute
 				}
 
 				if( ( iterator == null ) || !iterator.hasNext() )
-					throw new DocumentNotFoundException( documentName );
+					throw missingDocument( documentName, missingKey, basePaths );
 
 				parsingContext.setDocumentSource( iterator.next() );
 			}
@@ -370,13 +649,109 @@ public class GeneratedTextResourceAttributes extends ResourceContextualAttribute
 	 */
 	private Boolean negotiateEncoding;
 
+	/**
+	 * The compression level.
+	 */
+	private Integer compressionLevel;
+
+	/**
+	 * Compression levels per media type name.
+	 */
+	private Map<String, Number> compressionLevels;
+
 	/**
 	 * Whether or not to send information to the client about cache expiration.
 	 */
 	private Integer clientCachingMode;
 
+	/**
+	 * Whether to coalesce concurrent cache misses for the same cache key.
+	 */
+	private Boolean cacheSingleFlight;
+
+	/**
+	 * The maximum time in milliseconds to wait for an in-flight execution.
+	 */
+	private Long cacheSingleFlightTimeout;
+
+	/**
+	 * The cache keys currently being generated.
+	 */
+	private ConcurrentMap<String, CountDownLatch> inFlightCacheKeys;
+
+	/**
+	 * Whether deferred documents are rendered asynchronously.
+	 */
+	private Boolean asynchronous;
+
+	/**
+	 * The executor on which deferred documents are rendered.
+	 */
+	private ExecutorService deferredExecutor;
+
+	/**
+	 * The maximum time in milliseconds a deferred document may wait for the
+	 * executor.
+	 */
+	private Long deferredTimeout;
+
 	/**
 	 * The scriptlet plugins used during parsing.
 	 */
 	private ConcurrentMap<String, ScriptletPlugin> scriptletPlugins;
+
+	/**
+	 * Shuts down an executor we created when the application stops, and
+	 * removes it from the application's {@link Context}, so that a restarted
+	 * application creates a new one.
+	 */
+	private static class ExecutorShutdownService extends Service
+	{
+		/**
+		 * Constructor.
+		 * 
+		 * @param attributes
+		 *        The attributes in which the executor is stored
+		 * @param name
+		 *        The attribute name
+		 * @param executor
+		 *        The executor
+		 */
+		public ExecutorShutdownService( ConcurrentMap<String, Object> attributes, String name, ExecutorService executor )
+		{
+			this.attributes = attributes;
+			this.name = name;
+			this.executor = executor;
+		}
+
+		//
+		// Service
+		//
+
+		@Override
+		public synchronized void stop() throws Exception
+		{
+			super.stop();
+			attributes.remove( name, executor );
+			executor.shutdown();
+		}
+
+		// //////////////////////////////////////////////////////////////////////////
+		// Private
+
+		/**
+		 * The attributes in which the executor is stored.
+		 */
+		private final ConcurrentMap<String, Object> attributes;
+
+		/**
+		 * The attribute name.
+		 */
+		private final String name;
+
+		/**
+		 * The executor.
+		 */
+		private final ExecutorService executor;
+	}
 }
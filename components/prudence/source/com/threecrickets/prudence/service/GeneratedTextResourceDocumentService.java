@@ -11,40 +11,46 @@
 
 package com.threecrickets.prudence.service;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
+import org.restlet.Application;
 import org.restlet.Request;
 import org.restlet.Response;
+import org.restlet.data.ClientInfo;
 import org.restlet.data.Encoding;
 import org.restlet.data.Form;
 import org.restlet.data.Reference;
 import org.restlet.representation.Representation;
 import org.restlet.representation.StringRepresentation;
 import org.restlet.representation.Variant;
-import org.restlet.routing.Template;
 
 import com.threecrickets.prudence.DelegatedCacheKeyPatternHandler;
 import com.threecrickets.prudence.GeneratedTextResource;
+import com.threecrickets.prudence.cache.AsyncCache;
 import com.threecrickets.prudence.cache.Cache;
 import com.threecrickets.prudence.cache.CacheEntry;
 import com.threecrickets.prudence.internal.CacheKeyPatternResolver;
+import com.threecrickets.prudence.internal.CacheKeyTemplate;
 import com.threecrickets.prudence.internal.CaptureWriter;
 import com.threecrickets.prudence.internal.GeneratedTextDeferredRepresentation;
+import com.threecrickets.prudence.internal.ReusableStringWriter;
 import com.threecrickets.prudence.internal.attributes.GeneratedTextResourceAttributes;
 import com.threecrickets.prudence.util.CapturingRedirector;
+import com.threecrickets.prudence.util.LoggingUtil;
 import com.threecrickets.prudence.util.PrudenceScriptletPlugin;
 import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.ExecutionContext;
@@ -132,6 +138,30 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 		getDescriptor().getDocument().getAttributes().put( CACHE_DURATION_ATTRIBUTE, cacheDuration );
 	}
 
+	/**
+	 * The cache grace duration: how long after expiration a cached entry may
+	 * still be served as stale while the document is being regenerated in the
+	 * background, or if regeneration fails.
+	 * 
+	 * @return The cache grace duration in milliseconds
+	 * @see #setCacheGraceDuration(long)
+	 * @see CacheEntry#getGraceDuration()
+	 */
+	public long getCacheGraceDuration()
+	{
+		return getCacheGraceDuration( getDescriptor().getDocument() );
+	}
+
+	/**
+	 * @param cacheGraceDuration
+	 *        The cache grace duration in milliseconds
+	 * @see #getCacheGraceDuration()
+	 */
+	public void setCacheGraceDuration( long cacheGraceDuration )
+	{
+		getDescriptor().getDocument().getAttributes().put( CACHE_GRACE_DURATION_ATTRIBUTE, cacheGraceDuration );
+	}
+
 	/**
 	 * The cache key pattern.
 	 * 
@@ -421,11 +451,31 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 	 */
 	private static final String CACHE_DURATION_ATTRIBUTE = "com.threecrickets.prudence.GeneratedTextResource.cacheDuration";
 
+	/**
+	 * Cache grace duration attribute for an {@link Executable}.
+	 */
+	private static final String CACHE_GRACE_DURATION_ATTRIBUTE = "com.threecrickets.prudence.GeneratedTextResource.cacheGraceDuration";
+
+	/**
+	 * Cached attribute for an {@link Executable}.
+	 */
+	private static final String CACHED_ATTRIBUTE = "com.threecrickets.prudence.GeneratedTextResource.cached";
+
 	/**
 	 * Cache key pattern attribute for an {@link Executable}.
 	 */
 	private static final String CACHE_KEY_PATTERN_ATTRIBUTE = "com.threecrickets.prudence.GeneratedTextResource.cacheKeyPattern";
 
+	/**
+	 * Cache key template attribute for an {@link Executable}.
+	 */
+	private static final String CACHE_KEY_TEMPLATE_ATTRIBUTE = "com.threecrickets.prudence.GeneratedTextResource.cacheKeyTemplate";
+
+	/**
+	 * Cast cache key attribute for a {@link Request}.
+	 */
+	private static final String CAST_CACHE_KEY_ATTRIBUTE = "com.threecrickets.prudence.GeneratedTextResource.castCacheKey";
+
 	/**
 	 * Cache key pattern handlers attribute for an {@link Executable}.
 	 */
@@ -469,7 +519,17 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 	/**
 	 * Buffer used for caching.
 	 */
-	private StringBuffer writerBuffer;
+	private StringBuilder writerBuffer;
+
+	/**
+	 * The cache key we are regenerating in the background.
+	 */
+	private String revalidationCacheKey;
+
+	/**
+	 * The latch to release when we are done regenerating in the background.
+	 */
+	private CountDownLatch revalidationFlight;
 
 	/**
 	 * The encoding for the executable (different from the encoding for the
@@ -513,6 +573,28 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 		return (String) executable.getAttributes().get( CACHE_KEY_PATTERN_ATTRIBUTE );
 	}
 
+	/**
+	 * The parsed cache key pattern, cached in the executable's attributes so
+	 * that it is parsed only once.
+	 * 
+	 * @param executable
+	 *        The executable
+	 * @param cacheKeyPattern
+	 *        The cache key pattern
+	 * @return The cache key template
+	 */
+	private static CacheKeyTemplate getCacheKeyTemplate( Executable executable, String cacheKeyPattern )
+	{
+		CacheKeyTemplate template = (CacheKeyTemplate) executable.getAttributes().get( CACHE_KEY_TEMPLATE_ATTRIBUTE );
+		if( ( template == null ) || !template.getPattern().equals( cacheKeyPattern ) )
+		{
+			// Concurrent conversations might parse it too, but that's harmless
+			template = new CacheKeyTemplate( cacheKeyPattern );
+			executable.getAttributes().put( CACHE_KEY_TEMPLATE_ATTRIBUTE, template );
+		}
+		return template;
+	}
+
 	/**
 	 * @param executable
 	 *        The executable
@@ -559,6 +641,32 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 		return cacheTags;
 	}
 
+	/**
+	 * @param executable
+	 *        The executable
+	 * @return The cache grace duration in milliseconds
+	 */
+	private static long getCacheGraceDuration( Executable executable )
+	{
+		Long cacheGraceDuration = (Long) executable.getAttributes().get( CACHE_GRACE_DURATION_ATTRIBUTE );
+		return cacheGraceDuration == null ? 0 : cacheGraceDuration;
+	}
+
+	/**
+	 * Whether the executable's output was cached on its last execution.
+	 * <p>
+	 * Note that unlike the cache duration, this attribute is not reset while
+	 * the executable is executing.
+	 * 
+	 * @param executable
+	 *        The executable
+	 * @return True if it was cached
+	 */
+	private static boolean wasCached( Executable executable )
+	{
+		return Boolean.TRUE.equals( executable.getAttributes().get( CACHED_ATTRIBUTE ) );
+	}
+
 	/**
 	 * @return The cache expiration timestamp for the executable
 	 */
@@ -610,38 +718,40 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 
 	/**
 	 * Calls all installed cache key pattern handlers for the cache key pattern.
+	 * Handlers installed for the document override those installed for the
+	 * resource.
 	 * 
 	 * @param template
-	 *        The cache key pattern template
+	 *        The cache key template
 	 * @param documentDescriptor
 	 *        The document descriptor
 	 */
-	private void callCacheKeyPatternHandlers( Template template, DocumentDescriptor<Executable> documentDescriptor )
+	private void callCacheKeyPatternHandlers( CacheKeyTemplate template, DocumentDescriptor<Executable> documentDescriptor )
 	{
 		Map<String, String> resourceCacheKeyPatternHandlers = attributes.getCacheKeyPatternHandlers();
 		Map<String, String> documentCacheKeyPatternHandlers = getCacheKeyPatternHandlers( documentDescriptor.getDocument(), false );
 
 		// Make sure we have handlers
-		if( ( ( resourceCacheKeyPatternHandlers == null ) || resourceCacheKeyPatternHandlers.isEmpty() ) && ( ( documentCacheKeyPatternHandlers == null ) || documentCacheKeyPatternHandlers.isEmpty() ) )
+		if( ( resourceCacheKeyPatternHandlers != null ) && resourceCacheKeyPatternHandlers.isEmpty() )
+			resourceCacheKeyPatternHandlers = null;
+		if( ( documentCacheKeyPatternHandlers != null ) && documentCacheKeyPatternHandlers.isEmpty() )
+			documentCacheKeyPatternHandlers = null;
+		if( ( resourceCacheKeyPatternHandlers == null ) && ( documentCacheKeyPatternHandlers == null ) )
 			return;
 
-		// Merge all handlers
-		Map<String, String> cacheKeyPatternHandlers = new HashMap<String, String>();
-		if( resourceCacheKeyPatternHandlers != null )
-			cacheKeyPatternHandlers.putAll( resourceCacheKeyPatternHandlers );
-		if( documentCacheKeyPatternHandlers != null )
-			cacheKeyPatternHandlers.putAll( documentCacheKeyPatternHandlers );
-
 		// Group variables together per handler
-		Map<String, Set<String>> delegatedHandlers = new HashMap<String, Set<String>>();
-		List<String> variableNames = template.getVariableNames();
-		for( Map.Entry<String, String> entry : cacheKeyPatternHandlers.entrySet() )
+		Map<String, Set<String>> delegatedHandlers = null;
+		for( String name : template.getVariableNames() )
 		{
-			String name = entry.getKey();
-			String documentName = entry.getValue();
+			String documentName = documentCacheKeyPatternHandlers != null ? documentCacheKeyPatternHandlers.get( name ) : null;
+			if( ( documentName == null ) && ( resourceCacheKeyPatternHandlers != null ) )
+				documentName = resourceCacheKeyPatternHandlers.get( name );
 
-			if( variableNames.contains( name ) )
+			if( documentName != null )
 			{
+				if( delegatedHandlers == null )
+					delegatedHandlers = new HashMap<String, Set<String>>();
+
 				Set<String> variables = delegatedHandlers.get( documentName );
 				if( variables == null )
 				{
@@ -654,7 +764,7 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 		}
 
 		// Call handlers
-		if( !delegatedHandlers.isEmpty() )
+		if( delegatedHandlers != null )
 		{
 			for( Map.Entry<String, Set<String>> entry : delegatedHandlers.entrySet() )
 			{
@@ -669,25 +779,32 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 
 	/**
 	 * Casts the cache key pattern for an executable.
+	 * <p>
+	 * The cast key is remembered for the conversation, so that it is cast only
+	 * once, unless the executable's cache key pattern changes.
 	 * 
 	 * @param documentDescriptor
 	 *        The document descriptor
-	 * @param encoding
-	 *        The encoding or null
 	 * @return The cache key or null
 	 */
 	private String castCacheKey( DocumentDescriptor<Executable> documentDescriptor )
 	{
-		String cacheKeyPattern = getCacheKeyPattern( documentDescriptor.getDocument() );
+		Executable executable = documentDescriptor.getDocument();
+		String cacheKeyPattern = getCacheKeyPattern( executable );
 		if( cacheKeyPattern == null )
 			return null;
 		else
 		{
 			Request request = resource.getRequest();
+
+			CastCacheKey castCacheKey = (CastCacheKey) request.getAttributes().get( CAST_CACHE_KEY_ATTRIBUTE );
+			if( ( castCacheKey != null ) && ( castCacheKey.executable == executable ) && castCacheKey.cacheKeyPattern.equals( cacheKeyPattern ) )
+				return castCacheKey.cacheKey;
+
 			Response response = resource.getResponse();
 
 			// Template and its resolver
-			Template template = new Template( cacheKeyPattern );
+			CacheKeyTemplate template = getCacheKeyTemplate( executable, cacheKeyPattern );
 			CacheKeyPatternResolver resolver = new CacheKeyPatternResolver( documentDescriptor, resource, conversationService, request, response );
 
 			// Cache key pattern handlers
@@ -699,10 +816,11 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 			if( captiveReference != null )
 				request.setResourceRef( captiveReference );
 
+			String cacheKey;
 			try
 			{
 				// Cast it
-				return template.format( resolver );
+				cacheKey = template.format( resolver );
 			}
 			finally
 			{
@@ -710,7 +828,48 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 				if( captiveReference != null )
 					request.setResourceRef( resourceReference );
 			}
+
+			request.getAttributes().put( CAST_CACHE_KEY_ATTRIBUTE, new CastCacheKey( executable, cacheKeyPattern, cacheKey ) );
+			return cacheKey;
+		}
+	}
+
+	/**
+	 * A cache key cast for a conversation.
+	 */
+	private static class CastCacheKey
+	{
+		/**
+		 * Constructor.
+		 * 
+		 * @param executable
+		 *        The executable
+		 * @param cacheKeyPattern
+		 *        The cache key pattern
+		 * @param cacheKey
+		 *        The cast cache key
+		 */
+		public CastCacheKey( Executable executable, String cacheKeyPattern, String cacheKey )
+		{
+			this.executable = executable;
+			this.cacheKeyPattern = cacheKeyPattern;
+			this.cacheKey = cacheKey;
 		}
+
+		/**
+		 * The executable.
+		 */
+		public final Executable executable;
+
+		/**
+		 * The cache key pattern.
+		 */
+		public final String cacheKeyPattern;
+
+		/**
+		 * The cast cache key.
+		 */
+		public final String cacheKey;
 	}
 
 	/**
@@ -750,6 +909,263 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 		return cleanedCacheTags;
 	}
 
+	/**
+	 * Fetches a valid cache entry for an executable, trying the cache key for
+	 * the encoding first.
+	 * 
+	 * @param cache
+	 *        The cache
+	 * @param cacheKey
+	 *        The cache key
+	 * @param encoding
+	 *        The encoding or null
+	 * @param executable
+	 *        The executable
+	 * @return The cache entry or null
+	 */
+	private static CacheEntry fetch( Cache cache, String cacheKey, Encoding encoding, Executable executable )
+	{
+		// Try cache key for encoding first
+		String cacheKeyForEncoding = getCacheKeyForEncoding( cacheKey, encoding );
+		CacheEntry cacheEntry = cache.fetch( cacheKeyForEncoding );
+		if( cacheEntry == null )
+			cacheEntry = cache.fetch( cacheKey );
+
+		// Make sure the document is not newer than the cache entry
+		if( ( cacheEntry != null ) && ( executable.getDocumentTimestamp() <= cacheEntry.getDocumentModificationDate().getTime() ) )
+			return cacheEntry;
+
+		return null;
+	}
+
+	/**
+	 * Stores an entry in the cache. If the cache is an {@link AsyncCache}, we
+	 * do not wait for the backend unless asked to, so that storing does not
+	 * add to the response time.
+	 * 
+	 * @param cache
+	 *        The cache
+	 * @param key
+	 *        The cache key
+	 * @param entry
+	 *        The cache entry
+	 * @param wait
+	 *        Whether to wait for the entry to be stored
+	 */
+	private static void store( Cache cache, String key, CacheEntry entry, boolean wait )
+	{
+		if( !wait && ( cache instanceof AsyncCache ) )
+			( (AsyncCache) cache ).storeAsync( key, entry );
+		else
+			cache.store( key, entry );
+	}
+
+	/**
+	 * Waits for an in-flight execution of the cache key, if there is one, or
+	 * otherwise registers ourselves as the in-flight execution.
+	 * 
+	 * @param cacheKey
+	 *        The cache key
+	 * @return A latch to release when we are done executing, or null if we
+	 *         waited for another execution
+	 */
+	private CountDownLatch joinFlight( String cacheKey )
+	{
+		ConcurrentMap<String, CountDownLatch> inFlightCacheKeys = attributes.getInFlightCacheKeys();
+		CountDownLatch flight = new CountDownLatch( 1 );
+		CountDownLatch existing = inFlightCacheKeys.putIfAbsent( cacheKey, flight );
+		if( existing == null )
+			return flight;
+
+		try
+		{
+			existing.await( attributes.getCacheSingleFlightTimeout(), TimeUnit.MILLISECONDS );
+		}
+		catch( InterruptedException x )
+		{
+			// Restore interrupt status
+			Thread.currentThread().interrupt();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Releases requests waiting for our execution.
+	 * 
+	 * @param cacheKey
+	 *        The cache key
+	 * @param flight
+	 *        The latch returned by {@link #joinFlight(String)}
+	 */
+	private void leaveFlight( String cacheKey, CountDownLatch flight )
+	{
+		attributes.getInFlightCacheKeys().remove( cacheKey, flight );
+		flight.countDown();
+	}
+
+	/**
+	 * Makes sure a stale cache entry is being regenerated in the background on
+	 * the application's executor. Regeneration happens against a detached
+	 * copy of the conversation, because our request and response will be
+	 * used (and released) by this thread in the meantime.
+	 * 
+	 * @param documentDescriptor
+	 *        The document descriptor
+	 * @param cacheKey
+	 *        The cache key
+	 * @return Null if regeneration is queued or already in flight, otherwise
+	 *         a latch to release via {@link #leaveFlight(String, CountDownLatch)}
+	 *         after regenerating ourselves
+	 */
+	private CountDownLatch revalidate( final DocumentDescriptor<Executable> documentDescriptor, final String cacheKey )
+	{
+		final CountDownLatch flight = new CountDownLatch( 1 );
+		if( attributes.getInFlightCacheKeys().putIfAbsent( cacheKey, flight ) != null )
+			// Already being regenerated
+			return null;
+
+		try
+		{
+			final Application application = Application.getCurrent();
+			final GeneratedTextResource detachedResource = detach();
+			final Variant preferences = conversationService.getPreferences();
+
+			applicationService.getExecutor().submit( new Runnable()
+			{
+				public void run()
+				{
+					regenerate( application, detachedResource, preferences, documentDescriptor, cacheKey, flight );
+				}
+			} );
+			return null;
+		}
+		catch( RejectedExecutionException x )
+		{
+			return flight;
+		}
+		catch( RuntimeException x )
+		{
+			leaveFlight( cacheKey, flight );
+			throw x;
+		}
+	}
+
+	/**
+	 * Creates a resource for a synthetic conversation, copying only what the
+	 * cache key and the document could need from our request. Must be called
+	 * on the thread handling our conversation.
+	 * 
+	 * @return The detached resource
+	 */
+	private GeneratedTextResource detach()
+	{
+		Request request = resource.getRequest();
+		Request detachedRequest = new Request( request.getMethod(), copy( request.getResourceRef() ) );
+		detachedRequest.setOriginalRef( copy( request.getOriginalRef() ) );
+		detachedRequest.setRootRef( copy( request.getRootRef() ) );
+		detachedRequest.setHostRef( copy( request.getHostRef() ) );
+		detachedRequest.setReferrerRef( copy( request.getReferrerRef() ) );
+		detachedRequest.setProtocol( request.getProtocol() );
+		detachedRequest.setChallengeResponse( request.getChallengeResponse() );
+		detachedRequest.setCookies( request.getCookies() );
+		detachedRequest.getAttributes().putAll( request.getAttributes() );
+
+		// Cached values that should not leak into the synthetic conversation
+		detachedRequest.getAttributes().remove( CACHE_ENTRY_ATTRIBUTE );
+		detachedRequest.getAttributes().remove( CACHE_KEY_ATTRIBUTE );
+
+		ClientInfo clientInfo = request.getClientInfo();
+		ClientInfo detachedClientInfo = new ClientInfo();
+		detachedClientInfo.setAddress( clientInfo.getAddress() );
+		detachedClientInfo.setPort( clientInfo.getPort() );
+		detachedClientInfo.setAgent( clientInfo.getAgent() );
+		detachedClientInfo.setForwardedAddresses( clientInfo.getForwardedAddresses() );
+		detachedClientInfo.setUser( clientInfo.getUser() );
+		detachedClientInfo.setAcceptedMediaTypes( clientInfo.getAcceptedMediaTypes() );
+		detachedClientInfo.setAcceptedCharacterSets( clientInfo.getAcceptedCharacterSets() );
+		detachedClientInfo.setAcceptedEncodings( clientInfo.getAcceptedEncodings() );
+		detachedClientInfo.setAcceptedLanguages( clientInfo.getAcceptedLanguages() );
+		detachedRequest.setClientInfo( detachedClientInfo );
+
+		GeneratedTextResource detachedResource = new GeneratedTextResource();
+		detachedResource.init( resource.getContext(), detachedRequest, new Response( detachedRequest ) );
+		return detachedResource;
+	}
+
+	/**
+	 * Copies a reference.
+	 * 
+	 * @param reference
+	 *        The reference or null
+	 * @return The copy or null
+	 */
+	private static Reference copy( Reference reference )
+	{
+		return reference != null ? new Reference( reference ) : null;
+	}
+
+	/**
+	 * Regenerates a document and stores it in the cache, using a new document
+	 * service for a detached conversation.
+	 * 
+	 * @param application
+	 *        The application
+	 * @param detachedResource
+	 *        The resource returned by {@link #detach()}
+	 * @param preferences
+	 *        The negotiated client preferences or null
+	 * @param documentDescriptor
+	 *        The document descriptor
+	 * @param cacheKey
+	 *        The cache key
+	 * @param flight
+	 *        The latch to release when done
+	 */
+	private void regenerate( Application application, GeneratedTextResource detachedResource, Variant preferences, DocumentDescriptor<Executable> documentDescriptor, String cacheKey, CountDownLatch flight )
+	{
+		Application oldApplication = Application.getCurrent();
+		Response oldResponse = Response.getCurrent();
+		ExecutionContext executionContext = new ExecutionContext();
+		try
+		{
+			Application.setCurrent( application );
+			Response.setCurrent( detachedResource.getResponse() );
+			detachedResource.getAttributes().addLibraryLocations( executionContext );
+
+			GeneratedTextResourceDocumentService documentService = new GeneratedTextResourceDocumentService( detachedResource, executionContext, null, preferences );
+			documentService.revalidationCacheKey = cacheKey;
+			documentService.revalidationFlight = flight;
+
+			if( documentService.conversationService.getMediaType() == null )
+				documentService.conversationService.setMediaTypeExtension( documentDescriptor.getTag() );
+
+			documentService.pushDocumentDescriptor( documentDescriptor );
+			try
+			{
+				documentService.generateText( documentDescriptor );
+			}
+			finally
+			{
+				documentService.popDocumentDescriptor();
+			}
+		}
+		catch( Exception x )
+		{
+			// The stale entry will continue to be served until its grace
+			// duration is over
+			LoggingUtil.getLogger( application ).log( Level.WARNING, "Could not regenerate stale cache entry: " + cacheKey, x );
+		}
+		finally
+		{
+			leaveFlight( cacheKey, flight );
+			executionContext.release();
+			detachedResource.release();
+			Response.setCurrent( oldResponse );
+			Application.setCurrent( oldApplication );
+		}
+	}
+
 	/**
 	 * Represents a cache entry, making sure to re-encode it (and store the
 	 * re-encoded entry in the cache) if necessary.
@@ -772,7 +1188,7 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 		if( ( cacheEntry.getEncoding() == null ) && ( encoding != null ) )
 		{
 			// Re-encode it
-			cacheEntry = new CacheEntry( cacheEntry, encoding );
+			cacheEntry = new CacheEntry( cacheEntry, encoding, attributes.getCompressionLevel( cacheEntry.getMediaType() ) );
 
 			// Cache re-encoded entry
 			Cache cache = attributes.getCache();
@@ -782,7 +1198,7 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 				Set<String> cacheTags = getCacheTags( executable, false );
 				if( cacheTags != null )
 					cacheEntry.setTags( cacheTags.toArray( new String[] {} ) );
-				cache.store( cacheKeyForEncoding, cacheEntry );
+				store( cache, cacheKeyForEncoding, cacheEntry, false );
 			}
 		}
 
@@ -825,58 +1241,130 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 			if( writer != null )
 				writer.write( pureText );
 
-			return new CacheEntry( pureText, conversationService.getMediaType(), conversationService.getLanguage(), conversationService.getCharacterSet(), getEncoding( executable ), conversationService.getHeaders(),
+			return new CacheEntry( pureText, conversationService.getMediaType(), conversationService.getLanguage(), conversationService.getCharacterSet(), getEncoding( executable ),
+				attributes.getCompressionLevel( conversationService.getMediaType() ), conversationService.getHeaders(),
 				executable.getDocumentTimestamp(), getExpirationTimestamp( executable ) ).represent();
 		}
 
 		int startPosition = 0;
 
-		// Make sure we have a valid writer for caching mode
-		if( !conversationService.isDeferred )
-		{
-			if( writer == null )
-			{
-				StringWriter stringWriter = new StringWriter();
-				writerBuffer = stringWriter.getBuffer();
-				writer = new BufferedWriter( stringWriter );
-				executionContext.setWriter( writer );
-			}
-			else
-			{
-				writer.flush();
-				startPosition = writerBuffer.length();
-			}
+		// Set if we created the writer for caching mode
+		ReusableStringWriter ownWriter = null;
+
+		// Set if we are the single flight for our cache key
+		String flightCacheKey = null;
+		CountDownLatch flight = null;
+
+		// Set if we can fall back to a stale entry
+		CacheEntry staleCacheEntry = null;
 
-			// See if a valid cache entry has already been cached in the request
-			CacheEntry cacheEntry = (CacheEntry) resource.getRequest().getAttributes().remove( CACHE_ENTRY_ATTRIBUTE );
-			String cacheKey = (String) resource.getRequest().getAttributes().remove( CACHE_KEY_ATTRIBUTE );
-			if( ( cacheEntry != null ) && ( cacheKey != null ) )
-				return represent( cacheEntry, getEncoding( executable ), cacheKey, executable, writer );
+		// Set once the flight, if any, is left in the finally clause of the
+		// execution below
+		boolean executing = false;
 
-			// Attempt to use cache
-			cacheKey = castCacheKey( documentDescriptor );
-			if( cacheKey != null )
+		try
+		{
+			if( !conversationService.isDeferred )
 			{
-				Cache cache = attributes.getCache();
-				if( cache != null )
+				// Note that if we are not included, we will not have a writer
+				// yet, so cache hits will not copy their string into one
+
+				if( revalidationFlight != null )
+				{
+					// We are regenerating in the background, so we must not use
+					// the cache
+					flightCacheKey = revalidationCacheKey;
+					flight = revalidationFlight;
+					revalidationCacheKey = null;
+					revalidationFlight = null;
+				}
+				else
 				{
-					// Try cache key for encoding first
 					Encoding encoding = getEncoding( executable );
-					String cacheKeyForEncoding = getCacheKeyForEncoding( cacheKey, encoding );
-					cacheEntry = cache.fetch( cacheKeyForEncoding );
-					if( cacheEntry == null )
-						cacheEntry = cache.fetch( cacheKey );
-
-					// Make sure the document is not newer than the cache entry
-					if( ( cacheEntry != null ) && ( executable.getDocumentTimestamp() <= cacheEntry.getDocumentModificationDate().getTime() ) )
-						return represent( cacheEntry, encoding, cacheKey, executable, writer );
+
+					// See if a valid cache entry has already been cached in the
+					// request
+					CacheEntry cacheEntry = (CacheEntry) resource.getRequest().getAttributes().remove( CACHE_ENTRY_ATTRIBUTE );
+					String cacheKey = (String) resource.getRequest().getAttributes().remove( CACHE_KEY_ATTRIBUTE );
+					if( ( cacheEntry == null ) || ( cacheKey == null ) )
+					{
+						// Attempt to use cache
+						cacheEntry = null;
+						cacheKey = castCacheKey( documentDescriptor );
+						if( cacheKey != null )
+						{
+							Cache cache = attributes.getCache();
+							if( cache != null )
+							{
+								cacheEntry = fetch( cache, cacheKey, encoding, executable );
+
+								// If the executable was cached last time, it
+								// is likely that concurrent requests are
+								// missing the cache, too, in which case we want
+								// only one of them to execute
+								if( ( cacheEntry == null ) && wasCached( executable ) && attributes.isCacheSingleFlight() )
+								{
+									flight = joinFlight( cacheKey );
+									if( flight != null )
+										flightCacheKey = cacheKey;
+									else
+										// Another request was executing, so the
+										// entry should be cached by now
+										cacheEntry = fetch( cache, cacheKey, encoding, executable );
+								}
+							}
+						}
+					}
+
+					if( cacheEntry != null )
+					{
+						if( !cacheEntry.isStale() )
+							return represent( cacheEntry, encoding, cacheKey, executable, writer );
+
+						// Serve the stale entry while regenerating in the
+						// background
+						flight = revalidate( documentDescriptor, cacheKey );
+						if( flight == null )
+							return represent( cacheEntry, encoding, cacheKey, executable, writer );
+
+						// We could not regenerate in the background, so we
+						// will do it ourselves, falling back to the stale
+						// entry if we fail
+						flightCacheKey = cacheKey;
+						staleCacheEntry = cacheEntry;
+					}
+				}
+
+				// Make sure we have a valid writer for caching mode
+				if( writer == null )
+				{
+					// The writer is unbuffered, but it is entirely in memory
+					ownWriter = ReusableStringWriter.acquire();
+					writerBuffer = ownWriter.getBuffer();
+					writer = ownWriter;
+					executionContext.setWriter( writer );
+				}
+				else
+				{
+					writer.flush();
+					startPosition = writerBuffer.length();
 				}
 			}
-		}
 
-		setCacheDuration( 0 );
-		setCacheKeyPattern( attributes.getDefaultCacheKeyPattern() );
-		getCacheTags().clear();
+			setCacheDuration( 0 );
+			setCacheGraceDuration( 0 );
+			setCacheKeyPattern( attributes.getDefaultCacheKeyPattern() );
+			getCacheTags().clear();
+
+			executing = true;
+		}
+		finally
+		{
+			// Requests waiting for our flight must not wait for an execution
+			// that will never happen
+			if( !executing && ( flight != null ) )
+				leaveFlight( flightCacheKey, flight );
+		}
 
 		try
 		{
@@ -915,13 +1403,15 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 
 				Encoding encoding = getEncoding( executable );
 				long expirationTimestamp = getExpirationTimestamp( executable );
+				executable.getAttributes().put( CACHED_ATTRIBUTE, expirationTimestamp > 0 );
 
 				// Get the buffer from when we executed the executable
 				CacheEntry cacheEntry = new CacheEntry( writerBuffer.substring( startPosition ), conversationService.getMediaType(), conversationService.getLanguage(), conversationService.getCharacterSet(), null,
 					conversationService.getHeaders(), executable.getDocumentTimestamp(), expirationTimestamp );
+				cacheEntry.setGraceDuration( getCacheGraceDuration( executable ) );
 
 				// Encoded version
-				CacheEntry encodedCacheEntry = new CacheEntry( cacheEntry, encoding );
+				CacheEntry encodedCacheEntry = new CacheEntry( cacheEntry, encoding, attributes.getCompressionLevel( cacheEntry.getMediaType() ) );
 
 				// Cache if enabled
 				if( expirationTimestamp > 0 )
@@ -937,15 +1427,19 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 							if( cacheTags != null )
 								tags = cacheTags.toArray( new String[] {} );
 
+							// Requests waiting for our flight expect the entry
+							// to be there once we're done
+							boolean wait = flight != null;
+
 							String cacheKeyForEncoding = getCacheKeyForEncoding( cacheKey, encoding );
 							encodedCacheEntry.setTags( tags );
-							cache.store( cacheKeyForEncoding, encodedCacheEntry );
+							store( cache, cacheKeyForEncoding, encodedCacheEntry, wait );
 
 							// Cache un-encoded entry separately
 							if( encoding != null )
 							{
 								cacheEntry.setTags( tags );
-								cache.store( cacheKey, cacheEntry );
+								store( cache, cacheKey, cacheEntry, wait );
 							}
 						}
 					}
@@ -974,13 +1468,33 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 				GeneratedTextResourceDocumentService documentService = new GeneratedTextResourceDocumentService( this );
 				return new GeneratedTextDeferredRepresentation( documentService.resource, executable, documentService.executionContext, documentService, documentService.conversationService );
 			}
+			else if( ( staleCacheEntry != null ) && resource.getResponse().getStatus().isSuccess() && !ConversationStoppedException.isConversationStopped( resource.getRequest() ) )
+			{
+				// An unintended exception, so serve the stale entry instead
+				// of whatever was written before the exception
+				writer.flush();
+				writerBuffer.setLength( startPosition );
+				return represent( staleCacheEntry, getEncoding( executable ), flightCacheKey, executable, writer );
+			}
 			else
 				throw x;
 		}
 		finally
 		{
+			if( flight != null )
+				leaveFlight( flightCacheKey, flight );
+
 			writer.flush();
 			executionContext.getErrorWriterOrDefault().flush();
+
+			if( ownWriter != null )
+			{
+				// Anything we return has already been copied out of the
+				// buffer
+				executionContext.setWriter( null );
+				writerBuffer = null;
+				ownWriter.release();
+			}
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2009-2012 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.restlet.data.MediaType;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.Join;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.threecrickets.prudence.cache.CacheEntry;
+import com.threecrickets.prudence.cache.HazelcastCache;
+import com.threecrickets.prudence.test.internal.MultiTest;
+
+/**
+ * Makes sure {@link HazelcastCache} entries stored on one member of a cluster
+ * are fetched and invalidated on other members, and that expired entries are
+ * evicted along with their tags. The members are embedded in this JVM.
+ * 
+ * @author Tal Liron
+ */
+public class HazelcastCacheCluster extends MultiTest
+{
+	//
+	// Construction
+	//
+
+	public HazelcastCacheCluster()
+	{
+		super( 5, 100 );
+	}
+
+	//
+	// JUnit
+	//
+
+	@BeforeClass
+	public static void startMembers()
+	{
+		for( int i = 0; i < MEMBERS; i++ )
+		{
+			members[i] = Hazelcast.newHazelcastInstance( createConfig() );
+			caches[i] = new HazelcastCache( members[i], CACHE_NAME, TAGS_NAME );
+		}
+		assertEquals( MEMBERS, members[0].getCluster().getMembers().size() );
+	}
+
+	@AfterClass
+	public static void shutdownMembers()
+	{
+		for( HazelcastInstance member : members )
+			if( member != null )
+				member.getLifecycleService().shutdown();
+	}
+
+	@After
+	public void reset()
+	{
+		caches[0].reset();
+	}
+
+	@Test
+	public void expiry() throws InterruptedException
+	{
+		caches[0].store( "expiring", createEntry( System.currentTimeMillis() + 1000, "expiring" ) );
+		assertNotNull( caches[1].fetch( "expiring" ) );
+
+		Thread.sleep( 2000 );
+
+		for( HazelcastCache cache : caches )
+			assertNull( cache.fetch( "expiring" ) );
+
+		// Whether or not the eviction listener got to it, pruning must remove
+		// the tag
+		for( HazelcastCache cache : caches )
+			cache.prune();
+		assertFalse( members[1].getMultiMap( TAGS_NAME ).containsKey( "expiring" ) );
+	}
+
+	//
+	// MultiTest
+	//
+
+	@Override
+	public void test( int index )
+	{
+		int n = counter.incrementAndGet();
+		String key = "key" + n;
+		String tag = "tag" + n;
+		HazelcastCache storing = caches[n % MEMBERS];
+		HazelcastCache invalidating = caches[( n + 1 ) % MEMBERS];
+
+		storing.store( key, createEntry( System.currentTimeMillis() + 60000, tag, "index" + index ) );
+		CacheEntry entry = invalidating.fetch( key );
+		assertNotNull( entry );
+		assertArrayEquals( CONTENT, entry.getBytes() );
+
+		invalidating.invalidate( tag );
+		assertNull( storing.fetch( key ) );
+		assertFalse( members[n % MEMBERS].getMultiMap( TAGS_NAME ).containsKey( tag ) );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final int MEMBERS = 2;
+
+	private static final String CACHE_NAME = "prudenceTest.cache";
+
+	private static final String TAGS_NAME = "prudenceTest.cacheTags";
+
+	private static final byte[] CONTENT = "Hello, Hazelcast".getBytes();
+
+	private static final HazelcastInstance[] members = new HazelcastInstance[MEMBERS];
+
+	private static final HazelcastCache[] caches = new HazelcastCache[MEMBERS];
+
+	private final AtomicInteger counter = new AtomicInteger();
+
+	private static Config createConfig()
+	{
+		// A cluster of our own on the loopback interface
+		Config config = new Config();
+		config.getGroupConfig().setName( "prudenceTest" );
+		config.getNetworkConfig().getInterfaces().setEnabled( true ).addInterface( "127.0.0.1" );
+		Join join = config.getNetworkConfig().getJoin();
+		join.getMulticastConfig().setEnabled( false );
+		join.getTcpIpConfig().setEnabled( true ).addMember( "127.0.0.1" );
+		return config;
+	}
+
+	private static CacheEntry createEntry( long expiration, String... tags )
+	{
+		CacheEntry entry = new CacheEntry( CONTENT, MediaType.TEXT_PLAIN, null, null, null, null, new Date(), new Date( expiration ) );
+		entry.setTags( tags );
+		return entry;
+	}
+}
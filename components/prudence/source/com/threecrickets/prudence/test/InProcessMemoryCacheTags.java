@@ -0,0 +1,108 @@
+/**
+ * Copyright 2009-2012 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.restlet.data.MediaType;
+
+import com.threecrickets.prudence.cache.CacheEntry;
+import com.threecrickets.prudence.cache.InProcessMemoryCache;
+import com.threecrickets.prudence.test.internal.MultiTest;
+
+/**
+ * Makes sure the tag index of {@link InProcessMemoryCache} stays bounded by
+ * the entries in the cache while entries are churned through every removal
+ * path: replacement, eviction, staleness, pruning and invalidation.
+ * 
+ * @author Tal Liron
+ */
+public class InProcessMemoryCacheTags extends MultiTest
+{
+	//
+	// Construction
+	//
+
+	public InProcessMemoryCacheTags()
+	{
+		super( 5, 1000 );
+	}
+
+	//
+	// JUnit
+	//
+
+	@After
+	public void checkTagIndex()
+	{
+		// Every entry has two tags, one of which is unique
+		assertTrue( cache.getTaggedCount() <= MAX_ENTRIES );
+		assertTrue( cache.getTagCount() <= MAX_ENTRIES + SHARED_TAGS );
+		assertTrue( cache.getSize() <= MAX_ENTRIES * ENTRY_SIZE );
+
+		cache.reset();
+		assertEquals( 0, cache.getSize() );
+		assertEquals( 0, cache.getTagCount() );
+		assertEquals( 0, cache.getTaggedCount() );
+	}
+
+	//
+	// MultiTest
+	//
+
+	@Override
+	public void test( int index )
+	{
+		Random random = new Random();
+		String key = "key" + random.nextInt( KEYS );
+
+		// A quarter of the entries are stale as soon as they are stored
+		long now = System.currentTimeMillis();
+		Date expirationDate = new Date( random.nextInt( 4 ) == 0 ? now - 1000 : now + 60000 );
+
+		CacheEntry entry = new CacheEntry( new byte[ENTRY_SIZE], MediaType.TEXT_PLAIN, null, null, null, null, new Date( now ), expirationDate );
+		entry.setTags( new String[]
+		{
+			"shared" + random.nextInt( SHARED_TAGS ), "unique" + uniqueTags.incrementAndGet()
+		} );
+		cache.store( key, entry );
+
+		cache.fetch( "key" + random.nextInt( KEYS ) );
+
+		int operation = random.nextInt( 50 );
+		if( operation < 5 )
+			cache.invalidate( "shared" + random.nextInt( SHARED_TAGS ) );
+		else if( operation == 5 )
+			cache.prune();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final int ENTRY_SIZE = 100;
+
+	private static final int MAX_ENTRIES = 50;
+
+	private static final int KEYS = 200;
+
+	private static final int SHARED_TAGS = 10;
+
+	private final InProcessMemoryCache cache = new InProcessMemoryCache( MAX_ENTRIES * ENTRY_SIZE );
+
+	private final AtomicInteger uniqueTags = new AtomicInteger();
+}
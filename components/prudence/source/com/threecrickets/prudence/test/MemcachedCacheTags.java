@@ -0,0 +1,192 @@
+/**
+ * Copyright 2009-2012 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.spy.memcached.AddrUtil;
+import net.spy.memcached.DefaultConnectionFactory;
+import net.spy.memcached.MemcachedClient;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.restlet.data.MediaType;
+
+import com.threecrickets.prudence.cache.CacheEntry;
+import com.threecrickets.prudence.cache.MemcachedCache;
+import com.threecrickets.prudence.test.internal.MemcachedStandIn;
+import com.threecrickets.prudence.test.internal.MultiTest;
+
+/**
+ * Makes sure {@link MemcachedCache} sees tag invalidations through the
+ * multi-get of an entry with the tags it was last seen with, and through the
+ * extra round trip for tags it did not expect. Runs against an in-process
+ * stand-in for memcached, with two caches sharing it as two servers would.
+ * 
+ * @author Tal Liron
+ */
+public class MemcachedCacheTags extends MultiTest
+{
+	//
+	// Construction
+	//
+
+	public MemcachedCacheTags()
+	{
+		super( 5, 100 );
+	}
+
+	//
+	// JUnit
+	//
+
+	@BeforeClass
+	public static void startMemcached() throws IOException
+	{
+		memcached = new MemcachedStandIn();
+		client = new MemcachedClient( new DefaultConnectionFactory(), AddrUtil.getAddresses( memcached.getAddress() ) );
+		for( int i = 0; i < caches.length; i++ )
+			caches[i] = new MemcachedCache( client, true, true, TAG_PREFIX );
+	}
+
+	@AfterClass
+	public static void stopMemcached() throws IOException
+	{
+		client.shutdown();
+		memcached.close();
+	}
+
+	@After
+	public void reset()
+	{
+		for( MemcachedCache cache : caches )
+			cache.reset();
+		memcached.clearGets();
+	}
+
+	@Test
+	public void hintedTags()
+	{
+		caches[0].store( "page", createEntry( "a", "b" ) );
+
+		// Not yet seen by this cache, so the tags take a second round trip
+		assertNotNull( caches[1].fetch( "page" ) );
+		assertGets( keys( "page" ), keys( TAG_PREFIX + "a", TAG_PREFIX + "b" ) );
+
+		// Now they come together with the entry
+		assertNotNull( caches[1].fetch( "page" ) );
+		assertGets( keys( "page", TAG_PREFIX + "a", TAG_PREFIX + "b" ) );
+
+		// And so does their invalidation
+		caches[0].invalidate( "b" );
+		assertNull( caches[1].fetch( "page" ) );
+		assertGets( keys( "page", TAG_PREFIX + "a", TAG_PREFIX + "b" ) );
+		assertFalse( memcached.contains( "page" ) );
+
+		// The hints were dropped with the entry
+		assertNull( caches[1].fetch( "page" ) );
+		assertGets( keys( "page" ) );
+	}
+
+	@Test
+	public void unexpectedTags()
+	{
+		caches[0].store( "page", createEntry( "a" ) );
+		assertNotNull( caches[1].fetch( "page" ) );
+		memcached.clearGets();
+
+		// Stored anew elsewhere with a tag this cache has not seen
+		caches[0].store( "page", createEntry( "a", "c" ) );
+		caches[0].invalidate( "c" );
+
+		assertNull( caches[1].fetch( "page" ) );
+		assertGets( keys( "page", TAG_PREFIX + "a" ), keys( TAG_PREFIX + "c" ) );
+		assertFalse( memcached.contains( "page" ) );
+	}
+
+	//
+	// MultiTest
+	//
+
+	@Override
+	public void test( int index )
+	{
+		int n = counter.incrementAndGet();
+		String key = "key" + n;
+		String tag = "tag" + n;
+		MemcachedCache storing = caches[n % caches.length];
+		MemcachedCache fetching = caches[( n + 1 ) % caches.length];
+
+		storing.store( key, createEntry( tag, "shared" ) );
+		for( int i = 0; i < 2; i++ )
+		{
+			CacheEntry entry = fetching.fetch( key );
+			assertNotNull( entry );
+			assertArrayEquals( CONTENT, entry.getBytes() );
+		}
+
+		storing.invalidate( tag );
+		assertNull( fetching.fetch( key ) );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final String TAG_PREFIX = "tag:";
+
+	private static final byte[] CONTENT = "Hello, memcached".getBytes();
+
+	private static MemcachedStandIn memcached;
+
+	private static MemcachedClient client;
+
+	private static final MemcachedCache[] caches = new MemcachedCache[2];
+
+	private final AtomicInteger counter = new AtomicInteger();
+
+	private static CacheEntry createEntry( String... tags )
+	{
+		// Modified a while ago, so that invalidations are always newer
+		long now = System.currentTimeMillis();
+		CacheEntry entry = new CacheEntry( CONTENT, MediaType.TEXT_PLAIN, null, null, null, null, new Date( now - 1000 ), new Date( now + 60000 ) );
+		entry.setTags( tags );
+		return entry;
+	}
+
+	private static List<String> keys( String... keys )
+	{
+		return Arrays.asList( keys );
+	}
+
+	private static void assertGets( List<String>... expected )
+	{
+		// The client may order the keys of a multi-get as it pleases
+		List<List<String>> gets = memcached.getGets();
+		assertEquals( gets.toString(), expected.length, gets.size() );
+		for( int i = 0; i < expected.length; i++ )
+			assertEquals( new HashSet<String>( expected[i] ), new HashSet<String>( gets.get( i ) ) );
+		memcached.clearGets();
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2009-2012 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.restlet.data.MediaType;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentPool;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
+import com.threecrickets.prudence.cache.CacheEntry;
+import com.threecrickets.prudence.cache.OrientDbCache;
+import com.threecrickets.prudence.test.internal.MultiTest;
+
+/**
+ * Makes sure {@link OrientDbCache} stores, fetches and invalidates entries in
+ * an in-memory database, including concurrent stores of the same new key,
+ * and prunes expired entries.
+ * 
+ * @author Tal Liron
+ */
+public class OrientDbCacheOperations extends MultiTest
+{
+	//
+	// Construction
+	//
+
+	public OrientDbCacheOperations()
+	{
+		super( 5, 100 );
+	}
+
+	//
+	// JUnit
+	//
+
+	@After
+	public void reset()
+	{
+		cache.reset();
+		assertFalse( exists( SHARED_KEY ) );
+	}
+
+	@Test
+	public void prune()
+	{
+		// Pruning removes all expired entries, so we must not run
+		// concurrently with other threads checking theirs
+		long now = System.currentTimeMillis();
+		cache.store( "expired", createEntry( now - 1000, "expired" ) );
+		cache.store( "fresh", createEntry( now + 60000, "fresh" ) );
+		assertTrue( exists( "expired" ) );
+		cache.prune();
+		assertFalse( exists( "expired" ) );
+		assertTrue( exists( "fresh" ) );
+	}
+
+	//
+	// MultiTest
+	//
+
+	@Override
+	public void test( int index )
+	{
+		int n = counter.incrementAndGet();
+		String key = "key" + n;
+		String tag = "tag" + n;
+		long now = System.currentTimeMillis();
+
+		// Store and fetch
+		cache.store( key, createEntry( now + 60000, tag, "index" + index ) );
+		CacheEntry entry = cache.fetch( key );
+		assertNotNull( entry );
+		assertArrayEquals( CONTENT, entry.getBytes() );
+		assertArrayEquals( new String[]
+		{
+			tag, "index" + index
+		}, entry.getTags() );
+
+		// Concurrent stores of the same key must not be lost
+		cache.store( SHARED_KEY, createEntry( now + 60000, "shared" ) );
+		assertNotNull( cache.fetch( SHARED_KEY ) );
+
+		// Tag invalidation
+		cache.invalidate( tag );
+		assertNull( cache.fetch( key ) );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final String URL = "memory:prudenceTest";
+
+	private static final String SHARED_KEY = "shared";
+
+	private static final byte[] CONTENT = "Hello, OrientDB".getBytes();
+
+	private final OrientDbCache cache = new OrientDbCache( URL );
+
+	private final AtomicInteger counter = new AtomicInteger();
+
+	private static CacheEntry createEntry( long expiration, String... tags )
+	{
+		CacheEntry entry = new CacheEntry( CONTENT, MediaType.TEXT_PLAIN, null, null, null, null, new Date(), new Date( expiration ) );
+		entry.setTags( tags );
+		return entry;
+	}
+
+	private static boolean exists( String key )
+	{
+		ODatabaseDocumentTx database = ODatabaseDocumentPool.global().acquire( URL, "admin", "admin" );
+		try
+		{
+			return !database.query( new OSQLSynchQuery<ODocument>( "SELECT FROM PrudenceCache WHERE key = ?" ), key ).isEmpty();
+		}
+		finally
+		{
+			database.close();
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright 2009-2012 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+import com.threecrickets.prudence.test.internal.MultiTest;
+import com.threecrickets.prudence.util.DeflaterPool;
+import com.threecrickets.prudence.util.PooledDeflaterOutputStream;
+
+/**
+ * Makes sure data written through {@link PooledDeflaterOutputStream}, in both
+ * the GZIP and raw DEFLATE formats, is read back intact by the JDK's
+ * {@link GZIPInputStream} and a "no wrap" {@link Inflater}, at all
+ * compression levels, for empty input, and with deflaters reused from a
+ * {@link DeflaterPool}.
+ * 
+ * @author Tal Liron
+ */
+public class PooledDeflaterRoundTrip extends MultiTest
+{
+	//
+	// Construction
+	//
+
+	public PooledDeflaterRoundTrip()
+	{
+		super( 5, 100 );
+	}
+
+	//
+	// JUnit
+	//
+
+	@Test
+	public void levels() throws IOException, DataFormatException
+	{
+		byte[] data = createData( new Random(), 10000 );
+		for( int level = Deflater.DEFAULT_COMPRESSION; level <= Deflater.BEST_COMPRESSION; level++ )
+		{
+			assertArrayEquals( data, gunzip( deflate( pool, data, level, true ) ) );
+			assertArrayEquals( data, inflate( deflate( pool, data, level, false ) ) );
+		}
+	}
+
+	@Test
+	public void empty() throws IOException, DataFormatException
+	{
+		byte[] gzip = deflate( pool, new byte[0], Deflater.DEFAULT_COMPRESSION, true );
+		assertEquals( 0, gunzip( gzip ).length );
+
+		// The trailer's uncompressed size
+		for( int i = gzip.length - 4; i < gzip.length; i++ )
+			assertEquals( 0, gzip[i] );
+
+		assertEquals( 0, inflate( deflate( pool, new byte[0], Deflater.DEFAULT_COMPRESSION, false ) ).length );
+	}
+
+	@Test
+	public void reuse() throws IOException, DataFormatException
+	{
+		DeflaterPool pool = new DeflaterPool( 1 );
+		Random random = new Random();
+		byte[] first = createData( random, 5000 );
+		byte[] second = createData( random, 7000 );
+
+		byte[] compressed = deflate( pool, first, Deflater.BEST_COMPRESSION, true );
+		assertEquals( 1, pool.getIdle() );
+
+		// The same deflater, reset, at another level and in the other format
+		assertArrayEquals( second, inflate( deflate( pool, second, Deflater.BEST_SPEED, false ) ) );
+		assertEquals( 1, pool.getIdle() );
+
+		// A reset deflater must produce exactly what a new one would
+		assertArrayEquals( compressed, deflate( pool, first, Deflater.BEST_COMPRESSION, true ) );
+		assertArrayEquals( first, gunzip( compressed ) );
+	}
+
+	//
+	// MultiTest
+	//
+
+	@Override
+	public void test( int index )
+	{
+		Random random = new Random();
+		byte[] data = createData( random, random.nextInt( 4 ) == 0 ? 0 : random.nextInt( 20000 ) );
+		int level = random.nextInt( 11 ) - 1;
+		try
+		{
+			if( random.nextBoolean() )
+				assertArrayEquals( data, gunzip( deflate( pool, data, level, true ) ) );
+			else
+				assertArrayEquals( data, inflate( deflate( pool, data, level, false ) ) );
+		}
+		catch( IOException x )
+		{
+			throw new RuntimeException( x );
+		}
+		catch( DataFormatException x )
+		{
+			throw new RuntimeException( x );
+		}
+
+		assertTrue( pool.getIdle() <= MAX_IDLE );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final int MAX_IDLE = 2;
+
+	private static final int BUFFER_SIZE = 512;
+
+	private final DeflaterPool pool = new DeflaterPool( MAX_IDLE );
+
+	private static byte[] createData( Random random, int length )
+	{
+		// Compressible, like text
+		byte[] data = new byte[length];
+		for( int i = 0; i < length; i++ )
+			data[i] = (byte) ( 'a' + random.nextInt( 8 ) );
+		return data;
+	}
+
+	private static byte[] deflate( DeflaterPool pool, byte[] data, int level, boolean gzip ) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PooledDeflaterOutputStream deflaterStream = new PooledDeflaterOutputStream( out, pool, level, gzip, BUFFER_SIZE );
+		try
+		{
+			// Both single bytes and blocks
+			if( data.length > 0 )
+			{
+				deflaterStream.write( data[0] );
+				deflaterStream.write( data, 1, data.length - 1 );
+			}
+		}
+		finally
+		{
+			deflaterStream.close();
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] gunzip( byte[] compressed ) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		InputStream in = new GZIPInputStream( new ByteArrayInputStream( compressed ) );
+		try
+		{
+			byte[] buffer = new byte[BUFFER_SIZE];
+			for( int read = in.read( buffer ); read != -1; read = in.read( buffer ) )
+				out.write( buffer, 0, read );
+		}
+		finally
+		{
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] inflate( byte[] compressed ) throws DataFormatException
+	{
+		// "No wrap" inflaters need an extra dummy byte
+		byte[] input = new byte[compressed.length + 1];
+		System.arraycopy( compressed, 0, input, 0, compressed.length );
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Inflater inflater = new Inflater( true );
+		try
+		{
+			inflater.setInput( input );
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while( !inflater.finished() )
+			{
+				int inflated = inflater.inflate( buffer );
+				if( ( inflated == 0 ) && inflater.needsInput() )
+					throw new DataFormatException( "Truncated" );
+				out.write( buffer, 0, inflated );
+			}
+		}
+		finally
+		{
+			inflater.end();
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2009-2012 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.test;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.Restlet;
+import org.restlet.data.Method;
+import org.restlet.routing.Route;
+import org.restlet.routing.Router;
+
+import com.threecrickets.prudence.test.internal.MultiTest;
+import com.threecrickets.prudence.util.ResolvingRouter;
+import com.threecrickets.prudence.util.RouteDispatcher;
+
+/**
+ * Makes sure {@link ResolvingRouter} selects the same routes with a compiled
+ * {@link RouteDispatcher} as with Restlet's linear scan, in the first, last
+ * and best routing modes, and that routes attached after dispatching are
+ * seen.
+ * 
+ * @author Tal Liron
+ */
+public class ResolvingRouterDispatch extends MultiTest
+{
+	//
+	// Construction
+	//
+
+	public ResolvingRouterDispatch()
+	{
+		super( 5, 1000 );
+	}
+
+	//
+	// JUnit
+	//
+
+	@Test
+	public void attachAfterDispatch()
+	{
+		ResolvingRouter compiled = createRouter( Router.MODE_FIRST_MATCH, true );
+		ResolvingRouter linear = createRouter( Router.MODE_FIRST_MATCH, false );
+		assertSame( select( linear, "/x/y" ), select( compiled, "/x/y" ) );
+		assertNull( select( compiled, "/d/e" ) );
+
+		Restlet target = new Restlet()
+		{
+		};
+		compiled.attach( "/d/", target );
+		assertSame( target, select( compiled, "/d/e" ) );
+
+		compiled.getRoutes().clear();
+		assertNull( select( compiled, "/x/y" ) );
+	}
+
+	//
+	// MultiTest
+	//
+
+	@Override
+	public void test( int index )
+	{
+		Random random = new Random();
+		StringBuilder path = new StringBuilder();
+		int segments = random.nextInt( 4 );
+		for( int i = 0; i < segments; i++ )
+			path.append( '/' ).append( SEGMENTS[random.nextInt( SEGMENTS.length )] );
+		if( path.length() == 0 || random.nextBoolean() )
+			path.append( '/' );
+
+		for( int i = 0; i < MODES.length; i++ )
+			assertSame( path.toString(), select( linear[i], path.toString() ), select( compiled[i], path.toString() ) );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final int[] MODES = new int[]
+	{
+		Router.MODE_FIRST_MATCH, Router.MODE_LAST_MATCH, Router.MODE_BEST_MATCH
+	};
+
+	private static final String[] PATTERNS = new String[]
+	{
+		"/a/{x}", "/a/b", "/a/b/{y}", "/c", "/c/", "/{z}/c", "/{z}"
+	};
+
+	private static final String[] SEGMENTS = new String[]
+	{
+		"a", "b", "c", "cc", "x"
+	};
+
+	private static final Restlet[] TARGETS = new Restlet[PATTERNS.length];
+
+	static
+	{
+		for( int i = 0; i < TARGETS.length; i++ )
+			TARGETS[i] = new Restlet()
+			{
+			};
+	}
+
+	private final ResolvingRouter[] compiled = new ResolvingRouter[MODES.length];
+
+	private final ResolvingRouter[] linear = new ResolvingRouter[MODES.length];
+
+	{
+		for( int i = 0; i < MODES.length; i++ )
+		{
+			compiled[i] = createRouter( MODES[i], true );
+			linear[i] = createRouter( MODES[i], false );
+		}
+	}
+
+	private static ResolvingRouter createRouter( int mode, boolean compiledDispatch )
+	{
+		ResolvingRouter router = new ResolvingRouter();
+		router.setRoutingMode( mode );
+		router.setCompiledDispatch( compiledDispatch );
+		for( int i = 0; i < PATTERNS.length; i++ )
+			router.attach( PATTERNS[i], TARGETS[i] );
+		return router;
+	}
+
+	private static Restlet select( Router router, String path )
+	{
+		Request request = new Request( Method.GET, "http://localhost" + path );
+		request.getResourceRef().setBaseRef( "http://localhost" );
+		Restlet next = router.getNext( request, new Response( request ) );
+		return next instanceof Route ? ( (Route) next ).getNext() : null;
+	}
+}
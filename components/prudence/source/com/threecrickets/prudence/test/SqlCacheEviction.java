@@ -0,0 +1,210 @@
+/**
+ * Copyright 2009-2012 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.restlet.data.MediaType;
+
+import com.threecrickets.prudence.cache.CacheEntry;
+import com.threecrickets.prudence.cache.H2Cache;
+import com.threecrickets.prudence.cache.SqlCache;
+import com.threecrickets.prudence.test.internal.MultiTest;
+
+/**
+ * Makes sure {@link SqlCache} evicts the least recently used entries down to
+ * 90% of its max entry count, records access dates no more often than its
+ * access resolution, and does not overflow beyond twice its max entry count
+ * while stores race its background maintenance.
+ * 
+ * @author Tal Liron
+ */
+public class SqlCacheEviction extends MultiTest
+{
+	//
+	// Construction
+	//
+
+	public SqlCacheEviction()
+	{
+		super( 5, 100 );
+	}
+
+	//
+	// JUnit
+	//
+
+	@Before
+	public void open()
+	{
+		cache = new H2Cache( PATH, MAX_SIZE, 5 );
+		cache.reset();
+	}
+
+	@After
+	public void close() throws SQLException
+	{
+		try
+		{
+			// Stores may overflow until maintenance catches up, but only up to
+			// twice the max entry count (plus stores that were already under
+			// way)
+			assertTrue( count() <= cache.getMaxSize() * 2 + threads );
+			cache.maintain();
+			assertTrue( count() < cache.getMaxSize() );
+		}
+		finally
+		{
+			cache.close();
+		}
+	}
+
+	@Test
+	public void leastRecentlyUsed() throws SQLException
+	{
+		cache.setMaxSize( 1000 );
+		for( int i = 0; i < 100; i++ )
+			cache.store( "key" + i, createEntry() );
+		assertEquals( 100, count() );
+
+		// Lower keys were used longer ago
+		long now = System.currentTimeMillis();
+		for( int i = 0; i < 100; i++ )
+			setAccessDate( "key" + i, now - 60000 + i * 100 );
+
+		// Using the first ten makes them the most recently used
+		for( int i = 0; i < 10; i++ )
+			assertNotNull( cache.fetch( "key" + i ) );
+
+		// Evicts 100 - (95 * 0.9) = 15 entries
+		cache.setMaxSize( 95 );
+		cache.maintain();
+		assertEquals( 85, count() );
+
+		for( int i = 0; i < 100; i++ )
+			assertEquals( "key" + i, ( i < 10 ) || ( i >= 25 ), getAccessDate( "key" + i ) != null );
+	}
+
+	@Test
+	public void accessDate() throws SQLException
+	{
+		cache.store( "key", createEntry() );
+
+		// Within the access resolution, fetching does not write
+		long recent = System.currentTimeMillis() - 5000;
+		setAccessDate( "key", recent );
+		assertNotNull( cache.fetch( "key" ) );
+		assertEquals( recent, getAccessDate( "key" ).getTime() );
+
+		// Beyond it, fetching records the access
+		long old = System.currentTimeMillis() - 20000;
+		setAccessDate( "key", old );
+		long before = System.currentTimeMillis();
+		assertNotNull( cache.fetch( "key" ) );
+		assertTrue( getAccessDate( "key" ).getTime() >= before );
+	}
+
+	//
+	// MultiTest
+	//
+
+	@Override
+	public void test( int index )
+	{
+		cache.store( "key" + counter.incrementAndGet(), createEntry() );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final String PATH = "mem:sqlCacheEviction;DB_CLOSE_DELAY=-1";
+
+	private static final int MAX_SIZE = 50;
+
+	private static final byte[] CONTENT = "Hello, H2".getBytes();
+
+	private SqlCache cache;
+
+	private final AtomicInteger counter = new AtomicInteger();
+
+	private static CacheEntry createEntry()
+	{
+		long now = System.currentTimeMillis();
+		return new CacheEntry( CONTENT, MediaType.TEXT_PLAIN, null, null, null, null, new Date( now ), new Date( now + 60000 ) );
+	}
+
+	private static Connection connect() throws SQLException
+	{
+		return DriverManager.getConnection( "jdbc:h2:" + PATH + ";MVCC=TRUE" );
+	}
+
+	private static int count() throws SQLException
+	{
+		Connection connection = connect();
+		try
+		{
+			ResultSet rs = connection.createStatement().executeQuery( "SELECT COUNT(*) FROM prudence_cache" );
+			rs.next();
+			return rs.getInt( 1 );
+		}
+		finally
+		{
+			connection.close();
+		}
+	}
+
+	private static Timestamp getAccessDate( String key ) throws SQLException
+	{
+		Connection connection = connect();
+		try
+		{
+			PreparedStatement statement = connection.prepareStatement( "SELECT access_date FROM prudence_cache WHERE key=?" );
+			statement.setString( 1, key );
+			ResultSet rs = statement.executeQuery();
+			return rs.next() ? rs.getTimestamp( 1 ) : null;
+		}
+		finally
+		{
+			connection.close();
+		}
+	}
+
+	private static void setAccessDate( String key, long accessDate ) throws SQLException
+	{
+		Connection connection = connect();
+		try
+		{
+			PreparedStatement statement = connection.prepareStatement( "UPDATE prudence_cache SET access_date=? WHERE key=?" );
+			statement.setTimestamp( 1, new Timestamp( accessDate ) );
+			statement.setString( 2, key );
+			assertEquals( 1, statement.executeUpdate() );
+		}
+		finally
+		{
+			connection.close();
+		}
+	}
+}
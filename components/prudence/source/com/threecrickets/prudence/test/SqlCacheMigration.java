@@ -0,0 +1,147 @@
+/**
+ * Copyright 2009-2012 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.restlet.data.MediaType;
+
+import com.threecrickets.prudence.cache.CacheEntry;
+import com.threecrickets.prudence.cache.H2Cache;
+import com.threecrickets.prudence.cache.SqlCache;
+import com.threecrickets.prudence.test.internal.MultiTest;
+
+/**
+ * Makes sure {@link SqlCache} migrates an entry table created before access
+ * dates were recorded, and then stores, fetches and invalidates entries in an
+ * in-memory H2 database.
+ * 
+ * @author Tal Liron
+ */
+public class SqlCacheMigration extends MultiTest
+{
+	//
+	// Construction
+	//
+
+	public SqlCacheMigration()
+	{
+		super( 5, 100 );
+	}
+
+	//
+	// JUnit
+	//
+
+	@Before
+	public void migrate() throws SQLException
+	{
+		// Tables as they were before access dates (the settings must match
+		// those of H2Cache)
+		Connection connection = DriverManager.getConnection( "jdbc:h2:" + PATH + ";MVCC=TRUE" );
+		try
+		{
+			Statement statement = connection.createStatement();
+			try
+			{
+				statement.execute( "DROP TABLE IF EXISTS prudence_cache_tags" );
+				statement.execute( "DROP TABLE IF EXISTS prudence_cache" );
+				statement
+					.execute( "CREATE TABLE prudence_cache (key VARCHAR(255) PRIMARY KEY, data BLOB, media_type VARCHAR(255), language VARCHAR(255), character_set VARCHAR(255), encoding VARCHAR(255), headers TEXT, document_modification_date TIMESTAMP, expiration_date TIMESTAMP)" );
+			}
+			finally
+			{
+				statement.close();
+			}
+
+			cache = new H2Cache( PATH );
+
+			assertTrue( hasColumn( connection, "PRUDENCE_CACHE", "ACCESS_DATE" ) );
+			assertTrue( hasColumn( connection, "PRUDENCE_CACHE_TAGS", "TAG" ) );
+		}
+		finally
+		{
+			connection.close();
+		}
+	}
+
+	@After
+	public void close()
+	{
+		cache.close();
+	}
+
+	//
+	// MultiTest
+	//
+
+	@Override
+	public void test( int index )
+	{
+		int n = counter.incrementAndGet();
+		String key = "key" + n;
+		String tag = "tag" + n;
+
+		cache.store( key, createEntry( tag, "index" + index ) );
+		CacheEntry entry = cache.fetch( key );
+		assertNotNull( entry );
+		assertArrayEquals( CONTENT, entry.getBytes() );
+
+		cache.invalidate( tag );
+		assertNull( cache.fetch( key ) );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final String PATH = "mem:sqlCacheMigration;DB_CLOSE_DELAY=-1";
+
+	private static final byte[] CONTENT = "Hello, H2".getBytes();
+
+	private SqlCache cache;
+
+	private final AtomicInteger counter = new AtomicInteger();
+
+	private static CacheEntry createEntry( String... tags )
+	{
+		long now = System.currentTimeMillis();
+		CacheEntry entry = new CacheEntry( CONTENT, MediaType.TEXT_PLAIN, null, null, null, null, new Date( now ), new Date( now + 60000 ) );
+		entry.setTags( tags );
+		return entry;
+	}
+
+	private static boolean hasColumn( Connection connection, String table, String column ) throws SQLException
+	{
+		ResultSet rs = connection.getMetaData().getColumns( null, null, table, column );
+		try
+		{
+			return rs.next();
+		}
+		finally
+		{
+			rs.close();
+		}
+	}
+}
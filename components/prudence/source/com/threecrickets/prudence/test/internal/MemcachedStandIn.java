@@ -0,0 +1,241 @@
+/**
+ * Copyright 2009-2012 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.test.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A stand-in for a memcached server, speaking just enough of the text
+ * protocol for a client to get, set, delete and flush. Expiration times are
+ * ignored. The keys of every get command are recorded, so that tests can
+ * count round trips.
+ * 
+ * @author Tal Liron
+ */
+public class MemcachedStandIn implements Runnable
+{
+	//
+	// Construction
+	//
+
+	public MemcachedStandIn() throws IOException
+	{
+		serverSocket = new ServerSocket( 0, 50, InetAddress.getByName( "127.0.0.1" ) );
+		Thread thread = new Thread( this, "MemcachedStandIn" );
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	//
+	// Attributes
+	//
+
+	public String getAddress()
+	{
+		return "127.0.0.1:" + serverSocket.getLocalPort();
+	}
+
+	public boolean contains( String key )
+	{
+		return items.containsKey( key );
+	}
+
+	public List<List<String>> getGets()
+	{
+		return new ArrayList<List<String>>( gets );
+	}
+
+	public void clearGets()
+	{
+		gets.clear();
+	}
+
+	//
+	// Operations
+	//
+
+	public void close() throws IOException
+	{
+		serverSocket.close();
+		for( Socket socket : sockets )
+			socket.close();
+	}
+
+	//
+	// Runnable
+	//
+
+	public void run()
+	{
+		try
+		{
+			while( true )
+			{
+				final Socket socket = serverSocket.accept();
+				sockets.add( socket );
+				Thread thread = new Thread( "MemcachedStandIn connection" )
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							serve( socket.getInputStream(), socket.getOutputStream() );
+						}
+						catch( IOException x )
+						{
+							// The connection or the server was closed
+						}
+						finally
+						{
+							sockets.remove( socket );
+							try
+							{
+								socket.close();
+							}
+							catch( IOException x )
+							{
+							}
+						}
+					}
+				};
+				thread.setDaemon( true );
+				thread.start();
+			}
+		}
+		catch( IOException x )
+		{
+			// The server was closed
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final String CHARSET = "ISO-8859-1";
+
+	private final ServerSocket serverSocket;
+
+	private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+
+	private final ConcurrentMap<String, Item> items = new ConcurrentHashMap<String, Item>();
+
+	private final List<List<String>> gets = new CopyOnWriteArrayList<List<String>>();
+
+	private static class Item
+	{
+		public Item( int flags, byte[] data )
+		{
+			this.flags = flags;
+			this.data = data;
+		}
+
+		private final int flags;
+
+		private final byte[] data;
+	}
+
+	private void serve( InputStream in, OutputStream out ) throws IOException
+	{
+		in = new BufferedInputStream( in );
+		out = new BufferedOutputStream( out );
+		for( String line = readLine( in ); line != null; line = readLine( in ) )
+		{
+			String[] command = line.split( " " );
+			if( "get".equals( command[0] ) || "gets".equals( command[0] ) )
+			{
+				List<String> keys = Arrays.asList( command ).subList( 1, command.length );
+				gets.add( keys );
+				for( String key : keys )
+				{
+					Item item = items.get( key );
+					if( item != null )
+					{
+						write( out, "VALUE " + key + " " + item.flags + " " + item.data.length );
+						out.write( item.data );
+						write( out, "" );
+					}
+				}
+				write( out, "END" );
+			}
+			else if( "set".equals( command[0] ) )
+			{
+				byte[] data = readData( in, Integer.parseInt( command[4] ) );
+				items.put( command[1], new Item( Integer.parseInt( command[2] ), data ) );
+				write( out, "STORED" );
+			}
+			else if( "delete".equals( command[0] ) )
+				write( out, items.remove( command[1] ) != null ? "DELETED" : "NOT_FOUND" );
+			else if( "flush_all".equals( command[0] ) )
+			{
+				items.clear();
+				write( out, "OK" );
+			}
+			else if( "version".equals( command[0] ) )
+				write( out, "VERSION 1.4.0" );
+			else if( "quit".equals( command[0] ) )
+				break;
+			else
+				write( out, "ERROR" );
+			out.flush();
+		}
+	}
+
+	private static String readLine( InputStream in ) throws IOException
+	{
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		for( int b = in.read(); b != '\n'; b = in.read() )
+		{
+			if( b == -1 )
+				return null;
+			if( b != '\r' )
+				line.write( b );
+		}
+		return line.toString( CHARSET );
+	}
+
+	private static byte[] readData( InputStream in, int length ) throws IOException
+	{
+		byte[] data = new byte[length];
+		for( int offset = 0; offset < length; )
+		{
+			int read = in.read( data, offset, length - offset );
+			if( read == -1 )
+				throw new EOFException();
+			offset += read;
+		}
+
+		// The data is followed by a line break
+		readLine( in );
+		return data;
+	}
+
+	private static void write( OutputStream out, String line ) throws IOException
+	{
+		out.write( ( line + "\r\n" ).getBytes( CHARSET ) );
+	}
+}
@@ -38,6 +38,7 @@ public class ByteArrayRepresentation extends CharacterRepresentation
 	{
 		super( mediaType );
 		this.bytes = bytes;
+		setSize( bytes.length );
 	}
 
 	//
@@ -47,7 +48,16 @@ public class ByteArrayRepresentation extends CharacterRepresentation
 	@Override
 	public Reader getReader() throws IOException
 	{
-		return new StringReader( new String( bytes ) );
+		return new StringReader( getText() );
+	}
+
+	@Override
+	public String getText() throws IOException
+	{
+		if( getCharacterSet() != null )
+			return new String( bytes, getCharacterSet().getName() );
+		else
+			return new String( bytes );
 	}
 
 	@Override
@@ -59,13 +69,13 @@ public class ByteArrayRepresentation extends CharacterRepresentation
 	@Override
 	public void write( Writer writer ) throws IOException
 	{
-		writer.write( new String( bytes ) );
+		writer.write( getText() );
 	}
 
 	@Override
 	public void write( OutputStream outputStream ) throws IOException
 	{
-		IoUtil.copyStream( getStream(), outputStream );
+		outputStream.write( bytes );
 	}
 
 	// //////////////////////////////////////////////////////////////////////////
@@ -12,6 +12,7 @@
 package com.threecrickets.prudence.util;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
 
 import org.restlet.data.CharacterSet;
 import org.restlet.data.Encoding;
@@ -109,7 +110,27 @@ public class CompressedStringRepresentation extends ByteArrayRepresentation
 	 */
 	public CompressedStringRepresentation( CharSequence text, MediaType mediaType, Language language, CharacterSet characterSet, Encoding encoding ) throws IOException
 	{
-		super( mediaType, IoUtil.compress( text, encoding, "text" ) );
+		this( text, mediaType, language, characterSet, encoding, IoUtil.DEFAULT_COMPRESSION_LEVEL );
+	}
+
+	/**
+	 * @param text
+	 *        The text
+	 * @param mediaType
+	 *        The media type
+	 * @param language
+	 *        The language
+	 * @param characterSet
+	 *        The character set
+	 * @param encoding
+	 *        The encoding
+	 * @param compressionLevel
+	 *        The compression level (0-9, or -1 for the default)
+	 * @throws IOException
+	 */
+	public CompressedStringRepresentation( CharSequence text, MediaType mediaType, Language language, CharacterSet characterSet, Encoding encoding, int compressionLevel ) throws IOException
+	{
+		super( mediaType, IoUtil.compress( text, characterSet != null ? Charset.forName( characterSet.getName() ) : Charset.defaultCharset(), encoding, compressionLevel, "text" ) );
 		if( language != null )
 			getLanguages().add( language );
 		setCharacterSet( characterSet );
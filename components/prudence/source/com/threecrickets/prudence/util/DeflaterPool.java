@@ -0,0 +1,170 @@
+/**
+ * Copyright 2009-2012 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * A thread-safe pool of "no wrap" {@link Deflater} instances.
+ * <p>
+ * Each deflater holds native zlib memory, which the JVM would otherwise only
+ * free when the deflater is finalized. Pooled deflaters are reset and reused;
+ * deflaters that do not fit in the pool are ended immediately.
+ * 
+ * @author Tal Liron
+ * @see PooledDeflaterOutputStream
+ */
+public class DeflaterPool
+{
+	//
+	// Static attributes
+	//
+
+	/**
+	 * The shared pool.
+	 * 
+	 * @return The shared pool
+	 */
+	public static DeflaterPool getDefault()
+	{
+		return defaultPool;
+	}
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param maxIdle
+	 *        The maximum number of idle deflaters to keep
+	 */
+	public DeflaterPool( int maxIdle )
+	{
+		this.maxIdle = maxIdle;
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The maximum number of idle deflaters to keep.
+	 * 
+	 * @return The maximum number of idle deflaters
+	 */
+	public int getMaxIdle()
+	{
+		return maxIdle;
+	}
+
+	/**
+	 * The number of idle deflaters currently in the pool.
+	 * 
+	 * @return The number of idle deflaters
+	 */
+	public int getIdle()
+	{
+		return idle.get();
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Takes a deflater from the pool, or creates a new one if the pool is
+	 * empty. Make sure to {@link #release(Deflater)} it when done.
+	 * 
+	 * @param level
+	 *        The compression level (0-9, or
+	 *        {@link Deflater#DEFAULT_COMPRESSION})
+	 * @return The deflater
+	 */
+	public Deflater acquire( int level )
+	{
+		Deflater deflater = deflaters.poll();
+		if( deflater != null )
+		{
+			idle.decrementAndGet();
+
+			// The level takes effect on the next deflation, so this is safe
+			// for a reset deflater
+			deflater.setLevel( level );
+			return deflater;
+		}
+
+		return new Deflater( level, true );
+	}
+
+	/**
+	 * Returns a deflater to the pool. If the pool is full, the deflater's
+	 * native memory is freed instead. The deflater must not be used after this
+	 * call.
+	 * 
+	 * @param deflater
+	 *        The deflater
+	 */
+	public void release( Deflater deflater )
+	{
+		if( idle.incrementAndGet() <= maxIdle )
+		{
+			deflater.reset();
+			deflaters.offer( deflater );
+		}
+		else
+		{
+			idle.decrementAndGet();
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Frees the native memory of all idle deflaters.
+	 */
+	public void clear()
+	{
+		Deflater deflater;
+		while( ( deflater = deflaters.poll() ) != null )
+		{
+			idle.decrementAndGet();
+			deflater.end();
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The shared pool.
+	 */
+	private static final DeflaterPool defaultPool = new DeflaterPool( Runtime.getRuntime().availableProcessors() * 4 );
+
+	/**
+	 * The maximum number of idle deflaters to keep.
+	 */
+	private final int maxIdle;
+
+	/**
+	 * The idle deflaters.
+	 */
+	private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+	/**
+	 * The number of idle deflaters (cheaper than {@link Queue#size()}).
+	 */
+	private final AtomicInteger idle = new AtomicInteger();
+}
@@ -12,9 +12,11 @@
 package com.threecrickets.prudence.util;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.restlet.Context;
 import org.restlet.Request;
@@ -34,6 +36,8 @@ import org.restlet.data.Status;
  * <p>
  * Supports a simple timed cache that "remembers" which target handled which
  * reference, in order to avoid unnecessary attempts on targets known to fail.
+ * References are remembered without their query. The cache is bounded: the
+ * least recently used references are evicted when it fills up.
  * Note that in situations in which targets may sometimes fail and sometimes
  * succeed for the same reference, you would want to disable the cache or keep
  * it low.
@@ -180,6 +184,80 @@ public class Fallback extends Restlet
 		this.cacheDuration = cacheDuration;
 	}
 
+	/**
+	 * The maximum number of references to remember. When the cache fills up,
+	 * the least recently used references are evicted. Defaults to 10000.
+	 * 
+	 * @return The maximum cache size
+	 */
+	public int getMaxCacheSize()
+	{
+		return maxCacheSize;
+	}
+
+	/**
+	 * The maximum number of references to remember. (Modifiable by concurrent
+	 * threads.)
+	 * 
+	 * @param maxCacheSize
+	 *        The maximum cache size
+	 * @see #getMaxCacheSize()
+	 */
+	public void setMaxCacheSize( int maxCacheSize )
+	{
+		this.maxCacheSize = maxCacheSize;
+	}
+
+	/**
+	 * The number of references currently remembered.
+	 * 
+	 * @return The cache size
+	 */
+	public int getCacheSize()
+	{
+		synchronized( cache )
+		{
+			return cache.size();
+		}
+	}
+
+	/**
+	 * The number of requests that were handled by the cached target, since
+	 * construction or the last {@link #resetCacheStatistics()}. Compare with
+	 * {@link #getCacheMisses()} to tune {@link #getCacheDuration()}.
+	 * 
+	 * @return The number of cache hits
+	 */
+	public long getCacheHits()
+	{
+		return cacheHits.get();
+	}
+
+	/**
+	 * The number of requests for which there was no usable cached target,
+	 * since construction or the last {@link #resetCacheStatistics()}. Not
+	 * counted if caching is disabled.
+	 * 
+	 * @return The number of cache misses
+	 */
+	public long getCacheMisses()
+	{
+		return cacheMisses.get();
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Resets the cache hit and miss counters.
+	 */
+	public void resetCacheStatistics()
+	{
+		cacheHits.set( 0 );
+		cacheMisses.set( 0 );
+	}
+
 	//
 	// Restlet
 	//
@@ -192,14 +270,20 @@ public class Fallback extends Restlet
 		if( isStopped() )
 			return;
 
-		String reference = request.getResourceRef().getRemainingPart();
-		Node node = cache.get( reference );
+		// Queries are ignored, so that unique query strings do not each get
+		// their own node
+		String reference = request.getResourceRef().getRemainingPart( false, false );
+		Node node;
+		synchronized( cache )
+		{
+			node = cache.get( reference );
+		}
 		if( node != null )
 		{
 			if( System.currentTimeMillis() - node.timestamp > cacheDuration )
 			{
 				// Invalidate
-				cache.remove( reference );
+				remove( reference, node );
 			}
 			else
 			{
@@ -208,14 +292,20 @@ public class Fallback extends Restlet
 				{
 					node.target.handle( request, response );
 					if( wasHandled( request, response ) )
+					{
+						cacheHits.incrementAndGet();
 						return;
+					}
 					else
 						// Invalidate
-						cache.remove( reference );
+						remove( reference, node );
 				}
 			}
 		}
 
+		if( cacheDuration > 0 )
+			cacheMisses.incrementAndGet();
+
 		// Try all targets in order
 		for( Restlet target : targets )
 		{
@@ -230,7 +320,10 @@ public class Fallback extends Restlet
 					{
 						// Cache this target
 						// (erasing any previously cached one)
-						cache.put( reference, new Node( target ) );
+						synchronized( cache )
+						{
+							cache.put( reference, new Node( target ) );
+						}
 					}
 					// Stop here
 					return;
@@ -292,9 +385,24 @@ public class Fallback extends Restlet
 	private volatile int cacheDuration;
 
 	/**
-	 * The cache (references mapped to nodes).
+	 * The cache (references mapped to nodes). Must be synchronized on.
 	 */
-	private final ConcurrentHashMap<String, Node> cache = new ConcurrentHashMap<String, Node>();
+	private final NodeCache cache = new NodeCache();
+
+	/**
+	 * The maximum number of references to remember.
+	 */
+	private volatile int maxCacheSize = 10000;
+
+	/**
+	 * Number of requests handled by the cached target.
+	 */
+	private final AtomicLong cacheHits = new AtomicLong();
+
+	/**
+	 * Number of requests for which the cached target could not be used.
+	 */
+	private final AtomicLong cacheMisses = new AtomicLong();
 
 	/**
 	 * A cached node.
@@ -311,6 +419,44 @@ public class Fallback extends Restlet
 		private final long timestamp = System.currentTimeMillis();
 	}
 
+	/**
+	 * The cache, in access order, evicting the least recently used node when
+	 * full. The least recently used node is also evicted if it has expired,
+	 * so that expired nodes do not linger.
+	 */
+	private class NodeCache extends LinkedHashMap<String, Node>
+	{
+		private NodeCache()
+		{
+			super( 16, 0.75f, true );
+		}
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<String, Node> eldest )
+		{
+			return ( size() > maxCacheSize ) || ( System.currentTimeMillis() - eldest.getValue().timestamp > cacheDuration );
+		}
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Removes a node from the cache, unless it has already been replaced.
+	 * 
+	 * @param reference
+	 *        The reference
+	 * @param node
+	 *        The node
+	 */
+	private void remove( String reference, Node node )
+	{
+		synchronized( cache )
+		{
+			if( cache.get( reference ) == node )
+				cache.remove( reference );
+		}
+	}
+
 	/**
 	 * Add description.
 	 */
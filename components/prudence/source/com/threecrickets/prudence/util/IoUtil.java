@@ -11,8 +11,6 @@
 
 package com.threecrickets.prudence.util;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
@@ -26,7 +24,11 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Enumeration;
@@ -36,7 +38,6 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
-import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -59,12 +60,22 @@ public abstract class IoUtil
 	 */
 	public static List<Encoding> SUPPORTED_COMPRESSION_ENCODINGS = Arrays.asList( Encoding.DEFLATE, Encoding.GZIP, Encoding.ZIP );
 
+	/**
+	 * The compression level used when none is specified. Maximum compression
+	 * costs a lot more CPU for little gain on typical web content.
+	 */
+	public static final int DEFAULT_COMPRESSION_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
 	//
 	// Static operations
 	//
 
 	/**
 	 * Copies streams. The input stream is entirely consumed and closed.
+	 * <p>
+	 * When copying from a file to a file, the bytes are transferred directly
+	 * between the file channels, which lets the operating system avoid copying
+	 * them through the JVM heap.
 	 * 
 	 * @param in
 	 *        Input stream
@@ -74,23 +85,78 @@ public abstract class IoUtil
 	 */
 	public static void copyStream( InputStream in, OutputStream out ) throws IOException
 	{
-		in = new BufferedInputStream( in );
 		try
 		{
-			out = new BufferedOutputStream( out );
-			try
+			if( ( in instanceof FileInputStream ) && ( out instanceof FileOutputStream ) )
+				copyChannel( ( (FileInputStream) in ).getChannel(), ( (FileOutputStream) out ).getChannel() );
+			else
 			{
-				while( true )
+				byte[] buffer = new byte[BUFFER_SIZE];
+				try
 				{
-					int data = in.read();
-					if( data == -1 )
-						break;
-					out.write( data );
+					int length;
+					while( ( length = in.read( buffer ) ) != -1 )
+						out.write( buffer, 0, length );
+				}
+				finally
+				{
+					out.flush();
 				}
 			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Copies the remainder of a file channel into another channel, starting at
+	 * the input channel's current position.
+	 * 
+	 * @param in
+	 *        Input file channel
+	 * @param out
+	 *        Output channel
+	 * @throws IOException
+	 */
+	public static void copyChannel( FileChannel in, WritableByteChannel out ) throws IOException
+	{
+		long position = in.position();
+		long size = in.size();
+		while( position < size )
+		{
+			// transferTo may transfer fewer bytes than requested
+			long transferred = in.transferTo( position, size - position, out );
+			if( transferred <= 0 )
+				break;
+			position += transferred;
+		}
+		in.position( position );
+	}
+
+	/**
+	 * Copies a file.
+	 * 
+	 * @param source
+	 *        The source file
+	 * @param destination
+	 *        The destination file
+	 * @throws IOException
+	 */
+	public static void copyFile( File source, File destination ) throws IOException
+	{
+		FileInputStream in = new FileInputStream( source );
+		try
+		{
+			FileOutputStream out = new FileOutputStream( destination );
+			try
+			{
+				copyStream( in, out );
+			}
 			finally
 			{
-				out.flush();
+				out.close();
 			}
 		}
 		finally
@@ -174,7 +240,8 @@ public abstract class IoUtil
 	}
 
 	/**
-	 * Compresses an input stream into a byte array, without the initial two
+	 * Compresses an input stream into a byte array, using the default
+	 * compression level.
 	 * 
 	 * @param in
 	 *        The input stream
@@ -184,28 +251,34 @@ public abstract class IoUtil
 	 *        The document name (only used with {@link Encoding#ZIP})
 	 * @return The byte array
 	 * @throws IOException
+	 * @see #DEFAULT_COMPRESSION_LEVEL
 	 */
 	public static byte[] compress( InputStream in, Encoding encoding, String documentName ) throws IOException
 	{
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-
-		DeflaterOutputStream encoder = null;
-		if( encoding.equals( Encoding.GZIP ) )
-			encoder = new GZIPOutputStream( buffer );
-		else if( encoding.equals( Encoding.ZIP ) )
-			encoder = new ZipOutputStream( buffer );
-		else if( encoding.equals( Encoding.DEFLATE ) )
-			// Note: Internet Explorer absolutely requires "no wrap" mode!
-			encoder = new DeflaterOutputStream( buffer, new Deflater( Deflater.BEST_COMPRESSION, true ) );
+		return compress( in, encoding, DEFAULT_COMPRESSION_LEVEL, documentName );
+	}
 
-		if( encoder == null )
-			throw new IOException( "Unsupported encoding: " + encoding );
+	/**
+	 * Compresses an input stream into a byte array.
+	 * 
+	 * @param in
+	 *        The input stream
+	 * @param encoding
+	 *        The encoding
+	 * @param level
+	 *        The compression level (0-9, or {@link Deflater#DEFAULT_COMPRESSION})
+	 * @param documentName
+	 *        The document name (only used with {@link Encoding#ZIP})
+	 * @return The byte array
+	 * @throws IOException
+	 */
+	public static byte[] compress( InputStream in, Encoding encoding, int level, String documentName ) throws IOException
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 
+		DeflaterOutputStream encoder = createEncoder( buffer, encoding, level, documentName );
 		try
 		{
-			if( encoder instanceof ZipOutputStream )
-				( (ZipOutputStream) encoder ).putNextEntry( new ZipEntry( documentName ) );
-
 			copyStream( in, encoder );
 		}
 		finally
@@ -217,7 +290,8 @@ public abstract class IoUtil
 	}
 
 	/**
-	 * Compresses text into a byte array.
+	 * Compresses text into a byte array, using the JVM's default character set
+	 * and the default compression level.
 	 * 
 	 * @param text
 	 *        The string
@@ -227,10 +301,102 @@ public abstract class IoUtil
 	 *        The document name (only used with {@link Encoding#ZIP})
 	 * @return The byte array
 	 * @throws IOException
+	 * @see #compress(CharSequence, Charset, Encoding, int, String)
 	 */
 	public static byte[] compress( CharSequence text, Encoding encoding, String documentName ) throws IOException
 	{
-		return compress( new ByteArrayInputStream( text.toString().getBytes() ), encoding, documentName );
+		return compress( text, Charset.defaultCharset(), encoding, DEFAULT_COMPRESSION_LEVEL, documentName );
+	}
+
+	/**
+	 * Compresses text into a byte array, using the default compression level.
+	 * 
+	 * @param text
+	 *        The string
+	 * @param charset
+	 *        The character set with which to encode the text
+	 * @param encoding
+	 *        The encoding
+	 * @param documentName
+	 *        The document name (only used with {@link Encoding#ZIP})
+	 * @return The byte array
+	 * @throws IOException
+	 * @see #compress(CharSequence, Charset, Encoding, int, String)
+	 */
+	public static byte[] compress( CharSequence text, Charset charset, Encoding encoding, String documentName ) throws IOException
+	{
+		return compress( text, charset, encoding, DEFAULT_COMPRESSION_LEVEL, documentName );
+	}
+
+	/**
+	 * Compresses text into a byte array. The characters are encoded directly
+	 * into the compressor, without an intermediary byte array for the whole
+	 * text.
+	 * 
+	 * @param text
+	 *        The string
+	 * @param charset
+	 *        The character set with which to encode the text
+	 * @param encoding
+	 *        The encoding
+	 * @param level
+	 *        The compression level (0-9, or {@link Deflater#DEFAULT_COMPRESSION})
+	 * @param documentName
+	 *        The document name (only used with {@link Encoding#ZIP})
+	 * @return The byte array
+	 * @throws IOException
+	 */
+	public static byte[] compress( CharSequence text, Charset charset, Encoding encoding, int level, String documentName ) throws IOException
+	{
+		// Compressed text is usually much smaller than the text
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream( Math.max( 32, text.length() / 4 ) );
+
+		DeflaterOutputStream encoder = createEncoder( buffer, encoding, level, documentName );
+		Writer writer = new OutputStreamWriter( encoder, charset );
+		try
+		{
+			writer.append( text );
+		}
+		finally
+		{
+			writer.close();
+		}
+
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Creates a compressing stream for an encoding. DEFLATE and GZIP streams
+	 * use deflaters from the shared {@link DeflaterPool}, so make sure to
+	 * always close the stream.
+	 * 
+	 * @param out
+	 *        The output stream into which to write the compressed bytes
+	 * @param encoding
+	 *        The encoding
+	 * @param level
+	 *        The compression level (0-9, or {@link Deflater#DEFAULT_COMPRESSION})
+	 * @param documentName
+	 *        The document name (only used with {@link Encoding#ZIP})
+	 * @return The compressing stream
+	 * @throws IOException
+	 */
+	public static DeflaterOutputStream createEncoder( OutputStream out, Encoding encoding, int level, String documentName ) throws IOException
+	{
+		if( encoding.equals( Encoding.GZIP ) )
+			return new PooledDeflaterOutputStream( out, DeflaterPool.getDefault(), level, true, BUFFER_SIZE );
+		else if( encoding.equals( Encoding.DEFLATE ) )
+			// Note: Internet Explorer absolutely requires "no wrap" mode!
+			return new PooledDeflaterOutputStream( out, DeflaterPool.getDefault(), level, false, BUFFER_SIZE );
+		else if( encoding.equals( Encoding.ZIP ) )
+		{
+			ZipOutputStream encoder = new ZipOutputStream( out );
+			encoder.setLevel( level );
+			encoder.putNextEntry( new ZipEntry( documentName ) );
+			return encoder;
+		}
+
+		throw new IOException( "Unsupported encoding: " + encoding );
 	}
 
 	/**
@@ -460,6 +626,11 @@ public abstract class IoUtil
 	{
 	}
 
+	/**
+	 * Size of the buffer used for copying streams.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
 	/**
 	 * UTF-8 charset.
 	 */
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2009-2012 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.util;
+
+import java.util.Map;
+
+import org.restlet.util.Resolver;
+
+/**
+ * Creates resolvers for maps, for use with {@link ResolvingTemplate}.
+ * <p>
+ * Implementations must be thread safe.
+ * 
+ * @author Tal Liron
+ * @see ResolvingTemplate#setMapResolverFactory(MapResolverFactory)
+ */
+public interface MapResolverFactory
+{
+	/**
+	 * Creates a resolver.
+	 * 
+	 * @param values
+	 *        The values to resolve
+	 * @return The resolver
+	 */
+	public Resolver<?> createResolver( Map<String, ?> values );
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright 2009-2012 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A {@link DeflaterOutputStream} that borrows its deflater from a
+ * {@link DeflaterPool} and returns it when closed. Writes either raw "no wrap"
+ * DEFLATE data or, optionally, the GZIP format.
+ * <p>
+ * Make sure to always close the stream, or else the deflater will not be
+ * returned to the pool.
+ * 
+ * @author Tal Liron
+ */
+public class PooledDeflaterOutputStream extends DeflaterOutputStream
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param out
+	 *        The output stream into which to write the compressed bytes
+	 * @param pool
+	 *        The deflater pool
+	 * @param level
+	 *        The compression level (0-9, or
+	 *        {@link java.util.zip.Deflater#DEFAULT_COMPRESSION})
+	 * @param gzip
+	 *        True to write the GZIP format, false for raw DEFLATE data
+	 * @param bufferSize
+	 *        The output buffer size
+	 * @throws IOException
+	 */
+	public PooledDeflaterOutputStream( OutputStream out, DeflaterPool pool, int level, boolean gzip, int bufferSize ) throws IOException
+	{
+		super( out, pool.acquire( level ), bufferSize );
+		this.pool = pool;
+		crc = gzip ? new CRC32() : null;
+
+		if( gzip )
+		{
+			try
+			{
+				out.write( GZIP_HEADER );
+			}
+			catch( IOException x )
+			{
+				closed = true;
+				pool.release( def );
+				throw x;
+			}
+		}
+	}
+
+	//
+	// OutputStream
+	//
+
+	@Override
+	public void write( byte[] b, int off, int len ) throws IOException
+	{
+		super.write( b, off, len );
+		if( crc != null )
+			crc.update( b, off, len );
+	}
+
+	@Override
+	public void finish() throws IOException
+	{
+		if( !def.finished() )
+		{
+			super.finish();
+
+			if( crc != null )
+			{
+				// GZIP trailer: CRC-32 and uncompressed size, little-endian
+				writeIntLE( (int) crc.getValue() );
+				writeIntLE( (int) def.getBytesRead() );
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if( !closed )
+		{
+			closed = true;
+			try
+			{
+				super.close();
+			}
+			finally
+			{
+				pool.release( def );
+			}
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * GZIP header: magic number, DEFLATE method, no flags, no modification
+	 * time, no extra flags, unknown OS.
+	 */
+	private static final byte[] GZIP_HEADER = new byte[]
+	{
+		(byte) 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff
+	};
+
+	/**
+	 * The deflater pool.
+	 */
+	private final DeflaterPool pool;
+
+	/**
+	 * The checksum of the uncompressed data (GZIP only).
+	 */
+	private final CRC32 crc;
+
+	/**
+	 * Whether we were closed.
+	 */
+	private boolean closed;
+
+	/**
+	 * Writes an integer in little-endian byte order.
+	 * 
+	 * @param i
+	 *        The integer
+	 * @throws IOException
+	 */
+	private void writeIntLE( int i ) throws IOException
+	{
+		out.write( i & 0xff );
+		out.write( ( i >> 8 ) & 0xff );
+		out.write( ( i >> 16 ) & 0xff );
+		out.write( ( i >> 24 ) & 0xff );
+	}
+}
@@ -18,7 +18,6 @@ import org.restlet.Restlet;
 import org.restlet.data.Reference;
 import org.restlet.engine.header.HeaderConstants;
 import org.restlet.routing.Redirector;
-import org.restlet.routing.Template;
 
 /**
  * A {@link Redirector} that uses {@link ResolvingTemplate}.
@@ -61,6 +60,25 @@ public class ResolvingRedirector extends Redirector
 	// //////////////////////////////////////////////////////////////////////////
 	// Protected
 
+	/**
+	 * The parsed target template, created once and reused for all requests.
+	 * Recreated if the target template is changed.
+	 * 
+	 * @return The resolving template
+	 */
+	protected ResolvingTemplate getResolvingTemplate()
+	{
+		ResolvingTemplate resolvingTemplate = this.resolvingTemplate;
+		String targetTemplate = this.targetTemplate;
+		if( ( resolvingTemplate == null ) || !resolvingTemplate.getPattern().equals( targetTemplate ) )
+		{
+			resolvingTemplate = new ResolvingTemplate( targetTemplate );
+			resolvingTemplate.setLogger( getLogger() );
+			this.resolvingTemplate = resolvingTemplate;
+		}
+		return resolvingTemplate;
+	}
+
 	//
 	// Redirector
 	//
@@ -71,12 +89,8 @@ public class ResolvingRedirector extends Redirector
 		// This is essentially the original Restlet code modified to use
 		// ResolvingTemplate.
 
-		// Create the template
-		Template rt = new ResolvingTemplate( this.targetTemplate );
-		rt.setLogger( getLogger() );
-
 		// Return the formatted target URI
-		return new Reference( request.getResourceRef(), rt.format( request, response ) );
+		return new Reference( request.getResourceRef(), getResolvingTemplate().format( request, response ) );
 	}
 
 	@Override
@@ -112,9 +126,7 @@ public class ResolvingRedirector extends Redirector
 			// In case of redirection, we may have to rewrite the redirect URI
 			if( response.getLocationRef() != null )
 			{
-				Template rt = new ResolvingTemplate( this.targetTemplate );
-				rt.setLogger( getLogger() );
-				int matched = rt.parse( response.getLocationRef().toString(), request );
+				int matched = getResolvingTemplate().parse( response.getLocationRef().toString(), request );
 
 				if( matched > 0 )
 				{
@@ -135,6 +147,11 @@ public class ResolvingRedirector extends Redirector
 	 */
 	private final boolean isCleaning;
 
+	/**
+	 * The parsed target template.
+	 */
+	private volatile ResolvingTemplate resolvingTemplate;
+
 	/**
 	 * Add description.
 	 */
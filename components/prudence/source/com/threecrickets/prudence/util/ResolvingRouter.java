@@ -11,8 +11,17 @@
 
 package com.threecrickets.prudence.util;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.restlet.Context;
+import org.restlet.Request;
+import org.restlet.Response;
 import org.restlet.Restlet;
+import org.restlet.data.Status;
+import org.restlet.routing.Route;
+import org.restlet.routing.RouteList;
 import org.restlet.routing.Router;
 import org.restlet.routing.TemplateRoute;
 import org.restlet.routing.Variable;
@@ -35,6 +44,7 @@ public class ResolvingRouter extends Router
 	{
 		super();
 		describe();
+		setRoutes( new DispatchedRouteList() );
 	}
 
 	/**
@@ -47,6 +57,96 @@ public class ResolvingRouter extends Router
 	{
 		super( context );
 		describe();
+		setRoutes( new DispatchedRouteList() );
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * Whether routes are selected via a compiled {@link RouteDispatcher},
+	 * which only scores routes whose literal prefix matches the request.
+	 * Useful for applications with many routes. Defaults to false.
+	 * <p>
+	 * Supported for {@link Router#MODE_FIRST_MATCH},
+	 * {@link Router#MODE_LAST_MATCH} and {@link Router#MODE_BEST_MATCH}; other
+	 * routing modes are unaffected.
+	 * 
+	 * @return Whether to use compiled dispatch
+	 */
+	public boolean isCompiledDispatch()
+	{
+		return compiledDispatch;
+	}
+
+	/**
+	 * @param compiledDispatch
+	 *        Whether to use compiled dispatch
+	 * @see #isCompiledDispatch()
+	 */
+	public void setCompiledDispatch( boolean compiledDispatch )
+	{
+		this.compiledDispatch = compiledDispatch;
+	}
+
+	//
+	// Router
+	//
+
+	@Override
+	public Restlet getNext( Request request, Response response )
+	{
+		if( compiledDispatch )
+		{
+			Route route;
+			switch( getRoutingMode() )
+			{
+				case MODE_FIRST_MATCH:
+					route = getDispatcher().getFirst( request, response, getRequiredScore() );
+					break;
+				case MODE_LAST_MATCH:
+					route = getDispatcher().getLast( request, response, getRequiredScore() );
+					break;
+				case MODE_BEST_MATCH:
+					route = getDispatcher().getBest( request, response, getRequiredScore() );
+					break;
+				default:
+					return super.getNext( request, response );
+			}
+
+			if( route != null )
+			{
+				// This is what Router would do
+				if( request.isLoggable() )
+					logRoute( route );
+				return route;
+			}
+
+			if( ( getDefaultRoute() == null ) && ( getMaxAttempts() <= 1 ) )
+			{
+				// This is what Router would do, without scoring all routes
+				// again
+				response.setStatus( Status.CLIENT_ERROR_NOT_FOUND );
+				if( request.isLoggable() )
+					logRoute( null );
+				return null;
+			}
+		}
+
+		return super.getNext( request, response );
+	}
+
+	/**
+	 * Wraps the routes so that changes to them recompile the dispatcher.
+	 * 
+	 * @param routes
+	 *        The routes
+	 */
+	@Override
+	public void setRoutes( RouteList routes )
+	{
+		super.setRoutes( ( routes == null ) || ( routes instanceof DispatchedRouteList ) ? routes : new DispatchedRouteList( routes ) );
 	}
 
 	// //////////////////////////////////////////////////////////////////////////
@@ -64,6 +164,229 @@ public class ResolvingRouter extends Router
 		return result;
 	}
 
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * Whether to use compiled dispatch.
+	 */
+	private volatile boolean compiledDispatch;
+
+	/**
+	 * The compiled dispatcher, recompiled if the routes have changed.
+	 * 
+	 * @return The dispatcher
+	 * @see #setRoutes(RouteList)
+	 */
+	private RouteDispatcher getDispatcher()
+	{
+		return ( (DispatchedRouteList) getRoutes() ).getDispatcher();
+	}
+
+	/**
+	 * A route list that discards its compiled dispatcher whenever it is
+	 * changed.
+	 */
+	private static class DispatchedRouteList extends RouteList
+	{
+		/**
+		 * Constructor.
+		 */
+		public DispatchedRouteList()
+		{
+			super();
+		}
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param delegate
+		 *        The list to wrap
+		 */
+		public DispatchedRouteList( List<Route> delegate )
+		{
+			super( delegate );
+		}
+
+		/**
+		 * The compiled dispatcher, compiling it if necessary.
+		 * 
+		 * @return The dispatcher
+		 */
+		public RouteDispatcher getDispatcher()
+		{
+			RouteDispatcher dispatcher = this.dispatcher;
+			if( dispatcher == null )
+			{
+				int version = this.version.get();
+				dispatcher = new RouteDispatcher( this );
+				this.dispatcher = dispatcher;
+
+				// If we were changed while compiling, the change might not
+				// have seen our dispatcher, so we must discard it ourselves
+				if( this.version.get() != version )
+					this.dispatcher = null;
+			}
+			return dispatcher;
+		}
+
+		//
+		// List
+		//
+
+		@Override
+		public boolean add( Route element )
+		{
+			try
+			{
+				return super.add( element );
+			}
+			finally
+			{
+				changed();
+			}
+		}
+
+		@Override
+		public void add( int index, Route element )
+		{
+			try
+			{
+				super.add( index, element );
+			}
+			finally
+			{
+				changed();
+			}
+		}
+
+		@Override
+		public boolean addAll( Collection<? extends Route> elements )
+		{
+			try
+			{
+				return super.addAll( elements );
+			}
+			finally
+			{
+				changed();
+			}
+		}
+
+		@Override
+		public boolean addAll( int index, Collection<? extends Route> elements )
+		{
+			try
+			{
+				return super.addAll( index, elements );
+			}
+			finally
+			{
+				changed();
+			}
+		}
+
+		@Override
+		public void clear()
+		{
+			try
+			{
+				super.clear();
+			}
+			finally
+			{
+				changed();
+			}
+		}
+
+		@Override
+		public Route remove( int index )
+		{
+			try
+			{
+				return super.remove( index );
+			}
+			finally
+			{
+				changed();
+			}
+		}
+
+		@Override
+		public boolean remove( Object element )
+		{
+			try
+			{
+				return super.remove( element );
+			}
+			finally
+			{
+				changed();
+			}
+		}
+
+		@Override
+		public boolean removeAll( Collection<?> elements )
+		{
+			try
+			{
+				return super.removeAll( elements );
+			}
+			finally
+			{
+				changed();
+			}
+		}
+
+		@Override
+		public boolean retainAll( Collection<?> elements )
+		{
+			try
+			{
+				return super.retainAll( elements );
+			}
+			finally
+			{
+				changed();
+			}
+		}
+
+		@Override
+		public Route set( int index, Route element )
+		{
+			try
+			{
+				return super.set( index, element );
+			}
+			finally
+			{
+				changed();
+			}
+		}
+
+		// //////////////////////////////////////////////////////////////////////////
+		// Private
+
+		/**
+		 * Incremented on every change.
+		 */
+		private final AtomicInteger version = new AtomicInteger();
+
+		/**
+		 * The compiled dispatcher, or null if it must be compiled.
+		 */
+		private volatile RouteDispatcher dispatcher;
+
+		/**
+		 * Discards the compiled dispatcher.
+		 */
+		private void changed()
+		{
+			version.incrementAndGet();
+			dispatcher = null;
+		}
+	}
+
 	/**
 	 * Add description.
 	 */
@@ -33,19 +33,42 @@ public class ResolvingTemplate extends Template
 	// Constants
 	//
 
+	/**
+	 * Attribute of the {@link MapResolverFactory} for an {@link Application}.
+	 * 
+	 * @see #getMapResolverFactory()
+	 */
+	public static final String MAP_RESOLVER_FACTORY = "com.threecrickets.prudence.util.ResolvingTemplate.mapResolverFactory";
+
+	/**
+	 * Attribute of the {@link CallResolverFactory} for an {@link Application}.
+	 * 
+	 * @see #getCallResolverFactory()
+	 */
+	public static final String CALL_RESOLVER_FACTORY = "com.threecrickets.prudence.util.ResolvingTemplate.callResolverFactory";
+
 	/**
 	 * Attribute of the map resolver constructor for an {@link Application}.
+	 * A constructor stored here is used if there is no
+	 * {@link #MAP_RESOLVER_FACTORY}.
 	 * 
 	 * @see #getMapResolverConstructor()
+	 * @deprecated Use {@link #MAP_RESOLVER_FACTORY}
 	 */
+	@Deprecated
 	public static final String MAP_RESOLVER_CONSTRUCTOR = "com.threecrickets.prudence.util.ResolvingTemplate.mapResolverConstructor";
 
 	/**
 	 * Attribute of the call resolver constructor for an {@link Application}.
+	 * A constructor stored here is used if there is no
+	 * {@link #CALL_RESOLVER_FACTORY}. (It used to share its name with
+	 * {@link #MAP_RESOLVER_CONSTRUCTOR}.)
 	 * 
 	 * @see #getCallResolverConstructor()
+	 * @deprecated Use {@link #CALL_RESOLVER_FACTORY}
 	 */
-	public static final String CALL_RESOLVER_CONSTRUCTOR = "com.threecrickets.prudence.util.ResolvingTemplate.mapResolverConstructor";
+	@Deprecated
+	public static final String CALL_RESOLVER_CONSTRUCTOR = "com.threecrickets.prudence.util.ResolvingTemplate.callResolverConstructor";
 
 	//
 	// Construction
@@ -107,9 +130,66 @@ public class ResolvingTemplate extends Template
 	// Static attributes
 	//
 
+	/**
+	 * @return The map resolver factory for the current application or null
+	 */
+	public static MapResolverFactory getMapResolverFactory()
+	{
+		Application application = Application.getCurrent();
+		if( application != null )
+			return getMapResolverFactory( application );
+		else
+			return null;
+	}
+
+	/**
+	 * @param application
+	 * @return The map resolver factory or null
+	 */
+	public static MapResolverFactory getMapResolverFactory( Application application )
+	{
+		MapResolverFactory mapResolverFactory = (MapResolverFactory) application.getContext().getAttributes().get( MAP_RESOLVER_FACTORY );
+		if( mapResolverFactory == null )
+		{
+			Constructor<Resolver<?>> constructor = getMapResolverConstructor( application );
+			if( constructor != null )
+				mapResolverFactory = new ConstructorResolverFactory( constructor );
+		}
+		return mapResolverFactory;
+	}
+
+	/**
+	 * @param application
+	 * @param mapResolverFactory
+	 *        The map resolver factory or null
+	 */
+	public static void setMapResolverFactory( Application application, MapResolverFactory mapResolverFactory )
+	{
+		if( mapResolverFactory == null )
+			application.getContext().getAttributes().remove( MAP_RESOLVER_FACTORY );
+		else
+			application.getContext().getAttributes().put( MAP_RESOLVER_FACTORY, mapResolverFactory );
+	}
+
+	/**
+	 * Note that resolvers are created via reflection on every format, so
+	 * prefer {@link #setMapResolverFactory(Application, MapResolverFactory)}.
+	 * 
+	 * @param application
+	 * @param theClass
+	 * @throws SecurityException
+	 * @throws NoSuchMethodException
+	 */
+	public static void setMapResolverClass( Application application, Class<Resolver<?>> theClass ) throws SecurityException, NoSuchMethodException
+	{
+		setMapResolverFactory( application, theClass != null ? new ConstructorResolverFactory( theClass.getConstructor( Map.class ) ) : null );
+	}
+
 	/**
 	 * @return The constructor for the map resolver
+	 * @deprecated Use {@link #getMapResolverFactory()}
 	 */
+	@Deprecated
 	public static Constructor<Resolver<?>> getMapResolverConstructor()
 	{
 		Application application = Application.getCurrent();
@@ -121,32 +201,82 @@ public class ResolvingTemplate extends Template
 
 	/**
 	 * @param application
-	 * @return The constructor for the map resolver
+	 * @return The constructor for the map resolver, whether set by class or
+	 *         stored in {@link #MAP_RESOLVER_CONSTRUCTOR}
+	 * @deprecated Use {@link #getMapResolverFactory(Application)}
 	 */
+	@Deprecated
 	public static Constructor<Resolver<?>> getMapResolverConstructor( Application application )
 	{
+		Object mapResolverFactory = application.getContext().getAttributes().get( MAP_RESOLVER_FACTORY );
+		if( mapResolverFactory instanceof ConstructorResolverFactory )
+			return ( (ConstructorResolverFactory) mapResolverFactory ).constructor;
+
 		@SuppressWarnings("unchecked")
 		Constructor<Resolver<?>> constructor = (Constructor<Resolver<?>>) application.getContext().getAttributes().get( MAP_RESOLVER_CONSTRUCTOR );
 		return constructor;
 	}
 
 	/**
+	 * @return The call resolver factory for the current application or null
+	 */
+	public static CallResolverFactory getCallResolverFactory()
+	{
+		Application application = Application.getCurrent();
+		if( application != null )
+			return getCallResolverFactory( application );
+		else
+			return null;
+	}
+
+	/**
+	 * @param application
+	 * @return The call resolver factory or null
+	 */
+	public static CallResolverFactory getCallResolverFactory( Application application )
+	{
+		CallResolverFactory callResolverFactory = (CallResolverFactory) application.getContext().getAttributes().get( CALL_RESOLVER_FACTORY );
+		if( callResolverFactory == null )
+		{
+			Constructor<Resolver<?>> constructor = getCallResolverConstructor( application );
+			if( constructor != null )
+				callResolverFactory = new ConstructorResolverFactory( constructor );
+		}
+		return callResolverFactory;
+	}
+
+	/**
+	 * @param application
+	 * @param callResolverFactory
+	 *        The call resolver factory or null
+	 */
+	public static void setCallResolverFactory( Application application, CallResolverFactory callResolverFactory )
+	{
+		if( callResolverFactory == null )
+			application.getContext().getAttributes().remove( CALL_RESOLVER_FACTORY );
+		else
+			application.getContext().getAttributes().put( CALL_RESOLVER_FACTORY, callResolverFactory );
+	}
+
+	/**
+	 * Note that resolvers are created via reflection on every format, so
+	 * prefer {@link #setCallResolverFactory(Application, CallResolverFactory)}.
+	 * 
 	 * @param application
 	 * @param theClass
 	 * @throws SecurityException
 	 * @throws NoSuchMethodException
 	 */
-	public static void setMapResolverClass( Application application, Class<Resolver<?>> theClass ) throws SecurityException, NoSuchMethodException
+	public static void setCallResolverClass( Application application, Class<Resolver<?>> theClass ) throws SecurityException, NoSuchMethodException
 	{
-		if( theClass == null )
-			application.getContext().getAttributes().remove( MAP_RESOLVER_CONSTRUCTOR );
-		else
-			application.getContext().getAttributes().put( MAP_RESOLVER_CONSTRUCTOR, theClass.getConstructor( Map.class ) );
+		setCallResolverFactory( application, theClass != null ? new ConstructorResolverFactory( theClass.getConstructor( Request.class, Response.class ) ) : null );
 	}
 
 	/**
 	 * @return The constructor for the call resolver
+	 * @deprecated Use {@link #getCallResolverFactory()}
 	 */
+	@Deprecated
 	public static Constructor<Resolver<?>> getCallResolverConstructor()
 	{
 		Application application = Application.getCurrent();
@@ -158,38 +288,43 @@ public class ResolvingTemplate extends Template
 
 	/**
 	 * @param application
-	 * @return The constructor for the call resolver
+	 * @return The constructor for the call resolver, whether set by class or
+	 *         stored in {@link #CALL_RESOLVER_CONSTRUCTOR}
+	 * @deprecated Use {@link #getCallResolverFactory(Application)}
 	 */
+	@Deprecated
 	public static Constructor<Resolver<?>> getCallResolverConstructor( Application application )
 	{
+		Object callResolverFactory = application.getContext().getAttributes().get( CALL_RESOLVER_FACTORY );
+		if( callResolverFactory instanceof ConstructorResolverFactory )
+			return ( (ConstructorResolverFactory) callResolverFactory ).constructor;
+
 		@SuppressWarnings("unchecked")
 		Constructor<Resolver<?>> constructor = (Constructor<Resolver<?>>) application.getContext().getAttributes().get( CALL_RESOLVER_CONSTRUCTOR );
 		return constructor;
 	}
 
+	//
+	// Attributes
+	//
+
 	/**
-	 * @param application
-	 * @param theClass
-	 * @throws SecurityException
-	 * @throws NoSuchMethodException
+	 * Creates resolvers for maps, overriding the application's factory.
+	 * 
+	 * @param mapResolverFactory
+	 *        The map resolver factory or null
 	 */
-	public static void setCallResolverClass( Application application, Class<Resolver<?>> theClass ) throws SecurityException, NoSuchMethodException
+	public void setMapResolverFactory( MapResolverFactory mapResolverFactory )
 	{
-		if( theClass == null )
-			application.getContext().getAttributes().remove( CALL_RESOLVER_CONSTRUCTOR );
-		else
-			application.getContext().getAttributes().put( CALL_RESOLVER_CONSTRUCTOR, theClass.getConstructor( Request.class, Response.class ) );
+		this.mapResolverFactory = mapResolverFactory;
 	}
 
-	//
-	// Attributes
-	//
-
 	/**
 	 * Instances of this class will be created to resolve maps.
 	 * <p>
 	 * The class must have have a constructor that accepts a {@link Map}
-	 * argument.
+	 * argument. Note that instances are created via reflection on every
+	 * format, so prefer {@link #setMapResolverFactory(MapResolverFactory)}.
 	 * 
 	 * @param theClass
 	 *        The class or null
@@ -198,17 +333,27 @@ public class ResolvingTemplate extends Template
 	 */
 	public void setMapResolverClass( Class<Resolver<?>> theClass ) throws SecurityException, NoSuchMethodException
 	{
-		if( theClass == null )
-			mapResolverConstructor = null;
-		else
-			mapResolverConstructor = theClass.getConstructor( Map.class );
+		setMapResolverFactory( theClass != null ? new ConstructorResolverFactory( theClass.getConstructor( Map.class ) ) : null );
+	}
+
+	/**
+	 * Creates resolvers for calls, overriding the application's factory.
+	 * 
+	 * @param callResolverFactory
+	 *        The call resolver factory or null
+	 */
+	public void setCallResolverFactory( CallResolverFactory callResolverFactory )
+	{
+		this.callResolverFactory = callResolverFactory;
 	}
 
 	/**
 	 * Instances of this class will be created to resolve calls.
 	 * <p>
 	 * The class must have have a constructor that accepts a {@link Request} and
-	 * a {@link Response} as arguments.
+	 * a {@link Response} as arguments. Note that instances are created via
+	 * reflection on every format, so prefer
+	 * {@link #setCallResolverFactory(CallResolverFactory)}.
 	 * 
 	 * @param theClass
 	 *        The class or null
@@ -217,10 +362,7 @@ public class ResolvingTemplate extends Template
 	 */
 	public void setCallResolverClass( Class<Resolver<?>> theClass ) throws SecurityException, NoSuchMethodException
 	{
-		if( theClass == null )
-			callResolverConstructor = null;
-		else
-			callResolverConstructor = theClass.getConstructor( Request.class, Response.class );
+		setCallResolverFactory( theClass != null ? new ConstructorResolverFactory( theClass.getConstructor( Request.class, Response.class ) ) : null );
 	}
 
 	//
@@ -230,34 +372,13 @@ public class ResolvingTemplate extends Template
 	@Override
 	public String format( Map<String, ?> values )
 	{
-		Constructor<Resolver<?>> mapResolverConstructor = this.mapResolverConstructor;
+		MapResolverFactory mapResolverFactory = this.mapResolverFactory;
 
-		if( mapResolverConstructor == null )
-			mapResolverConstructor = getMapResolverConstructor();
+		if( mapResolverFactory == null )
+			mapResolverFactory = getMapResolverFactory();
 
-		if( mapResolverConstructor != null )
-		{
-			try
-			{
-				return format( mapResolverConstructor.newInstance( values ) );
-			}
-			catch( IllegalArgumentException x )
-			{
-				throw new RuntimeException( x );
-			}
-			catch( InstantiationException x )
-			{
-				throw new RuntimeException( x );
-			}
-			catch( IllegalAccessException x )
-			{
-				throw new RuntimeException( x );
-			}
-			catch( InvocationTargetException x )
-			{
-				throw new RuntimeException( x );
-			}
-		}
+		if( mapResolverFactory != null )
+			return format( mapResolverFactory.createResolver( values ) );
 
 		return super.format( values );
 	}
@@ -265,16 +386,73 @@ public class ResolvingTemplate extends Template
 	@Override
 	public String format( Request request, Response response )
 	{
-		Constructor<Resolver<?>> callResolverConstructor = this.callResolverConstructor;
+		CallResolverFactory callResolverFactory = this.callResolverFactory;
+
+		if( callResolverFactory == null )
+			callResolverFactory = getCallResolverFactory();
 
-		if( callResolverConstructor == null )
-			callResolverConstructor = getCallResolverConstructor();
+		if( callResolverFactory != null )
+			return format( callResolverFactory.createResolver( request, response ) );
 
-		if( callResolverConstructor != null )
+		return super.format( request, response );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * Used to create the map resolver.
+	 */
+	private volatile MapResolverFactory mapResolverFactory;
+
+	/**
+	 * Used to create the call resolver.
+	 */
+	private volatile CallResolverFactory callResolverFactory;
+
+	/**
+	 * Creates resolvers via a constructor, for resolvers configured by class.
+	 */
+	private static class ConstructorResolverFactory implements MapResolverFactory, CallResolverFactory
+	{
+		/**
+		 * Constructor.
+		 * 
+		 * @param constructor
+		 *        The resolver constructor
+		 */
+		public ConstructorResolverFactory( Constructor<Resolver<?>> constructor )
+		{
+			this.constructor = constructor;
+		}
+
+		public Resolver<?> createResolver( Map<String, ?> values )
+		{
+			return newInstance( values );
+		}
+
+		public Resolver<?> createResolver( Request request, Response response )
+		{
+			return newInstance( request, response );
+		}
+
+		/**
+		 * The resolver constructor.
+		 */
+		private final Constructor<Resolver<?>> constructor;
+
+		/**
+		 * Creates a resolver.
+		 * 
+		 * @param arguments
+		 *        The constructor arguments
+		 * @return The resolver
+		 */
+		private Resolver<?> newInstance( Object... arguments )
 		{
 			try
 			{
-				return format( callResolverConstructor.newInstance( request, response ) );
+				return constructor.newInstance( arguments );
 			}
 			catch( IllegalArgumentException x )
 			{
@@ -293,20 +471,5 @@ public class ResolvingTemplate extends Template
 				throw new RuntimeException( x );
 			}
 		}
-
-		return super.format( request, response );
 	}
-
-	// //////////////////////////////////////////////////////////////////////////
-	// Private
-
-	/**
-	 * Used to create the map resolver.
-	 */
-	private volatile Constructor<Resolver<?>> mapResolverConstructor;
-
-	/**
-	 * Used to create the call resolver.
-	 */
-	private volatile Constructor<Resolver<?>> callResolverConstructor;
 }
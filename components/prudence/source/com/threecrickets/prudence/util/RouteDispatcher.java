@@ -0,0 +1,292 @@
+/**
+ * Copyright 2009-2012 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.routing.Route;
+import org.restlet.routing.TemplateRoute;
+
+/**
+ * A compiled snapshot of a router's routes, used to avoid scoring routes that
+ * cannot possibly match a request.
+ * <p>
+ * The literal prefix of each route's template (everything up to the first
+ * variable) is stored in a trie. Only routes whose literal prefix is a prefix
+ * of the remaining part of the resource reference are scored, in their
+ * original order, so the selected route is the same as it would be for a
+ * linear scan of all routes. Routes of unknown types are always scored.
+ * <p>
+ * Instances are immutable and thus thread safe.
+ * 
+ * @author Tal Liron
+ * @see ResolvingRouter#setCompiledDispatch(boolean)
+ */
+public class RouteDispatcher
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param routes
+	 *        The routes
+	 */
+	public RouteDispatcher( List<Route> routes )
+	{
+		this.routes = routes.toArray( new Route[routes.size()] );
+
+		for( int index = 0; index < this.routes.length; index++ )
+		{
+			Node node = root;
+			String prefix = getLiteralPrefix( this.routes[index] );
+			for( int i = 0, length = prefix.length(); i < length; i++ )
+				node = node.getOrCreateChild( prefix.charAt( i ) );
+			node.addIndex( index );
+		}
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Same as {@link org.restlet.routing.RouteList#getFirst(Request, Response, float)}.
+	 * 
+	 * @param request
+	 *        The request
+	 * @param response
+	 *        The response
+	 * @param requiredScore
+	 *        The minimum score required
+	 * @return The first matching route or null
+	 */
+	public Route getFirst( Request request, Response response, float requiredScore )
+	{
+		int[] candidates = getCandidates( request );
+		for( int i = 0; i < candidates.length; i++ )
+		{
+			Route route = routes[candidates[i]];
+			if( route.score( request, response ) >= requiredScore )
+				return route;
+		}
+		return null;
+	}
+
+	/**
+	 * Same as {@link org.restlet.routing.RouteList#getLast(Request, Response, float)}.
+	 * 
+	 * @param request
+	 *        The request
+	 * @param response
+	 *        The response
+	 * @param requiredScore
+	 *        The minimum score required
+	 * @return The last matching route or null
+	 */
+	public Route getLast( Request request, Response response, float requiredScore )
+	{
+		int[] candidates = getCandidates( request );
+		for( int i = candidates.length - 1; i >= 0; i-- )
+		{
+			Route route = routes[candidates[i]];
+			if( route.score( request, response ) >= requiredScore )
+				return route;
+		}
+		return null;
+	}
+
+	/**
+	 * Same as {@link org.restlet.routing.RouteList#getBest(Request, Response, float)}.
+	 * 
+	 * @param request
+	 *        The request
+	 * @param response
+	 *        The response
+	 * @param requiredScore
+	 *        The minimum score required
+	 * @return The best matching route or null
+	 */
+	public Route getBest( Request request, Response response, float requiredScore )
+	{
+		Route best = null;
+		float bestScore = 0f;
+		int[] candidates = getCandidates( request );
+		for( int i = 0; i < candidates.length; i++ )
+		{
+			Route route = routes[candidates[i]];
+			float score = route.score( request, response );
+			if( ( score > bestScore ) && ( score >= requiredScore ) )
+			{
+				bestScore = score;
+				best = route;
+			}
+		}
+		return best;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The routes.
+	 */
+	private final Route[] routes;
+
+	/**
+	 * The root of the trie.
+	 */
+	private final Node root = new Node();
+
+	/**
+	 * A trie node.
+	 */
+	private static class Node
+	{
+		/**
+		 * The characters leading to the children.
+		 */
+		private char[] keys = new char[0];
+
+		/**
+		 * The children.
+		 */
+		private Node[] children = new Node[0];
+
+		/**
+		 * The indexes of the routes whose literal prefix ends here.
+		 */
+		private int[] indexes = new int[0];
+
+		/**
+		 * The child for a character.
+		 * 
+		 * @param c
+		 *        The character
+		 * @return The child or null
+		 */
+		private Node getChild( char c )
+		{
+			for( int i = 0; i < keys.length; i++ )
+				if( keys[i] == c )
+					return children[i];
+			return null;
+		}
+
+		/**
+		 * The child for a character, creating it if necessary.
+		 * 
+		 * @param c
+		 *        The character
+		 * @return The child
+		 */
+		private Node getOrCreateChild( char c )
+		{
+			Node child = getChild( c );
+			if( child == null )
+			{
+				child = new Node();
+				int length = keys.length;
+				char[] newKeys = new char[length + 1];
+				System.arraycopy( keys, 0, newKeys, 0, length );
+				newKeys[length] = c;
+				Node[] newChildren = new Node[length + 1];
+				System.arraycopy( children, 0, newChildren, 0, length );
+				newChildren[length] = child;
+				keys = newKeys;
+				children = newChildren;
+			}
+			return child;
+		}
+
+		/**
+		 * Adds a route index.
+		 * 
+		 * @param index
+		 *        The route index
+		 */
+		private void addIndex( int index )
+		{
+			int length = indexes.length;
+			int[] newIndexes = new int[length + 1];
+			System.arraycopy( indexes, 0, newIndexes, 0, length );
+			newIndexes[length] = index;
+			indexes = newIndexes;
+		}
+	}
+
+	/**
+	 * The literal prefix of a route's template. Routes of types we cannot
+	 * vouch for get an empty prefix, so they are always scored.
+	 * 
+	 * @param route
+	 *        The route
+	 * @return The literal prefix
+	 */
+	private static String getLiteralPrefix( Route route )
+	{
+		// CapturingRoute only ever scores lower than TemplateRoute
+		if( ( route.getClass() == TemplateRoute.class ) || ( route.getClass() == CapturingRoute.class ) )
+		{
+			String pattern = ( (TemplateRoute) route ).getTemplate().getPattern();
+			int variable = pattern.indexOf( '{' );
+			return variable == -1 ? pattern : pattern.substring( 0, variable );
+		}
+		return "";
+	}
+
+	/**
+	 * The indexes of the routes that might match a request, in order.
+	 * 
+	 * @param request
+	 *        The request
+	 * @return The route indexes
+	 */
+	private int[] getCandidates( Request request )
+	{
+		// The remaining part with the query is a superset of what routes
+		// match against
+		String remainingPart = request.getResourceRef().getRemainingPart();
+
+		Node node = root;
+		int[] candidates = node.indexes;
+		boolean sorted = true;
+		if( remainingPart != null )
+		{
+			for( int i = 0, length = remainingPart.length(); i < length; i++ )
+			{
+				node = node.getChild( remainingPart.charAt( i ) );
+				if( node == null )
+					break;
+
+				if( node.indexes.length > 0 )
+				{
+					int[] merged = new int[candidates.length + node.indexes.length];
+					System.arraycopy( candidates, 0, merged, 0, candidates.length );
+					System.arraycopy( node.indexes, 0, merged, candidates.length, node.indexes.length );
+					sorted = candidates.length == 0;
+					candidates = merged;
+				}
+			}
+		}
+
+		if( !sorted )
+			Arrays.sort( candidates );
+
+		return candidates;
+	}
+}
@@ -194,42 +194,59 @@ public abstract class UnifyMinifyFilter extends Filter
 					throw new IOException( "Could not delete file: " + unifiedSourceFile );
 			unifiedSourceFile.getParentFile().mkdirs();
 
-			Vector<InputStream> ins = new Vector<InputStream>();
-			for( File sourceFile : sourceFiles )
+			if( minify )
 			{
+				Vector<InputStream> ins = new Vector<InputStream>();
+				for( File sourceFile : sourceFiles )
+				{
+					try
+					{
+						ins.add( new FileInputStream( sourceFile ) );
+						ins.add( new ByteArrayInputStream( NEWLINE_BYTES ) );
+					}
+					catch( IOException x )
+					{
+						for( InputStream in : ins )
+							in.close();
+						throw x;
+					}
+				}
+
+				InputStream in = new SequenceInputStream( ins.elements() );
 				try
 				{
-					ins.add( new FileInputStream( sourceFile ) );
-					ins.add( new ByteArrayInputStream( NEWLINE_BYTES ) );
+					OutputStream out = new FileOutputStream( unifiedSourceFile );
+					try
+					{
+						minify( in, out );
+					}
+					finally
+					{
+						out.close();
+					}
 				}
-				catch( IOException x )
+				finally
 				{
-					for( InputStream in : ins )
-						in.close();
-					throw x;
+					in.close();
 				}
 			}
-
-			InputStream in = new SequenceInputStream( ins.elements() );
-			try
+			else
 			{
-				OutputStream out = new FileOutputStream( unifiedSourceFile );
+				// Without minification, we can append the files directly
+				FileOutputStream out = new FileOutputStream( unifiedSourceFile );
 				try
 				{
-					if( minify )
-						minify( in, out );
-					else
-						IoUtil.copyStream( in, out );
+					for( File sourceFile : sourceFiles )
+					{
+						IoUtil.copyStream( new FileInputStream( sourceFile ), out );
+						out.write( NEWLINE_BYTES );
+					}
 				}
 				finally
 				{
 					out.close();
 				}
 			}
-			finally
-			{
-				in.close();
-			}
 
 			if( !unifiedSourceFile.setLastModified( newLastModified ) )
 				throw new IOException( "Could not update timestamp on file: " + unifiedSourceFile );